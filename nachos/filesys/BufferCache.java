@@ -0,0 +1,548 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * A file system that caches the blocks of the files of another file system
+ * in a fixed pool of kernel buffers.
+ *
+ * <p>
+ * Reads are served from the pool when the block is there, and otherwise
+ * read into the least recently used buffer. Writes only change the buffer;
+ * dirty buffers are written back when they are evicted, and every
+ * <tt>syncInterval</tt> ticks by a syncer thread, so repeated writes to a
+ * block cost one transfer. When a file is read sequentially a read-ahead
+ * thread fetches the next few blocks in the background, so that the reader
+ * finds them already cached.
+ *
+ * <p>
+ * Every open of the same file shares one set of buffers and one handle on
+ * the underlying file. Files stay cached for a while after their last
+ * close, in case they are opened again.
+ *
+ * <p>
+ * Hits, misses and the ticks hits saved are counted here, and printed by
+ * <tt>printStats()</tt> when the kernel shuts down.
+ */
+public class BufferCache implements FileSystem {
+	/**
+	 * Allocate a new buffer cache and start its threads.
+	 *
+	 * @param backing the file system to cache.
+	 * @param numBuffers the number of block buffers.
+	 * @param readAhead the number of blocks to read ahead of a sequential
+	 * reader, or 0 to disable read-ahead.
+	 * @param syncInterval the number of ticks between write-backs of dirty
+	 * buffers.
+	 */
+	public BufferCache(FileSystem backing, int numBuffers, int readAhead,
+			int syncInterval) {
+		this.backing = backing;
+		this.readAhead = readAhead;
+		this.syncInterval = Math.max(syncInterval, 1);
+		for (int i = 0; i < numBuffers; i++)
+			free.add(new Buffer());
+
+		new KThread(new Runnable() {
+			public void run() {
+				syncer();
+			}
+		}).setName("buffer syncer").fork();
+
+		if (readAhead > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					reader();
+				}
+			}).setName("buffer read-ahead").fork();
+		}
+	}
+
+	/**
+	 * Return the file system under a cache, or <i>fileSystem</i> itself if
+	 * it is not a cache. For files such as swap that do their own caching.
+	 */
+	public static FileSystem uncached(FileSystem fileSystem) {
+		if (fileSystem instanceof BufferCache)
+			return ((BufferCache) fileSystem).backing;
+		return fileSystem;
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+		CachedFile file = files.get(name);
+		if (file == null || truncate) {
+			// the underlying open may block, and is needed to create or
+			// truncate the file
+			lock.release();
+			OpenFile handle = backing.open(name, truncate);
+			if (handle == null)
+				return null;
+			lock.acquire();
+
+			file = files.get(name);
+			if (file == null) {
+				file = new CachedFile(name, handle);
+				files.put(name, file);
+			}
+			else {
+				handle.close();
+			}
+			if (truncate) {
+				discard(file);
+				file.length = file.diskLength = 0;
+			}
+		}
+		idle.remove(file);
+		file.opens++;
+		openCount++;
+		lock.release();
+
+		return new CachedOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+		CachedFile file = files.remove(name);
+		if (file != null) {
+			// handles that are still open keep working on the old contents
+			idle.remove(file);
+			discard(file);
+			if (file.opens == 0)
+				file.handle.close();
+		}
+		lock.release();
+
+		return backing.remove(name);
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Print the number of blocks found in the cache and the number read, and
+	 * an estimate of the transfer time saved: the hits times the average time
+	 * of a transfer the cache did make.
+	 */
+	public void printStats() {
+		System.out.println("Buffer cache: hits " + hits + ", misses " + misses
+				+ ", ticks saved " + ticksSaved);
+	}
+
+	/**
+	 * Write back every dirty buffer.
+	 */
+	public void sync() {
+		lock.acquire();
+		ArrayList<Buffer> dirty = new ArrayList<Buffer>();
+		for (Buffer buffer : buffers.values()) {
+			if (buffer.dirty)
+				dirty.add(buffer);
+		}
+		for (Buffer buffer : dirty) {
+			while (buffer.busy)
+				ioDone.sleep();
+			if (buffer.dirty && buffer.file != null)
+				writeBack(buffer);
+		}
+		lock.release();
+	}
+
+	private void syncer() {
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(syncInterval);
+			sync();
+		}
+	}
+
+	private void reader() {
+		lock.acquire();
+		while (true) {
+			while (readQueue.isEmpty())
+				readWork.sleep();
+
+			ReadAhead request = readQueue.removeFirst();
+			CachedFile file = request.file;
+			// skip files that were removed or retired since
+			if (file.handle != null && (file.opens > 0 || idle.contains(file))
+					&& !buffers.containsKey(key(file, request.block)))
+				get(file, request.block, true, true);
+		}
+	}
+
+	/**
+	 * Return the buffer holding a block, reading it in first if it is not
+	 * cached. The lock must be held; it is released while doing I/O.
+	 *
+	 * @param fill <tt>false</tt> if the caller will overwrite the whole
+	 * block, so it need not be read.
+	 * @param prefetch <tt>true</tt> if no one is waiting for the block.
+	 */
+	private Buffer get(CachedFile file, int block, boolean fill,
+			boolean prefetch) {
+		long key = key(file, block);
+		while (true) {
+			Buffer buffer = buffers.get(key);
+			if (buffer != null) {
+				if (buffer.busy) {
+					ioDone.sleep();
+					continue;
+				}
+				if (!prefetch) {
+					hits++;
+					ticksSaved += averageTransfer();
+				}
+				return buffer;
+			}
+
+			buffer = free.poll();
+			if (buffer == null) {
+				buffer = victim();
+				if (buffer == null) {
+					// every buffer is being read or written
+					ioDone.sleep();
+					continue;
+				}
+				if (buffer.dirty) {
+					writeBack(buffer);
+					// someone may have wanted the block in the meantime
+					continue;
+				}
+				evict(buffer);
+			}
+
+			buffer.file = file;
+			buffer.block = block;
+			buffer.dirty = false;
+			buffers.put(key, buffer);
+			file.buffers++;
+
+			int start = block * blockSize;
+			if (fill && start < file.diskLength) {
+				if (!prefetch)
+					misses++;
+				buffer.busy = true;
+				lock.release();
+				long time = Machine.timer().getTime();
+				int read = Math.max(0, file.handle.read(start, buffer.data, 0,
+						blockSize));
+				java.util.Arrays.fill(buffer.data, read, blockSize, (byte) 0);
+				lock.acquire();
+				countTransfer(time);
+				buffer.busy = false;
+				ioDone.wakeAll();
+			}
+			else {
+				java.util.Arrays.fill(buffer.data, (byte) 0);
+			}
+			return buffer;
+		}
+	}
+
+	/**
+	 * Return the least recently used buffer that is not busy, or
+	 * <tt>null</tt>.
+	 */
+	private Buffer victim() {
+		for (Buffer buffer : buffers.values()) {
+			if (!buffer.busy)
+				return buffer;
+		}
+		return null;
+	}
+
+	/**
+	 * Take a clean buffer away from its block. The lock must be held.
+	 */
+	private void evict(Buffer buffer) {
+		CachedFile file = buffer.file;
+		buffers.remove(key(file, buffer.block));
+		buffer.file = null;
+		file.buffers--;
+		// a file nobody can open again is closed once it has no buffers
+		if (file.buffers == 0 && file.opens == 0 && !idle.contains(file)
+				&& file.handle != null) {
+			file.handle.close();
+			file.handle = null;
+		}
+	}
+
+	/**
+	 * Write a dirty buffer to its file. The lock must be held; it is released
+	 * during the write.
+	 */
+	private void writeBack(Buffer buffer) {
+		CachedFile file = buffer.file;
+		int start = buffer.block * blockSize;
+		int length = Math.min(blockSize, file.length - start);
+
+		buffer.busy = true;
+		lock.release();
+		long time = Machine.timer().getTime();
+		if (length > 0)
+			file.handle.write(start, buffer.data, 0, length);
+		lock.acquire();
+		countTransfer(time);
+		file.diskLength = Math.max(file.diskLength, start + length);
+		buffer.dirty = false;
+		buffer.busy = false;
+		ioDone.wakeAll();
+	}
+
+	/**
+	 * Drop every buffer of a file without writing it back, once no I/O on
+	 * it is under way. The lock must be held.
+	 */
+	private void discard(CachedFile file) {
+		while (true) {
+			boolean busy = false;
+			for (Iterator<Buffer> i = buffers.values().iterator(); i.hasNext();) {
+				Buffer buffer = i.next();
+				if (buffer.file != file)
+					continue;
+				if (buffer.busy) {
+					busy = true;
+					continue;
+				}
+				i.remove();
+				buffer.file = null;
+				buffer.dirty = false;
+				file.buffers--;
+				free.add(buffer);
+			}
+			if (!busy)
+				return;
+			ioDone.sleep();
+		}
+	}
+
+	/**
+	 * Keep a closed file cached, retiring the file closed longest ago if
+	 * too many are. The lock must be held.
+	 */
+	private void closed(CachedFile file) {
+		if (files.get(file.name) != file) {
+			// removed while open
+			discard(file);
+			file.handle.close();
+			file.handle = null;
+			return;
+		}
+
+		idle.add(file);
+		if (idle.size() <= maxIdleFiles)
+			return;
+
+		CachedFile oldest = idle.removeFirst();
+		for (Buffer buffer : new ArrayList<Buffer>(buffers.values())) {
+			while (buffer.busy)
+				ioDone.sleep();
+			if (buffer.file == oldest && buffer.dirty)
+				writeBack(buffer);
+		}
+		// it may have been opened again during a write
+		if (oldest.opens == 0 && !idle.contains(oldest)
+				&& files.get(oldest.name) == oldest) {
+			discard(oldest);
+			files.remove(oldest.name);
+			oldest.handle.close();
+			oldest.handle = null;
+		}
+	}
+
+	private void readAhead(CachedFile file, int firstBlock, int lastBlock) {
+		boolean sequential = firstBlock == file.nextBlock;
+		file.nextBlock = lastBlock + 1;
+		if (!sequential || readAhead == 0)
+			return;
+
+		int endBlock = Math.min(lastBlock + readAhead,
+				(file.diskLength - 1) / blockSize);
+		for (int block = lastBlock + 1; block <= endBlock; block++) {
+			if (!buffers.containsKey(key(file, block)))
+				readQueue.add(new ReadAhead(file, block));
+		}
+		readWork.wakeAll();
+	}
+
+	private void countTransfer(long start) {
+		transferTicks += Machine.timer().getTime() - start;
+		transfers++;
+	}
+
+	private long averageTransfer() {
+		return transfers == 0 ? 0 : transferTicks / transfers;
+	}
+
+	private static long key(CachedFile file, int block) {
+		return ((long) file.id << 32) | (block & 0xFFFFFFFFL);
+	}
+
+	private class CachedFile {
+		CachedFile(String name, OpenFile handle) {
+			this.name = name;
+			this.handle = handle;
+			id = nextID++;
+			length = diskLength = Math.max(handle.length(), 0);
+		}
+
+		String name;
+
+		int id;
+
+		/** The shared handle on the underlying file. */
+		OpenFile handle;
+
+		/** The length including cached writes, and the length on disk. */
+		int length, diskLength;
+
+		int opens = 0, buffers = 0;
+
+		/** The block after the last one read, to spot sequential reads. */
+		int nextBlock = 0;
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(BufferCache.this, file.name);
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open || pos < 0 || length < 0)
+				return -1;
+
+			lock.acquire();
+			int end = (int) Math.min((long) pos + length, file.length);
+			int amount = 0;
+			for (int p = pos; p < end;) {
+				Buffer buffer = get(file, p / blockSize, true, false);
+				int n = Math.min(blockSize - p % blockSize, end - p);
+				System.arraycopy(buffer.data, p % blockSize, buf, offset
+						+ amount, n);
+				p += n;
+				amount += n;
+			}
+			if (amount > 0)
+				readAhead(file, pos / blockSize, (end - 1) / blockSize);
+			lock.release();
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open || pos < 0 || length < 0
+					|| (long) pos + length > Integer.MAX_VALUE)
+				return -1;
+
+			lock.acquire();
+			int end = pos + length;
+			int amount = 0;
+			for (int p = pos; p < end;) {
+				int n = Math.min(blockSize - p % blockSize, end - p);
+				Buffer buffer = get(file, p / blockSize, n < blockSize, false);
+				System.arraycopy(buf, offset + amount, buffer.data, p
+						% blockSize, n);
+				buffer.dirty = true;
+				p += n;
+				amount += n;
+				file.length = Math.max(file.length, p);
+			}
+			lock.release();
+			return amount;
+		}
+
+		public int length() {
+			return file.length;
+		}
+
+		public void close() {
+			if (!open)
+				return;
+			open = false;
+
+			lock.acquire();
+			openCount--;
+			if (--file.opens == 0)
+				closed(file);
+			lock.release();
+		}
+
+		private CachedFile file;
+
+		private boolean open = true;
+	}
+
+	private static class Buffer {
+		CachedFile file = null;
+
+		int block;
+
+		byte[] data = new byte[blockSize];
+
+		boolean dirty = false;
+
+		/** Set while the buffer is being read or written. */
+		boolean busy = false;
+	}
+
+	private static class ReadAhead {
+		ReadAhead(CachedFile file, int block) {
+			this.file = file;
+			this.block = block;
+		}
+
+		CachedFile file;
+
+		int block;
+	}
+
+	private FileSystem backing;
+
+	private int readAhead, syncInterval;
+
+	private int openCount = 0;
+
+	private int hits = 0, misses = 0;
+
+	private long ticksSaved = 0;
+
+	private int nextID = 0;
+
+	/** Open and recently closed files by name. */
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	/** Closed files that are still cached, closed longest ago first. */
+	private LinkedList<CachedFile> idle = new LinkedList<CachedFile>();
+
+	/** Buffers holding blocks, least recently used first. */
+	private LinkedHashMap<Long, Buffer> buffers = new LinkedHashMap<Long, Buffer>(
+			16, 0.75f, true);
+
+	private LinkedList<Buffer> free = new LinkedList<Buffer>();
+
+	private LinkedList<ReadAhead> readQueue = new LinkedList<ReadAhead>();
+
+	private long transferTicks = 0;
+
+	private int transfers = 0;
+
+	private Lock lock = new Lock();
+
+	/** Signalled whenever a buffer stops being busy. */
+	private Condition ioDone = new Condition(lock);
+
+	private Condition readWork = new Condition(lock);
+
+	/** The size of a cached block. */
+	public static final int blockSize = 1024;
+
+	private static final int maxIdleFiles = 8;
+}
@@ -0,0 +1,74 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The C-LOOK elevator: the head sweeps towards higher sectors, serving the
+ * nearest queued request ahead of it, and when there is nothing further
+ * ahead it jumps back to the lowest queued sector and sweeps up again. Only
+ * sweeping one way keeps the wait of a request at either end of the disk
+ * about the same as one in the middle.
+ */
+public class CLookScheduler implements DiskScheduler {
+	public void add(DiskRequest request) {
+		LinkedList<DiskRequest> queue = bySector.get(request.sector);
+		if (queue == null) {
+			queue = new LinkedList<DiskRequest>();
+			bySector.put(request.sector, queue);
+		}
+		queue.add(request);
+		size++;
+	}
+
+	public DiskRequest next(int headSector, long now) {
+		if (size == 0)
+			return null;
+
+		Map.Entry<Integer, LinkedList<DiskRequest>> entry = bySector
+				.ceilingEntry(headSector);
+		if (entry == null)
+			entry = bySector.firstEntry();
+		return remove(entry.getValue().getFirst());
+	}
+
+	public DiskRequest take(int sector, boolean writing) {
+		LinkedList<DiskRequest> queue = bySector.get(sector);
+		if (queue == null || queue.getFirst().writing != writing)
+			return null;
+
+		return remove(queue.getFirst());
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Return the oldest queued request for the same sector as a queued
+	 * request, which may be the request itself.
+	 */
+	protected DiskRequest oldest(DiskRequest request) {
+		return bySector.get(request.sector).getFirst();
+	}
+
+	/**
+	 * Remove a queued request.
+	 *
+	 * @return <i>request</i>.
+	 */
+	protected DiskRequest remove(DiskRequest request) {
+		LinkedList<DiskRequest> queue = bySector.get(request.sector);
+		queue.remove(request);
+		if (queue.isEmpty())
+			bySector.remove(request.sector);
+		size--;
+		return request;
+	}
+
+	/** Queued requests by sector, oldest first for each sector. */
+	private TreeMap<Integer, LinkedList<DiskRequest>> bySector = new TreeMap<Integer, LinkedList<DiskRequest>>();
+
+	private int size = 0;
+}
@@ -0,0 +1,56 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * C-LOOK with deadlines, after the Linux deadline scheduler. Every request
+ * gets an expiry time when it is queued, shorter for reads, which someone
+ * is usually waiting for, than for writes. Requests are served in C-LOOK
+ * order, except that once the oldest read or write has expired it is
+ * served next, and the sweep carries on from there. This bounds how long a
+ * request far from a busy region of the disk can be starved.
+ *
+ * <p>
+ * The expiry times are <tt>SynchDisk.readDeadline</tt> and
+ * <tt>SynchDisk.writeDeadline</tt> ticks.
+ */
+public class DeadlineScheduler extends CLookScheduler {
+	/**
+	 * Allocate a new deadline scheduler.
+	 */
+	public DeadlineScheduler() {
+		readDeadline = Config.getInteger("SynchDisk.readDeadline", 20000);
+		writeDeadline = Config.getInteger("SynchDisk.writeDeadline", 100000);
+	}
+
+	public void add(DiskRequest request) {
+		super.add(request);
+		(request.writing ? writes : reads).add(request);
+	}
+
+	public DiskRequest next(int headSector, long now) {
+		// reads first: a writer has usually moved on already. An expired
+		// request still waits for older ones for the same sector, which are
+		// served first.
+		if (!reads.isEmpty() && now - reads.getFirst().arrival > readDeadline)
+			return remove(oldest(reads.getFirst()));
+		if (!writes.isEmpty()
+				&& now - writes.getFirst().arrival > writeDeadline)
+			return remove(oldest(writes.getFirst()));
+		return super.next(headSector, now);
+	}
+
+	protected DiskRequest remove(DiskRequest request) {
+		(request.writing ? writes : reads).remove(request);
+		return super.remove(request);
+	}
+
+	private int readDeadline, writeDeadline;
+
+	/** Queued reads and writes, oldest first. */
+	private LinkedList<DiskRequest> reads = new LinkedList<DiskRequest>();
+
+	private LinkedList<DiskRequest> writes = new LinkedList<DiskRequest>();
+}
@@ -0,0 +1,140 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * The directory of a <tt>DiskFileSystem</tt>, kept on disk as a hash table.
+ *
+ * <p>
+ * The directory is a fixed run of sectors, each a bucket of
+ * <tt>entriesPerBucket</tt> entries. A name hashes to a bucket and is stored
+ * in the first bucket from there on, wrapping around, that has a free entry.
+ * A lookup stops at the first bucket with an entry that has never been used,
+ * so it reads one sector unless buckets have overflowed. Removed entries are
+ * marked deleted rather than empty, so that names stored past them can
+ * still be found.
+ *
+ * <p>
+ * The caller must serialize access.
+ */
+class Directory {
+	/**
+	 * Allocate a new directory.
+	 *
+	 * @param journal the journal through which the directory is read and
+	 * written.
+	 * @param firstSector the first bucket.
+	 * @param numBuckets the number of buckets, in consecutive sectors.
+	 */
+	Directory(Journal journal, int firstSector, int numBuckets) {
+		this.journal = journal;
+		this.firstSector = firstSector;
+		this.numBuckets = numBuckets;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a name can be stored in a directory entry.
+	 */
+	static boolean validName(String name) {
+		return name.length() > 0 && name.getBytes().length <= maxNameLength
+				&& name.indexOf('\0') < 0;
+	}
+
+	/**
+	 * Return the inode number stored under a name, or -1 if there is none.
+	 */
+	int lookup(String name) {
+		int slot = find(name);
+		return slot < 0 ? -1 : Lib.bytesToInt(bucket, slot);
+	}
+
+	/**
+	 * Store a name that is not in the directory. Returns <tt>false</tt> if
+	 * the directory is full.
+	 */
+	boolean add(String name, int inumber) {
+		int home = hash(name);
+		for (int i = 0; i < numBuckets; i++) {
+			int sector = firstSector + (home + i) % numBuckets;
+			journal.read(sector, bucket, 0);
+			for (int slot = 0; slot < bucket.length; slot += entrySize) {
+				int entry = Lib.bytesToInt(bucket, slot);
+				if (entry != empty && entry != deleted)
+					continue;
+
+				byte[] bytes = name.getBytes();
+				java.util.Arrays.fill(bucket, slot, slot + entrySize, (byte) 0);
+				Lib.bytesFromInt(bucket, slot, inumber);
+				System.arraycopy(bytes, 0, bucket, slot + 4, bytes.length);
+				journal.write(sector, bucket, 0);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove a name. Returns <tt>false</tt> if it was not there.
+	 */
+	boolean remove(String name) {
+		int slot = find(name);
+		if (slot < 0)
+			return false;
+
+		Lib.bytesFromInt(bucket, slot, deleted);
+		journal.write(foundSector, bucket, 0);
+		return true;
+	}
+
+	/**
+	 * Find the entry for a name, leaving its bucket in <tt>bucket</tt>.
+	 * Returns its offset there, or -1 if the name is not stored.
+	 */
+	private int find(String name) {
+		int home = hash(name);
+		for (int i = 0; i < numBuckets; i++) {
+			foundSector = firstSector + (home + i) % numBuckets;
+			journal.read(foundSector, bucket, 0);
+
+			boolean neverFull = false;
+			for (int slot = 0; slot < bucket.length; slot += entrySize) {
+				int entry = Lib.bytesToInt(bucket, slot);
+				if (entry == empty)
+					neverFull = true;
+				else if (entry != deleted
+						&& Lib.bytesToString(bucket, slot + 4, maxNameLength)
+								.equals(name))
+					return slot;
+			}
+			// the name would have gone in this bucket
+			if (neverFull)
+				break;
+		}
+		return -1;
+	}
+
+	private int hash(String name) {
+		return (name.hashCode() & 0x7FFFFFFF) % numBuckets;
+	}
+
+	private Journal journal;
+
+	private int firstSector, numBuckets;
+
+	private byte[] bucket = new byte[Disk.sectorSize];
+
+	private int foundSector;
+
+	/** The bytes in an entry: an inode number, then the name. */
+	static final int entrySize = 32;
+
+	static final int maxNameLength = entrySize - 4;
+
+	static final int entriesPerBucket = Disk.sectorSize / entrySize;
+
+	/** The inode number of an entry that was never used. */
+	private static final int empty = 0;
+
+	/** The inode number of a removed entry. */
+	private static final int deleted = -1;
+}
@@ -0,0 +1,567 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * A file system stored on the simulated disk.
+ *
+ * <p>
+ * Sector 0 holds the superblock. It is followed by a bitmap of the sectors
+ * in use, a table of <tt>numInodes</tt> <tt>Inode</tt>s, and a
+ * <tt>Journal</tt> of <tt>DiskFileSystem.journalSectors</tt> sectors; the
+ * rest of the disk is data. Inode 0 is the one directory, whose blocks are
+ * the buckets of a hash table of file names (see <tt>Directory</tt>). The
+ * bitmap and inode table are kept in memory and written through.
+ *
+ * <p>
+ * All metadata (the bitmap, inodes, index blocks and the directory) is
+ * written through the journal, and each operation is one atomic update of
+ * it, so a crash never leaves the file system inconsistent, and mounting
+ * after one only replays the journal. With <tt>journalSectors</tt> set to 0,
+ * metadata is written in place instead.
+ *
+ * <p>
+ * Allocation tries to keep each file contiguous. A file's next block goes
+ * right after its previous one if that sector is free. If not, the file
+ * reserves a window of <tt>reserveBlocks</tt> free sectors and allocates
+ * from there on. Other files allocate from a window only once the rest of
+ * the disk is full, so files written at the same time do not interleave
+ * sector by sector. A window is given back when its file is closed.
+ *
+ * <p>
+ * The disk is mounted when the file system is first used. It is formatted
+ * if it holds no file system or if <tt>DiskFileSystem.format</tt> is set.
+ * A freshly formatted disk is loaded with the files in the comma-separated
+ * list <tt>DiskFileSystem.load</tt>, copied from the stub file system; by
+ * default this is the shell program. To use this file system, set
+ * <tt>ThreadedKernel.fileSystem</tt> to <tt>nachos.filesys.DiskFileSystem</tt>
+ * and <tt>Machine.disk</tt> to <tt>true</tt>.
+ */
+public class DiskFileSystem implements FileSystem {
+	/**
+	 * Allocate a new file system on the machine's disk.
+	 */
+	public DiskFileSystem() {
+		this(new SynchDisk(Machine.disk()));
+	}
+
+	/**
+	 * Allocate a new file system.
+	 *
+	 * @param disk the disk to store it on.
+	 */
+	public DiskFileSystem(SynchDisk disk) {
+		this.disk = disk;
+
+		journalSectors = Config.getInteger("DiskFileSystem.journalSectors", 128);
+		if (journalSectors < 16)
+			journalSectors = 0;
+		dataStart = journalStart + journalSectors;
+		nextGoal = dataStart;
+		journal = new Journal(disk, journalSectors > 0 ? journalStart : -1,
+				journalSectors);
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		mount();
+		if (!Directory.validName(name))
+			return null;
+
+		journal.begin();
+		lock.acquire();
+		int inumber = directory.lookup(name);
+		if (inumber < 0 && truncate) {
+			inumber = allocateInode();
+			if (inumber >= 0 && !directory.add(name, inumber)) {
+				freeInode(inumber);
+				inumber = -1;
+			}
+		}
+		Inode inode = inumber < 0 ? null : getInode(inumber);
+		lock.release();
+
+		if (inode != null && truncate)
+			inode.truncate();
+		journal.end();
+
+		if (inode == null)
+			return null;
+
+		openCount++;
+		return new DiskOpenFile(name, inode);
+	}
+
+	public boolean remove(String name) {
+		mount();
+
+		journal.begin();
+		lock.acquire();
+		Inode inode = null;
+		int inumber = Directory.validName(name) ? directory.lookup(name) : -1;
+		if (inumber >= 0) {
+			directory.remove(name);
+			// the file is freed once the files open on it are closed
+			inode = getInode(inumber);
+			inode.unlinked = true;
+		}
+		lock.release();
+
+		if (inode != null)
+			release(inode);
+		journal.end();
+
+		return inode != null;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Commit and checkpoint every metadata change.
+	 */
+	public void sync() {
+		if (mounted)
+			journal.sync();
+	}
+
+	/**
+	 * Return the disk this file system is stored on.
+	 */
+	public SynchDisk getDisk() {
+		return disk;
+	}
+
+	/**
+	 * Return the journal metadata is written through.
+	 */
+	Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Return the number of free sectors.
+	 */
+	public int getFreeSectors() {
+		mount();
+		return numSectors - used.cardinality();
+	}
+
+	/**
+	 * Allocate a sector for a file.
+	 *
+	 * @param inode the file.
+	 * @param goal the sector the file would like, or 0.
+	 * @return the sector, or -1 if the disk is full.
+	 */
+	int allocate(Inode inode, int goal) {
+		lock.acquire();
+		if (goal < dataStart || goal >= numSectors)
+			goal = nextGoal;
+
+		int sector = -1;
+		if (isFree(goal) && (!reserved.get(goal) || inode.owns(goal)))
+			sector = goal;
+		else {
+			for (int s = inode.reserveStart; s < inode.reserveEnd; s++) {
+				if (isFree(s)) {
+					sector = s;
+					break;
+				}
+			}
+		}
+
+		if (sector < 0) {
+			unreserve(inode);
+			int start = findRun(goal, reserveBlocks);
+			if (start >= 0) {
+				inode.reserveStart = start;
+				inode.reserveEnd = start + reserveBlocks;
+				reserved.set(inode.reserveStart, inode.reserveEnd);
+				sector = start;
+			}
+		}
+		if (sector < 0)
+			sector = findRun(goal, 1);
+		if (sector < 0) {
+			// take from someone else's window
+			for (int s = dataStart; s < numSectors && sector < 0; s++) {
+				if (isFree(s))
+					sector = s;
+			}
+		}
+
+		if (sector >= 0) {
+			setUsed(sector, true);
+			nextGoal = sector + 1 < numSectors ? sector + 1 : dataStart;
+		}
+		lock.release();
+		return sector;
+	}
+
+	/**
+	 * Free a file's sectors, and give back its reservation.
+	 */
+	void free(Inode inode, List<Integer> sectors) {
+		lock.acquire();
+		for (int sector : sectors) {
+			setUsed(sector, false);
+			journal.free(sector);
+		}
+		unreserve(inode);
+		writeBitmap();
+		lock.release();
+	}
+
+	/**
+	 * Write the sectors of the bitmap changed by <tt>allocate()</tt>.
+	 */
+	void flushBitmap() {
+		lock.acquire();
+		writeBitmap();
+		lock.release();
+	}
+
+	/**
+	 * Write an inode to the inode table.
+	 */
+	void writeInode(Inode inode) {
+		lock.acquire();
+		writeInodeLocked(inode);
+		lock.release();
+	}
+
+	/**
+	 * Drop a reference to an inode taken by <tt>open()</tt> or
+	 * <tt>remove()</tt>, freeing the file if it has no name left.
+	 */
+	void release(Inode inode) {
+		lock.acquire();
+		boolean last = --inode.opens == 0;
+		if (last) {
+			openInodes.remove(inode.inumber);
+			unreserve(inode);
+		}
+		lock.release();
+
+		if (last && inode.unlinked) {
+			inode.truncate();
+			lock.acquire();
+			freeInode(inode.inumber);
+			lock.release();
+		}
+	}
+
+	private void mount() {
+		if (mounted)
+			return;
+
+		boolean formatted = false;
+		lock.acquire();
+		if (!mounted) {
+			byte[] superblock = new byte[sectorSize];
+			disk.readSector(0, superblock, 0);
+			if (Config.getBoolean("DiskFileSystem.format", false)
+					|| Lib.bytesToInt(superblock, 0) != magic
+					|| Lib.bytesToInt(superblock, 4) != numSectors
+					|| Lib.bytesToInt(superblock, 8) != numInodes
+					|| Lib.bytesToInt(superblock, 12) != numBuckets
+					|| Lib.bytesToInt(superblock, 16) != journalSectors) {
+				format();
+				formatted = true;
+			}
+			else {
+				journal.recover();
+				disk.read(bitmapStart, bitmapSectors, bitmap, 0);
+				for (int sector = 0; sector < numSectors; sector++) {
+					if ((bitmap[sector / 8] & (1 << (sector % 8))) != 0)
+						used.set(sector);
+				}
+				disk.read(inodeStart, inodeSectors, inodeTable, 0);
+			}
+
+			Inode root = new Inode(this, rootInumber);
+			root.decode(inodeTable, rootInumber * Inode.size);
+			directory = new Directory(journal, root.direct[0], numBuckets);
+			journal.start();
+			mounted = true;
+		}
+		lock.release();
+
+		if (formatted)
+			load();
+	}
+
+	private void format() {
+		Lib.debug(dbgFS, "formatting disk");
+
+		used.clear();
+		used.set(0, dataStart);
+		java.util.Arrays.fill(inodeTable, (byte) 0);
+
+		Inode root = new Inode(this, rootInumber);
+		root.type = Inode.typeDirectory;
+		for (int i = 0; i < numBuckets; i++)
+			root.direct[i] = dataStart + i;
+		used.set(dataStart, dataStart + numBuckets);
+		root.length = numBuckets * sectorSize;
+		root.encode(inodeTable, rootInumber * Inode.size);
+
+		disk.write(dataStart, numBuckets, new byte[numBuckets * sectorSize], 0);
+		disk.write(inodeStart, inodeSectors, inodeTable, 0);
+		for (int sector = 0; sector < numSectors; sector++)
+			setUsed(sector, used.get(sector));
+		bitmapDirty.clear();
+		disk.write(bitmapStart, bitmapSectors, bitmap, 0);
+		journal.format();
+
+		byte[] superblock = new byte[sectorSize];
+		Lib.bytesFromInt(superblock, 0, magic);
+		Lib.bytesFromInt(superblock, 4, numSectors);
+		Lib.bytesFromInt(superblock, 8, numInodes);
+		Lib.bytesFromInt(superblock, 12, numBuckets);
+		Lib.bytesFromInt(superblock, 16, journalSectors);
+		disk.writeSector(0, superblock, 0);
+	}
+
+	/**
+	 * Copy the files named by <tt>DiskFileSystem.load</tt> from the stub file
+	 * system.
+	 */
+	private void load() {
+		FileSystem source = Machine.stubFileSystem();
+		String names = Config.getString("DiskFileSystem.load",
+				Config.getString("Kernel.shellProgram"));
+		if (source == null || names == null)
+			return;
+
+		StringTokenizer tokenizer = new StringTokenizer(names, ",");
+		while (tokenizer.hasMoreTokens()) {
+			String name = tokenizer.nextToken();
+			OpenFile from = source.open(name, false);
+			if (from == null)
+				continue;
+
+			byte[] data = new byte[Math.max(from.length(), 0)];
+			int length = from.read(0, data, 0, data.length);
+			from.close();
+
+			OpenFile to = open(name, true);
+			if (to != null) {
+				if (length > 0)
+					to.write(0, data, 0, length);
+				to.close();
+				Lib.debug(dbgFS, "loaded " + name + ", " + length + " bytes");
+			}
+		}
+	}
+
+	/**
+	 * Return the in-memory inode for an inode number, taking a reference to
+	 * it. The lock must be held.
+	 */
+	private Inode getInode(int inumber) {
+		Inode inode = openInodes.get(inumber);
+		if (inode == null) {
+			inode = new Inode(this, inumber);
+			inode.decode(inodeTable, inumber * Inode.size);
+			openInodes.put(inumber, inode);
+		}
+		inode.opens++;
+		return inode;
+	}
+
+	/**
+	 * Return a free inode number marked as a file, or -1 if there is none.
+	 * The lock must be held.
+	 */
+	private int allocateInode() {
+		for (int inumber = rootInumber + 1; inumber < numInodes; inumber++) {
+			if (Lib.bytesToInt(inodeTable, inumber * Inode.size) != Inode.typeFree)
+				continue;
+
+			Inode inode = new Inode(this, inumber);
+			inode.type = Inode.typeFile;
+			writeInodeLocked(inode);
+			return inumber;
+		}
+		return -1;
+	}
+
+	private void freeInode(int inumber) {
+		writeInodeLocked(new Inode(this, inumber));
+	}
+
+	private void writeInodeLocked(Inode inode) {
+		int offset = inode.inumber * Inode.size;
+		inode.encode(inodeTable, offset);
+		int sector = offset / sectorSize;
+		journal.write(inodeStart + sector, inodeTable, sector * sectorSize);
+	}
+
+	/**
+	 * Return the first sector of a run of free, unreserved sectors, searching
+	 * from <i>goal</i> and wrapping around, or -1 if there is none. The lock
+	 * must be held.
+	 */
+	private int findRun(int goal, int length) {
+		int sector = goal;
+		for (int scanned = 0; scanned < numSectors - dataStart;) {
+			if (sector + length > numSectors) {
+				scanned += numSectors - sector;
+				sector = dataStart;
+				continue;
+			}
+
+			int run = 0;
+			while (run < length && isFree(sector + run)
+					&& !reserved.get(sector + run))
+				run++;
+			if (run == length)
+				return sector;
+
+			scanned += run + 1;
+			sector += run + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a sector can be allocated.
+	 */
+	private boolean isFree(int sector) {
+		return !used.get(sector) && !journal.isFreeing(sector);
+	}
+
+	private void unreserve(Inode inode) {
+		if (inode.reserveEnd > 0)
+			reserved.clear(inode.reserveStart, inode.reserveEnd);
+		inode.reserveStart = inode.reserveEnd = 0;
+	}
+
+	private void setUsed(int sector, boolean inUse) {
+		used.set(sector, inUse);
+		if (inUse)
+			bitmap[sector / 8] |= 1 << (sector % 8);
+		else
+			bitmap[sector / 8] &= ~(1 << (sector % 8));
+		bitmapDirty.set(sector / 8 / sectorSize);
+	}
+
+	private void writeBitmap() {
+		for (int i = bitmapDirty.nextSetBit(0); i >= 0; i = bitmapDirty
+				.nextSetBit(i + 1))
+			journal.write(bitmapStart + i, bitmap, i * sectorSize);
+		bitmapDirty.clear();
+	}
+
+	private class DiskOpenFile extends OpenFileWithPosition {
+		DiskOpenFile(String name, Inode inode) {
+			super(DiskFileSystem.this, name);
+			this.inode = inode;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (inode == null)
+				return -1;
+			return inode.read(pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (inode == null)
+				return -1;
+
+			journal.begin();
+			int amount = inode.write(pos, buf, offset, length);
+			journal.end();
+			return amount;
+		}
+
+		public int length() {
+			if (inode == null)
+				return -1;
+			return inode.length;
+		}
+
+		public void close() {
+			if (inode == null)
+				return;
+
+			openCount--;
+			journal.begin();
+			release(inode);
+			journal.end();
+			inode = null;
+		}
+
+		private Inode inode;
+	}
+
+	private SynchDisk disk;
+
+	private Journal journal;
+
+	private int journalSectors, dataStart;
+
+	private boolean mounted = false;
+
+	private Directory directory;
+
+	private int openCount = 0;
+
+	/** Guards the bitmap, the inode table and the directory. */
+	private Lock lock = new Lock();
+
+	/** Inodes with open files, by inode number. */
+	private HashMap<Integer, Inode> openInodes = new HashMap<Integer, Inode>();
+
+	private BitSet used = new BitSet(numSectors);
+
+	/** Sectors in some file's reservation window. */
+	private BitSet reserved = new BitSet(numSectors);
+
+	/** Where a file with no better goal allocates from next. */
+	private int nextGoal;
+
+	private static final int sectorSize = Disk.sectorSize;
+
+	private static final int numSectors = Disk.numSectors;
+
+	/** The number of inodes, including the directory. */
+	public static final int numInodes = 128;
+
+	/** The number of sectors in the directory. */
+	public static final int numBuckets = 8;
+
+	/** The number of sectors a file reserves to grow into. */
+	public static final int reserveBlocks = 16;
+
+	private static final int rootInumber = 0;
+
+	private static final int magic = 0x4E414654;
+
+	private static final int bitmapStart = 1;
+
+	private static final int bitmapSectors = (numSectors / 8 + sectorSize - 1)
+			/ sectorSize;
+
+	private static final int inodeStart = bitmapStart + bitmapSectors;
+
+	private static final int inodeSectors = numInodes * Inode.size / sectorSize;
+
+	private static final int journalStart = inodeStart + inodeSectors;
+
+	private byte[] bitmap = new byte[bitmapSectors * sectorSize];
+
+	private BitSet bitmapDirty = new BitSet();
+
+	private byte[] inodeTable = new byte[inodeSectors * sectorSize];
+
+	private static final char dbgFS = 'f';
+}
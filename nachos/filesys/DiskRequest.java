@@ -0,0 +1,44 @@
+package nachos.filesys;
+
+import nachos.threads.*;
+
+/**
+ * A request to read or write one sector, waiting in a
+ * <tt>DiskScheduler</tt>.
+ */
+public class DiskRequest {
+	/**
+	 * Allocate a new request.
+	 *
+	 * @param sector the sector to transfer.
+	 * @param writing <tt>true</tt> for a write.
+	 * @param data the caller's buffer.
+	 * @param offset the offset in <i>data</i> of the sector.
+	 * @param arrival the time the request was made.
+	 */
+	public DiskRequest(int sector, boolean writing, byte[] data, int offset,
+			long arrival) {
+		this.sector = sector;
+		this.writing = writing;
+		this.data = data;
+		this.offset = offset;
+		this.arrival = arrival;
+	}
+
+	/** The sector to transfer. */
+	public final int sector;
+
+	/** <tt>true</tt> for a write, <tt>false</tt> for a read. */
+	public final boolean writing;
+
+	/** The caller's buffer, and where in it the sector goes. */
+	public final byte[] data;
+
+	public final int offset;
+
+	/** The time the request was made. */
+	public final long arrival;
+
+	/** Signalled when the transfer is done. */
+	Semaphore done = new Semaphore(0);
+}
@@ -0,0 +1,53 @@
+package nachos.filesys;
+
+/**
+ * A policy that decides the order in which queued disk requests are served.
+ *
+ * <p>
+ * <tt>SynchDisk</tt> queues every request with the scheduler, and whenever
+ * the disk goes idle asks it which request to start next. After that it
+ * takes any queued requests for the sectors that immediately follow, in the
+ * same direction, and serves them all as one transfer.
+ *
+ * <p>
+ * The scheduler is selected with the <tt>nachos.conf</tt> key
+ * <tt>SynchDisk.scheduler</tt>.
+ */
+public interface DiskScheduler {
+	/**
+	 * Queue a request.
+	 *
+	 * @param request the request.
+	 */
+	public void add(DiskRequest request);
+
+	/**
+	 * Remove and return the request to start next. It must be the oldest
+	 * queued request for its sector.
+	 *
+	 * @param headSector the sector just past the end of the last transfer,
+	 * which is where the head is.
+	 * @param now the current time.
+	 * @return the request, or <tt>null</tt> if none is queued.
+	 */
+	public DiskRequest next(int headSector, long now);
+
+	/**
+	 * Remove and return the oldest queued request for a sector, so that it
+	 * can be merged into a transfer that is about to start. Requests for the
+	 * same sector must be served in the order they arrived, or a read could
+	 * return data older than a write queued before it, so nothing is
+	 * returned if the oldest one goes the other way.
+	 *
+	 * @param sector the sector.
+	 * @param writing <tt>true</tt> to look for a write, <tt>false</tt> for a
+	 * read.
+	 * @return the request, or <tt>null</tt> if there is none.
+	 */
+	public DiskRequest take(int sector, boolean writing);
+
+	/**
+	 * Return <tt>true</tt> if no requests are queued.
+	 */
+	public boolean isEmpty();
+}
@@ -0,0 +1,37 @@
+package nachos.filesys;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Serves requests in the order they arrive. Only useful as a baseline.
+ */
+public class FCFSScheduler implements DiskScheduler {
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public DiskRequest next(int headSector, long now) {
+		return queue.poll();
+	}
+
+	public DiskRequest take(int sector, boolean writing) {
+		for (Iterator<DiskRequest> i = queue.iterator(); i.hasNext();) {
+			DiskRequest request = i.next();
+			if (request.sector != sector)
+				continue;
+			// only the oldest request for the sector may go next
+			if (request.writing != writing)
+				return null;
+			i.remove();
+			return request;
+		}
+		return null;
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	private LinkedList<DiskRequest> queue = new LinkedList<DiskRequest>();
+}
@@ -0,0 +1,390 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A file on a <tt>DiskFileSystem</tt>: its length and the sectors holding
+ * its blocks.
+ *
+ * <p>
+ * The first <tt>numDirect</tt> blocks are mapped by the inode itself, the
+ * next <tt>pointersPerBlock</tt> by an indirect block, and the rest by a
+ * double indirect block whose entries are indirect blocks. A sector number
+ * of 0 means the block has not been written, and reads as zeros. Index
+ * blocks are kept in memory once read, and written through when they
+ * change.
+ *
+ * <p>
+ * Index blocks are metadata, read and written through the file system's
+ * <tt>Journal</tt>; file blocks go straight to disk. Each file block is one
+ * sector. A run of file blocks in consecutive sectors is transferred as one
+ * disk request, so the more contiguous a file is, the faster it is read.
+ */
+class Inode {
+	/**
+	 * Allocate an in-memory inode. Its fields are set by <tt>decode()</tt>.
+	 */
+	Inode(DiskFileSystem fileSystem, int inumber) {
+		this.fileSystem = fileSystem;
+		this.disk = fileSystem.getDisk();
+		this.journal = fileSystem.getJournal();
+		this.inumber = inumber;
+	}
+
+	/**
+	 * Read this inode from its slot in the inode table.
+	 */
+	void decode(byte[] table, int offset) {
+		type = Lib.bytesToInt(table, offset + 0);
+		length = Lib.bytesToInt(table, offset + 4);
+		for (int i = 0; i < numDirect; i++)
+			direct[i] = Lib.bytesToInt(table, offset + 8 + i * 4);
+		indirect = Lib.bytesToInt(table, offset + 8 + numDirect * 4);
+		doubleIndirect = Lib.bytesToInt(table, offset + 12 + numDirect * 4);
+	}
+
+	/**
+	 * Store this inode in its slot in the inode table.
+	 */
+	void encode(byte[] table, int offset) {
+		Arrays.fill(table, offset, offset + size, (byte) 0);
+		Lib.bytesFromInt(table, offset + 0, type);
+		Lib.bytesFromInt(table, offset + 4, length);
+		for (int i = 0; i < numDirect; i++)
+			Lib.bytesFromInt(table, offset + 8 + i * 4, direct[i]);
+		Lib.bytesFromInt(table, offset + 8 + numDirect * 4, indirect);
+		Lib.bytesFromInt(table, offset + 12 + numDirect * 4, doubleIndirect);
+	}
+
+	/**
+	 * Read from the file. Returns the number of bytes read, which is less
+	 * than <i>length</i> only at the end of the file, or -1 on error.
+	 */
+	int read(int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0 || offset < 0 || length > buf.length - offset)
+			return -1;
+
+		lock.acquire();
+		int end = (int) Math.min((long) pos + length, this.length);
+		if (end > pos)
+			transfer(pos, end, buf, offset, null, false);
+		lock.release();
+
+		return Math.max(end - pos, 0);
+	}
+
+	/**
+	 * Write to the file, allocating blocks as needed. Returns the number of
+	 * bytes written, which is less than <i>length</i> only if the disk is
+	 * full, or -1 if nothing could be written.
+	 */
+	int write(int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0 || offset < 0 || length > buf.length - offset)
+			return -1;
+		if (length == 0)
+			return 0;
+
+		int first = pos / blockSize;
+		if (first >= maxBlocks)
+			return -1;
+
+		lock.acquire();
+		int last = (int) Math.min(((long) pos + length - 1) / blockSize,
+				maxBlocks - 1);
+		int end = (int) Math.min((long) pos + length, (long) (last + 1)
+				* blockSize);
+
+		// allocate first, so that each block's goal is known
+		boolean[] fresh = new boolean[last - first + 1];
+		for (int block = first; block <= last; block++) {
+			if (map(block, false) != 0)
+				continue;
+			fresh[block - first] = true;
+			if (map(block, true) <= 0) {
+				end = block * blockSize;
+				break;
+			}
+		}
+		fileSystem.flushBitmap();
+
+		if (end > pos)
+			transfer(pos, end, buf, offset, fresh, true);
+		if (end > this.length) {
+			this.length = end;
+			dirty = true;
+		}
+		if (dirty) {
+			fileSystem.writeInode(this);
+			dirty = false;
+		}
+		lock.release();
+
+		return end > pos ? end - pos : -1;
+	}
+
+	/**
+	 * Free every block of the file and set its length to 0.
+	 */
+	void truncate() {
+		lock.acquire();
+		ArrayList<Integer> sectors = new ArrayList<Integer>();
+		for (int i = 0; i < numDirect; i++) {
+			if (direct[i] != 0)
+				sectors.add(direct[i]);
+		}
+		if (indirect != 0)
+			collect(indirect, sectors);
+		if (doubleIndirect != 0) {
+			for (int inner : index(doubleIndirect)) {
+				if (inner != 0)
+					collect(inner, sectors);
+			}
+			sectors.add(doubleIndirect);
+		}
+
+		Arrays.fill(direct, 0);
+		indirect = doubleIndirect = 0;
+		indexBlocks.clear();
+		length = 0;
+		// without a journal, the inode goes first so that a crash in between
+		// leaks the blocks rather than leaving them mapped and free
+		fileSystem.writeInode(this);
+		fileSystem.free(this, sectors);
+		lock.release();
+	}
+
+	/**
+	 * Return <tt>true</tt> if a sector is in this file's reservation window.
+	 */
+	boolean owns(int sector) {
+		return sector >= reserveStart && sector < reserveEnd;
+	}
+
+	private void collect(int indexSector, ArrayList<Integer> sectors) {
+		for (int sector : index(indexSector)) {
+			if (sector != 0)
+				sectors.add(sector);
+		}
+		sectors.add(indexSector);
+	}
+
+	/**
+	 * Move the bytes between <i>pos</i> and <i>end</i>, which must be mapped
+	 * if <i>writing</i>, in runs of consecutive sectors.
+	 *
+	 * @param fresh for each block written, whether it was just allocated and
+	 * so need not be read before being partly overwritten.
+	 */
+	private void transfer(int pos, int end, byte[] buf, int offset,
+			boolean[] fresh, boolean writing) {
+		int first = pos / blockSize;
+		for (int block = first; block * blockSize < end;) {
+			int sector = map(block, false);
+			int count = 1;
+			if (sector != 0) {
+				while (count < maxRun && (block + count) * blockSize < end
+						&& map(block + count, false) == sector + count)
+					count++;
+			}
+
+			int runStart = block * blockSize;
+			int runEnd = runStart + count * blockSize;
+			int from = Math.max(pos, runStart);
+			int to = Math.min(end, runEnd);
+			int bufPos = offset + from - pos;
+			boolean whole = from == runStart && to == runEnd;
+
+			if (sector == 0) {
+				Arrays.fill(buf, bufPos, bufPos + to - from, (byte) 0);
+			}
+			else if (whole) {
+				if (writing)
+					disk.write(sector, count, buf, bufPos);
+				else
+					disk.read(sector, count, buf, bufPos);
+			}
+			else if (!writing) {
+				byte[] staging = new byte[count * blockSize];
+				disk.read(sector, count, staging, 0);
+				System.arraycopy(staging, from - runStart, buf, bufPos, to - from);
+			}
+			else {
+				// keep the parts of the edge sectors that are not written
+				byte[] staging = new byte[count * blockSize];
+				boolean readFirst = from > runStart && !fresh[block - first];
+				if (readFirst)
+					disk.readSector(sector, staging, 0);
+				if (to < runEnd && !fresh[block + count - 1 - first]
+						&& !(count == 1 && readFirst))
+					disk.readSector(sector + count - 1, staging, (count - 1)
+							* blockSize);
+				System.arraycopy(buf, bufPos, staging, from - runStart, to - from);
+				disk.write(sector, count, staging, 0);
+			}
+
+			block += count;
+		}
+	}
+
+	/**
+	 * Return the sector holding a block, 0 if it has none, or -1 if it could
+	 * not be allocated.
+	 */
+	private int map(int block, boolean allocate) {
+		int goal = 0;
+		if (allocate && block > 0) {
+			// right after the previous block, to keep the file contiguous
+			int previous = map(block - 1, false);
+			if (previous > 0)
+				goal = previous + 1;
+		}
+
+		if (block < numDirect) {
+			if (direct[block] == 0 && allocate) {
+				int sector = fileSystem.allocate(this, goal);
+				if (sector < 0)
+					return -1;
+				direct[block] = sector;
+				dirty = true;
+			}
+			return direct[block];
+		}
+
+		block -= numDirect;
+		if (block < pointersPerBlock) {
+			if (indirect == 0) {
+				if (!allocate)
+					return 0;
+				indirect = newIndex(goal);
+				if (indirect < 0) {
+					indirect = 0;
+					return -1;
+				}
+				dirty = true;
+			}
+			return entry(indirect, block, allocate, goal, false);
+		}
+
+		block -= pointersPerBlock;
+		if (doubleIndirect == 0) {
+			if (!allocate)
+				return 0;
+			doubleIndirect = newIndex(goal);
+			if (doubleIndirect < 0) {
+				doubleIndirect = 0;
+				return -1;
+			}
+			dirty = true;
+		}
+		int inner = entry(doubleIndirect, block / pointersPerBlock, allocate,
+				goal, true);
+		if (inner <= 0)
+			return inner;
+		return entry(inner, block % pointersPerBlock, allocate, goal, false);
+	}
+
+	private int entry(int indexSector, int i, boolean allocate, int goal,
+			boolean isIndex) {
+		int[] index = index(indexSector);
+		if (index[i] == 0 && allocate) {
+			int sector = isIndex ? newIndex(goal) : fileSystem.allocate(this,
+					goal);
+			if (sector < 0)
+				return -1;
+			index[i] = sector;
+			writeIndex(indexSector);
+		}
+		return index[i];
+	}
+
+	private int newIndex(int goal) {
+		int sector = fileSystem.allocate(this, goal);
+		if (sector >= 0) {
+			indexBlocks.put(sector, new int[pointersPerBlock]);
+			writeIndex(sector);
+		}
+		return sector;
+	}
+
+	private int[] index(int sector) {
+		int[] index = indexBlocks.get(sector);
+		if (index == null) {
+			byte[] data = new byte[blockSize];
+			journal.read(sector, data, 0);
+			index = new int[pointersPerBlock];
+			for (int i = 0; i < pointersPerBlock; i++)
+				index[i] = Lib.bytesToInt(data, i * 4);
+			indexBlocks.put(sector, index);
+		}
+		return index;
+	}
+
+	private void writeIndex(int sector) {
+		int[] index = indexBlocks.get(sector);
+		byte[] data = new byte[blockSize];
+		for (int i = 0; i < pointersPerBlock; i++)
+			Lib.bytesFromInt(data, i * 4, index[i]);
+		journal.write(sector, data, 0);
+	}
+
+	private DiskFileSystem fileSystem;
+
+	private SynchDisk disk;
+
+	/** Index blocks are metadata, and go through the journal. */
+	private Journal journal;
+
+	/** The index of this inode in the inode table. */
+	final int inumber;
+
+	/** <tt>typeFree</tt>, <tt>typeFile</tt> or <tt>typeDirectory</tt>. */
+	int type = typeFree;
+
+	int length = 0;
+
+	int[] direct = new int[numDirect];
+
+	int indirect = 0, doubleIndirect = 0;
+
+	/** The number of open files and removals using this inode. */
+	int opens = 0;
+
+	/** Set once the file has no name, to be freed when last closed. */
+	boolean unlinked = false;
+
+	/** The sectors reserved for this file to grow into. */
+	int reserveStart = 0, reserveEnd = 0;
+
+	/** Serializes transfers and changes to the block map. */
+	Lock lock = new Lock();
+
+	private boolean dirty = false;
+
+	/** Index blocks read so far, by sector. */
+	private HashMap<Integer, int[]> indexBlocks = new HashMap<Integer, int[]>();
+
+	static final int typeFree = 0;
+	static final int typeFile = 1;
+	static final int typeDirectory = 2;
+
+	/** The number of bytes an inode takes in the inode table. */
+	static final int size = 64;
+
+	static final int blockSize = Disk.sectorSize;
+
+	static final int numDirect = 10;
+
+	static final int pointersPerBlock = blockSize / 4;
+
+	/** The number of blocks in the largest file. */
+	static final int maxBlocks = numDirect + pointersPerBlock
+			+ pointersPerBlock * pointersPerBlock;
+
+	/** The most sectors transferred by one disk request. */
+	private static final int maxRun = 64;
+}
@@ -0,0 +1,509 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the metadata sectors of a <tt>DiskFileSystem</tt>.
+ *
+ * <p>
+ * File system operations run between <tt>begin()</tt> and <tt>end()</tt>,
+ * and write metadata sectors with <tt>write()</tt>, which only records the
+ * new contents in the running transaction. Every <tt>commitInterval</tt>
+ * ticks, or sooner once the transaction gets large, the transaction is
+ * closed to new operations, the ones in it are let finish, and all of its
+ * sectors are written to the log in one sequential request, followed by a
+ * commit sector. Many operations thus cost one log write, and a sector
+ * changed by several of them is logged once. Later a checkpoint thread
+ * writes the committed sectors to their homes, in sector order, and frees
+ * their space in the log.
+ *
+ * <p>
+ * File data is not logged. It is written before the operation ends, and so
+ * before the transaction mapping it commits (ordered mode). Sectors freed by
+ * a transaction are not reused until it has committed, so that after a crash
+ * no file that still owns a sector can see another file's data in it.
+ *
+ * <p>
+ * After a crash, <tt>recover()</tt> replays the committed transactions still
+ * in the log, and ignores one whose commit sector was not written. This
+ * takes time in proportion to the log, not to the disk.
+ *
+ * <p>
+ * The log is a circular run of sectors after a header sector, which holds
+ * where the oldest transaction not yet checkpointed starts and its sequence
+ * number. A transaction is a header sector with its sequence number and the
+ * number of sectors, the sector numbers (continued in further sectors if
+ * they do not fit), the sector contents, and a commit sector repeating the
+ * sequence number with a checksum of the contents.
+ */
+class Journal {
+	/**
+	 * Allocate a new journal.
+	 *
+	 * @param disk the disk.
+	 * @param start the first sector of the journal, or -1 to write metadata
+	 * straight to disk.
+	 * @param length the number of sectors in the journal.
+	 */
+	Journal(SynchDisk disk, int start, int length) {
+		this.disk = disk;
+		this.start = start;
+		logSize = length - 1;
+		maxTransaction = (logSize - 2) / 2;
+		commitInterval = Config.getInteger("DiskFileSystem.commitInterval",
+				5000);
+		checkpointInterval = Config.getInteger(
+				"DiskFileSystem.checkpointInterval", 20000);
+	}
+
+	/**
+	 * Return <tt>true</tt> if metadata is logged.
+	 */
+	boolean isEnabled() {
+		return start >= 0;
+	}
+
+	/**
+	 * Write an empty journal.
+	 */
+	void format() {
+		if (!isEnabled())
+			return;
+
+		// stale transactions must not be mistaken for new ones
+		disk.write(start, logSize + 1, new byte[(logSize + 1) * sectorSize], 0);
+		tail = head = 0;
+		tailSequence = sequence = 1;
+		writeHeader();
+	}
+
+	/**
+	 * Replay the committed transactions in the journal.
+	 */
+	void recover() {
+		if (!isEnabled())
+			return;
+
+		byte[] header = new byte[sectorSize];
+		disk.readSector(start, header, 0);
+		if (Lib.bytesToInt(header, 0) != headerMagic) {
+			format();
+			return;
+		}
+		tail = head = Lib.bytesToInt(header, 4);
+		tailSequence = sequence = Lib.bytesToInt(header, 8);
+
+		int replayed = 0;
+		TreeMap<Integer, byte[]> images = new TreeMap<Integer, byte[]>();
+		while (readTransaction(images))
+			replayed++;
+		Lib.debug(dbgFS, "journal: replaying " + replayed + " transactions, "
+				+ images.size() + " sectors");
+		writeHome(images);
+
+		tail = head;
+		tailSequence = sequence;
+		writeHeader();
+	}
+
+	/**
+	 * Start the commit and checkpoint threads.
+	 */
+	void start() {
+		if (!isEnabled())
+			return;
+
+		new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(commitInterval);
+					commit();
+				}
+			}
+		}).setName("journal commit").fork();
+
+		new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(checkpointInterval);
+					checkpoint();
+				}
+			}
+		}).setName("journal checkpoint").fork();
+	}
+
+	/**
+	 * Start an operation. Blocks while a transaction is being closed.
+	 */
+	void begin() {
+		if (!isEnabled())
+			return;
+
+		lock.acquire();
+		while (closing)
+			canBegin.sleep();
+		handles++;
+		lock.release();
+	}
+
+	/**
+	 * End an operation, committing the running transaction if it has grown
+	 * large.
+	 */
+	void end() {
+		if (!isEnabled())
+			return;
+
+		lock.acquire();
+		if (--handles == 0 && closing)
+			drained.wakeAll();
+		boolean full = running.size() >= maxTransaction;
+		lock.release();
+
+		if (full)
+			commit();
+	}
+
+	/**
+	 * Read a metadata sector as last written.
+	 */
+	void read(int sector, byte[] data, int offset) {
+		byte[] image = null;
+		if (isEnabled()) {
+			lock.acquire();
+			image = running.get(sector);
+			if (image == null)
+				image = committing.get(sector);
+			if (image == null)
+				image = committed.get(sector);
+			if (image != null)
+				System.arraycopy(image, 0, data, offset, sectorSize);
+			lock.release();
+		}
+		if (image == null)
+			disk.readSector(sector, data, offset);
+	}
+
+	/**
+	 * Write a metadata sector as part of the running transaction.
+	 */
+	void write(int sector, byte[] data, int offset) {
+		if (!isEnabled()) {
+			disk.writeSector(sector, data, offset);
+			return;
+		}
+
+		byte[] image = new byte[sectorSize];
+		System.arraycopy(data, offset, image, 0, sectorSize);
+		lock.acquire();
+		running.put(sector, image);
+		lock.release();
+	}
+
+	/**
+	 * Note that the running transaction frees a sector.
+	 */
+	void free(int sector) {
+		if (!isEnabled())
+			return;
+
+		lock.acquire();
+		runningFreed.set(sector);
+		lock.release();
+	}
+
+	/**
+	 * Return <tt>true</tt> if a sector was freed by a transaction that has not
+	 * committed, and so must not be reused yet.
+	 */
+	boolean isFreeing(int sector) {
+		return runningFreed.get(sector) || committingFreed.get(sector);
+	}
+
+	/**
+	 * Commit and checkpoint everything.
+	 */
+	void sync() {
+		if (!isEnabled())
+			return;
+
+		commit();
+		checkpoint();
+	}
+
+	/**
+	 * Return the number of transactions committed.
+	 */
+	int getCommits() {
+		return commits;
+	}
+
+	/**
+	 * Close the running transaction and write it to the log.
+	 */
+	private void commit() {
+		commitLock.acquire();
+
+		lock.acquire();
+		if (running.isEmpty()) {
+			lock.release();
+			commitLock.release();
+			return;
+		}
+		closing = true;
+		while (handles > 0)
+			drained.sleep();
+		committing = running;
+		committingFreed = runningFreed;
+		running = new HashMap<Integer, byte[]>();
+		runningFreed = new BitSet();
+		closing = false;
+		canBegin.wakeAll();
+		int length = recordLength(committing.size());
+		lock.release();
+
+		if (length >= logSize) {
+			// too big to log: the best we can do is write it in place, after
+			// anything older that recovery could replay over it
+			checkpoint();
+			writeHome(new TreeMap<Integer, byte[]>(committing));
+		}
+		else {
+			// a full log would look empty
+			while (logSize - used() <= length)
+				checkpoint();
+			writeTransaction(committing, length);
+		}
+
+		lock.acquire();
+		committed.putAll(committing);
+		Lib.debug(dbgFS, "journal: committed transaction " + sequence + ", "
+				+ committing.size() + " sectors");
+		if (length < logSize) {
+			head = (head + length) % logSize;
+			sequence++;
+		}
+		committing = new HashMap<Integer, byte[]>();
+		committingFreed = new BitSet();
+		commits++;
+		lock.release();
+
+		commitLock.release();
+	}
+
+	/**
+	 * Write the committed sectors home and empty the log.
+	 */
+	private void checkpoint() {
+		checkpointLock.acquire();
+
+		lock.acquire();
+		TreeMap<Integer, byte[]> images = new TreeMap<Integer, byte[]>(committed);
+		int newTail = head, newSequence = sequence;
+		lock.release();
+
+		if (!images.isEmpty()) {
+			writeHome(images);
+
+			lock.acquire();
+			for (Map.Entry<Integer, byte[]> entry : images.entrySet()) {
+				// unless it was committed again meanwhile
+				if (committed.get(entry.getKey()) == entry.getValue())
+					committed.remove(entry.getKey());
+			}
+			tail = newTail;
+			tailSequence = newSequence;
+			lock.release();
+
+			writeHeader();
+		}
+
+		checkpointLock.release();
+	}
+
+	private void writeTransaction(Map<Integer, byte[]> images, int length) {
+		int count = images.size();
+		byte[] record = new byte[(length - 1) * sectorSize];
+		Lib.bytesFromInt(record, 0, transactionMagic);
+		Lib.bytesFromInt(record, 4, sequence);
+		Lib.bytesFromInt(record, 8, count);
+
+		CRC32 crc = new CRC32();
+		int i = 0;
+		int imageOffset = (length - 1 - count) * sectorSize;
+		for (Map.Entry<Integer, byte[]> entry : images.entrySet()) {
+			Lib.bytesFromInt(record, 12 + i * 4, entry.getKey());
+			System.arraycopy(entry.getValue(), 0, record, imageOffset + i
+					* sectorSize, sectorSize);
+			crc.update(entry.getValue());
+			i++;
+		}
+		writeLog(head, record, length - 1);
+
+		// the commit sector goes only once the rest is on disk
+		byte[] commit = new byte[sectorSize];
+		Lib.bytesFromInt(commit, 0, commitMagic);
+		Lib.bytesFromInt(commit, 4, sequence);
+		Lib.bytesFromInt(commit, 8, (int) crc.getValue());
+		writeLog((head + length - 1) % logSize, commit, 1);
+	}
+
+	/**
+	 * Read the transaction at the head of the log into <i>images</i> and move
+	 * past it, if it is complete.
+	 */
+	private boolean readTransaction(TreeMap<Integer, byte[]> images) {
+		byte[] first = new byte[sectorSize];
+		readLog(head, first, 1);
+		if (Lib.bytesToInt(first, 0) != transactionMagic
+				|| Lib.bytesToInt(first, 4) != sequence)
+			return false;
+
+		int count = Lib.bytesToInt(first, 8);
+		int length = recordLength(count);
+		if (count <= 0 || length >= logSize)
+			return false;
+
+		byte[] record = new byte[(length - 1) * sectorSize];
+		readLog(head, record, length - 1);
+		byte[] commit = new byte[sectorSize];
+		readLog((head + length - 1) % logSize, commit, 1);
+
+		CRC32 crc = new CRC32();
+		int imageOffset = (length - 1 - count) * sectorSize;
+		crc.update(record, imageOffset, count * sectorSize);
+		if (Lib.bytesToInt(commit, 0) != commitMagic
+				|| Lib.bytesToInt(commit, 4) != sequence
+				|| Lib.bytesToInt(commit, 8) != (int) crc.getValue())
+			return false;
+
+		for (int i = 0; i < count; i++) {
+			byte[] image = new byte[sectorSize];
+			System.arraycopy(record, imageOffset + i * sectorSize, image, 0,
+					sectorSize);
+			images.put(Lib.bytesToInt(record, 12 + i * 4), image);
+		}
+		head = (head + length) % logSize;
+		sequence++;
+		return true;
+	}
+
+	/**
+	 * Write sectors to their homes, a run of consecutive ones at a time.
+	 */
+	private void writeHome(TreeMap<Integer, byte[]> images) {
+		while (!images.isEmpty()) {
+			int first = images.firstKey();
+			int count = 1;
+			while (images.containsKey(first + count))
+				count++;
+
+			byte[] run = new byte[count * sectorSize];
+			for (int i = 0; i < count; i++)
+				System.arraycopy(images.remove(first + i), 0, run, i
+						* sectorSize, sectorSize);
+			disk.write(first, count, run, 0);
+		}
+	}
+
+	private void writeHeader() {
+		byte[] header = new byte[sectorSize];
+		Lib.bytesFromInt(header, 0, headerMagic);
+		Lib.bytesFromInt(header, 4, tail);
+		Lib.bytesFromInt(header, 8, tailSequence);
+		disk.writeSector(start, header, 0);
+	}
+
+	/**
+	 * Write sectors to the log starting at <i>position</i>, wrapping around.
+	 */
+	private void writeLog(int position, byte[] data, int count) {
+		int before = Math.min(count, logSize - position);
+		disk.write(start + 1 + position, before, data, 0);
+		if (before < count)
+			disk.write(start + 1, count - before, data, before * sectorSize);
+	}
+
+	private void readLog(int position, byte[] data, int count) {
+		int before = Math.min(count, logSize - position);
+		disk.read(start + 1 + position, before, data, 0);
+		if (before < count)
+			disk.read(start + 1, count - before, data, before * sectorSize);
+	}
+
+	/**
+	 * Return the number of log sectors not yet checkpointed.
+	 */
+	private int used() {
+		return (head - tail + logSize) % logSize;
+	}
+
+	/**
+	 * Return the number of sectors a transaction of <i>count</i> sectors takes
+	 * in the log.
+	 */
+	private static int recordLength(int count) {
+		int descriptors = 1;
+		if (count > firstEntries)
+			descriptors += (count - firstEntries + sectorSize / 4 - 1)
+					/ (sectorSize / 4);
+		return descriptors + count + 1;
+	}
+
+	private SynchDisk disk;
+
+	private int start, logSize, maxTransaction;
+
+	private int commitInterval, checkpointInterval;
+
+	/** Log positions of the oldest transaction kept, and of the next one. */
+	private int tail, head;
+
+	private int tailSequence, sequence;
+
+	private int handles = 0;
+
+	/** Set while the running transaction waits for its operations to end. */
+	private boolean closing = false;
+
+	private int commits = 0;
+
+	private HashMap<Integer, byte[]> running = new HashMap<Integer, byte[]>();
+
+	private HashMap<Integer, byte[]> committing = new HashMap<Integer, byte[]>();
+
+	/** Committed sectors not yet checkpointed. */
+	private HashMap<Integer, byte[]> committed = new HashMap<Integer, byte[]>();
+
+	private BitSet runningFreed = new BitSet(), committingFreed = new BitSet();
+
+	private Lock lock = new Lock();
+
+	private Condition canBegin = new Condition(lock);
+
+	private Condition drained = new Condition(lock);
+
+	private Lock commitLock = new Lock();
+
+	private Lock checkpointLock = new Lock();
+
+	private static final int sectorSize = Disk.sectorSize;
+
+	/** The sector numbers that fit in a transaction's first sector. */
+	private static final int firstEntries = (sectorSize - 12) / 4;
+
+	private static final int headerMagic = 0x4A484452;
+
+	private static final int transactionMagic = 0x4A545852;
+
+	private static final int commitMagic = 0x4A434D54;
+
+	private static final char dbgFS = 'f';
+}
@@ -0,0 +1,225 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+
+/**
+ * Provides a blocking interface to the simulated disk. Any number of threads
+ * may have requests outstanding at once: each request is queued with a
+ * <tt>DiskScheduler</tt>, which picks the order they are served in, and the
+ * calling thread sleeps until its sectors have been transferred.
+ *
+ * <p>
+ * When a transfer starts, queued requests for the sectors right after it in
+ * the same direction are merged into it, up to <tt>SynchDisk.maxMerge</tt>
+ * sectors, so that they cost one seek and one rotational delay between
+ * them. A caller transferring a run of sectors queues them all before
+ * waiting, so its own run is merged this way. Merging stops at a sector
+ * whose oldest queued request goes the other way, so that requests for the
+ * same sector are always served in the order they were made.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new synchronized disk, with the scheduler named by
+	 * <tt>SynchDisk.scheduler</tt>.
+	 *
+	 * @param disk the raw disk.
+	 */
+	public SynchDisk(Disk disk) {
+		this(disk, newScheduler(Config.getString("SynchDisk.scheduler",
+				"deadline")), Config.getInteger("SynchDisk.maxMerge",
+				Disk.sectorsPerTrack));
+	}
+
+	/**
+	 * Allocate a new synchronized disk.
+	 *
+	 * @param disk the raw disk.
+	 * @param scheduler the policy for ordering requests.
+	 * @param maxMerge the most sectors to serve as one transfer.
+	 */
+	public SynchDisk(Disk disk, DiskScheduler scheduler, int maxMerge) {
+		this.disk = disk;
+		this.scheduler = scheduler;
+		this.maxMerge = Math.max(maxMerge, 1);
+		buffer = new byte[this.maxMerge * sectorSize];
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		});
+	}
+
+	/**
+	 * Create a disk scheduler.
+	 *
+	 * @param name one of <tt>fcfs</tt>, <tt>clook</tt> or <tt>deadline</tt>,
+	 * or the name of a class implementing <tt>DiskScheduler</tt>.
+	 */
+	public static DiskScheduler newScheduler(String name) {
+		String className = name;
+		if (name.equalsIgnoreCase("fcfs"))
+			className = "nachos.filesys.FCFSScheduler";
+		else if (name.equalsIgnoreCase("clook"))
+			className = "nachos.filesys.CLookScheduler";
+		else if (name.equalsIgnoreCase("deadline"))
+			className = "nachos.filesys.DeadlineScheduler";
+		return (DiskScheduler) Lib.constructObject(className);
+	}
+
+	/**
+	 * Read one sector, blocking until it has been read.
+	 *
+	 * @param sector the sector.
+	 * @param data the buffer to read into.
+	 * @param offset where in <i>data</i> the sector goes.
+	 */
+	public void readSector(int sector, byte[] data, int offset) {
+		transfer(sector, 1, data, offset, false);
+	}
+
+	/**
+	 * Write one sector, blocking until it has been written.
+	 *
+	 * @param sector the sector.
+	 * @param data the buffer to write from.
+	 * @param offset where in <i>data</i> the sector is.
+	 */
+	public void writeSector(int sector, byte[] data, int offset) {
+		transfer(sector, 1, data, offset, true);
+	}
+
+	/**
+	 * Read a run of consecutive sectors, blocking until all have been read.
+	 */
+	public void read(int sector, int count, byte[] data, int offset) {
+		transfer(sector, count, data, offset, false);
+	}
+
+	/**
+	 * Write a run of consecutive sectors, blocking until all have been
+	 * written.
+	 */
+	public void write(int sector, int count, byte[] data, int offset) {
+		transfer(sector, count, data, offset, true);
+	}
+
+	/**
+	 * Return the number of sectors on the disk.
+	 */
+	public int getNumSectors() {
+		return Disk.numSectors;
+	}
+
+	/**
+	 * Return the number of sectors transferred as part of another sector's
+	 * transfer.
+	 */
+	public int getMerged() {
+		return merged;
+	}
+
+	private void transfer(int sector, int count, byte[] data, int offset,
+			boolean writing) {
+		Lib.assertTrue(sector >= 0 && count >= 0
+				&& sector + count <= Disk.numSectors);
+		Lib.assertTrue(offset >= 0 && offset + count * sectorSize <= data.length);
+
+		DiskRequest[] requests = new DiskRequest[count];
+		boolean intStatus = Machine.interrupt().disable();
+		long now = Machine.timer().getTime();
+		for (int i = 0; i < count; i++) {
+			requests[i] = new DiskRequest(sector + i, writing, data, offset
+					+ i * sectorSize, now);
+			scheduler.add(requests[i]);
+		}
+		startNext();
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < count; i++)
+			requests[i].done.P();
+	}
+
+	/**
+	 * Start the next transfer if the disk is idle. Interrupts must be
+	 * disabled.
+	 */
+	private void startNext() {
+		if (disk.isBusy() || scheduler.isEmpty())
+			return;
+
+		DiskRequest first = scheduler.next(headSector, Machine.timer()
+				.getTime());
+		current.add(first);
+		while (current.size() < maxMerge) {
+			int sector = first.sector + current.size();
+			DiskRequest request = sector < Disk.numSectors ? scheduler.take(
+					sector, first.writing) : null;
+			if (request == null)
+				break;
+			current.add(request);
+		}
+
+		int count = current.size();
+		merged += count - 1;
+		headSector = first.sector + count;
+		if (count == 1) {
+			if (first.writing)
+				disk.writeRequest(first.sector, 1, first.data, first.offset);
+			else
+				disk.readRequest(first.sector, 1, first.data, first.offset);
+		}
+		else if (first.writing) {
+			for (int i = 0; i < count; i++) {
+				DiskRequest request = current.get(i);
+				System.arraycopy(request.data, request.offset, buffer, i
+						* sectorSize, sectorSize);
+			}
+			disk.writeRequest(first.sector, count, buffer, 0);
+		}
+		else {
+			disk.readRequest(first.sector, count, buffer, 0);
+		}
+	}
+
+	/**
+	 * Called by the disk when a transfer is done.
+	 */
+	private void requestDone() {
+		int count = current.size();
+		if (count > 1 && !current.get(0).writing) {
+			for (int i = 0; i < count; i++) {
+				DiskRequest request = current.get(i);
+				System.arraycopy(buffer, i * sectorSize, request.data,
+						request.offset, sectorSize);
+			}
+		}
+		for (DiskRequest request : current)
+			request.done.V();
+		current.clear();
+
+		startNext();
+	}
+
+	private Disk disk;
+
+	private DiskScheduler scheduler;
+
+	private int maxMerge;
+
+	/** Staging area for merged transfers. */
+	private byte[] buffer;
+
+	/** The requests in the transfer under way, in sector order. */
+	private ArrayList<DiskRequest> current = new ArrayList<DiskRequest>();
+
+	/** The sector after the last one transferred. */
+	private int headSector = 0;
+
+	private int merged = 0;
+
+	private static final int sectorSize = Disk.sectorSize;
+}
@@ -0,0 +1,232 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A simulated disk, backed by a file on the host.
+ *
+ * <p>
+ * The disk has <tt>numTracks</tt> tracks of <tt>sectorsPerTrack</tt>
+ * sectors, each <tt>sectorSize</tt> bytes. Only one request can be
+ * outstanding at a time. A request names a run of consecutive sectors; it
+ * completes some time later, when the disk raises an interrupt, and only
+ * then has a read filled the caller's buffer.
+ *
+ * <p>
+ * The time a request takes depends on where the head is. The head first
+ * seeks to the track holding the first sector, which costs a fixed settle
+ * time plus a little for every track crossed. It then waits for the sector
+ * to rotate under it, and transfers one sector per <tt>sectorsPerTrack</tt>th
+ * of a revolution, seeking one track whenever the run crosses a track
+ * boundary. So requests near the head, and long runs of consecutive sectors,
+ * are much cheaper per sector than scattered ones.
+ */
+public final class Disk {
+	/**
+	 * Allocate a new disk. The backing file is named by <tt>Disk.file</tt> in
+	 * <tt>nachos.conf</tt> (<tt>DISK</tt> by default) and is created if it
+	 * does not exist.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the directory holding the backing file.
+	 */
+	public Disk(Privilege privilege, File directory) {
+		System.out.print(" disk");
+
+		this.privilege = privilege;
+
+		String name = Config.getString("Disk.file", "DISK");
+		final File f = new File(directory, name);
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					file = new RandomAccessFile(f, "rw");
+					if (file.length() < (long) numSectors * sectorSize)
+						file.setLength((long) numSectors * sectorSize);
+				}
+				catch (IOException e) {
+					file = null;
+				}
+			}
+		});
+		Lib.assertTrue(file != null, "cannot open disk file " + name);
+
+		interrupt = new Runnable() {
+			public void run() {
+				interrupt();
+			}
+		};
+	}
+
+	/**
+	 * Set the handler called each time a request completes.
+	 *
+	 * @param interruptHandler the callback to call when a request is done.
+	 */
+	public void setInterruptHandler(Runnable interruptHandler) {
+		this.interruptHandler = interruptHandler;
+	}
+
+	/**
+	 * Start reading a run of sectors. The data is in <i>data</i> once the
+	 * interrupt handler is called.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <i>data</i> of the first byte.
+	 */
+	public void readRequest(int sector, int count, byte[] data, int offset) {
+		request(sector, count, data, offset, false);
+	}
+
+	/**
+	 * Start writing a run of sectors. The caller must not change <i>data</i>
+	 * until the interrupt handler is called.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 * @param data the buffer to write from.
+	 * @param offset the offset in <i>data</i> of the first byte.
+	 */
+	public void writeRequest(int sector, int count, byte[] data, int offset) {
+		request(sector, count, data, offset, true);
+	}
+
+	/**
+	 * Return <tt>true</tt> if a request is outstanding.
+	 */
+	public boolean isBusy() {
+		return busy;
+	}
+
+	/**
+	 * Return the track the head is over.
+	 */
+	public int getHeadTrack() {
+		return headTrack;
+	}
+
+	/**
+	 * Return the track holding a sector.
+	 */
+	public static int trackOf(int sector) {
+		return sector / sectorsPerTrack;
+	}
+
+	/**
+	 * Return the number of ticks a request for a run of sectors would take if
+	 * it were started now.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 */
+	public int latency(int sector, int count) {
+		int track = trackOf(sector);
+		int time = seekTime(Math.abs(track - headTrack));
+
+		// wait for the first sector to come around
+		long now = Machine.timer().getTime() + time;
+		int angle = (int) (now % Stats.RotationTime);
+		int start = (sector % sectorsPerTrack) * Stats.RotationTime
+				/ sectorsPerTrack;
+		time += (start - angle + Stats.RotationTime) % Stats.RotationTime;
+
+		// consecutive sectors follow each other under the head; the next
+		// track is skewed so that its first sector arrives just after the seek
+		time += count * sectorTime;
+		time += (trackOf(sector + count - 1) - track) * seekTime(1);
+		return Math.max(time, 1);
+	}
+
+	private static int seekTime(int tracks) {
+		if (tracks == 0)
+			return 0;
+		return Stats.SeekTime + tracks * Stats.SeekTime / 16;
+	}
+
+	private void request(int sector, int count, byte[] data, int offset,
+			boolean writing) {
+		Lib.assertTrue(!busy);
+		Lib.assertTrue(count > 0 && sector >= 0 && sector + count <= numSectors);
+		Lib.assertTrue(offset >= 0 && offset + count * sectorSize <= data.length);
+
+		int time = latency(sector, count);
+
+		busy = true;
+		requestSector = sector;
+		requestCount = count;
+		requestData = data;
+		requestOffset = offset;
+		requestWriting = writing;
+		headTrack = trackOf(sector + count - 1);
+
+		privilege.interrupt.schedule(time, "disk", interrupt);
+	}
+
+	private void interrupt() {
+		Lib.assertTrue(busy);
+
+		try {
+			file.seek((long) requestSector * sectorSize);
+			if (requestWriting) {
+				file.write(requestData, requestOffset, requestCount
+						* sectorSize);
+				privilege.stats.numDiskWrites += requestCount;
+			}
+			else {
+				file.readFully(requestData, requestOffset, requestCount
+						* sectorSize);
+				privilege.stats.numDiskReads += requestCount;
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("disk I/O error: " + e);
+		}
+
+		busy = false;
+		requestData = null;
+
+		if (interruptHandler != null)
+			interruptHandler.run();
+	}
+
+	/** The number of bytes in a sector. */
+	public static final int sectorSize = 512;
+
+	/** The number of sectors on a track. */
+	public static final int sectorsPerTrack = 32;
+
+	/** The number of tracks on the disk. */
+	public static final int numTracks = 64;
+
+	/** The number of sectors on the disk. */
+	public static final int numSectors = sectorsPerTrack * numTracks;
+
+	/** The time for one sector to pass under the head. */
+	private static final int sectorTime = Stats.RotationTime / sectorsPerTrack;
+
+	private Privilege privilege;
+
+	private RandomAccessFile file;
+
+	private Runnable interrupt;
+
+	private Runnable interruptHandler = null;
+
+	private boolean busy = false;
+
+	private int headTrack = 0;
+
+	private int requestSector, requestCount, requestOffset;
+
+	private byte[] requestData;
+
+	private boolean requestWriting;
+}
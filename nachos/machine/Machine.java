@@ -197,6 +197,9 @@ public final class Machine {
 		if (Config.getBoolean("Machine.stubFileSystem"))
 			stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
+		if (Config.getBoolean("Machine.disk"))
+			disk = new Disk(privilege, testDirectory);
+
 		if (Config.getBoolean("Machine.networkLink"))
 			networkLink = new NetworkLink(privilege);
 	}
@@ -360,6 +363,15 @@ public final class Machine {
 		return stubFileSystem;
 	}
 
+	/**
+	 * Return the disk.
+	 * 
+	 * @return the disk, or <tt>null</tt> if it is not present.
+	 */
+	public static Disk disk() {
+		return disk;
+	}
+
 	/**
 	 * Return the network link.
 	 * 
@@ -378,6 +390,29 @@ public final class Machine {
 		return autoGrader;
 	}
 
+	/**
+	 * Count a page read in from an executable. Paging is done by the kernel
+	 * rather than by a device, so this is how it reaches the statistics
+	 * without the kernel getting hold of <tt>Stats</tt> itself.
+	 */
+	public static void countCOFFRead() {
+		stats.numCOFFReads++;
+	}
+
+	/**
+	 * Count a page read in from swap.
+	 */
+	public static void countSwapRead() {
+		stats.numSwapReads++;
+	}
+
+	/**
+	 * Count a page written out to swap.
+	 */
+	public static void countSwapWrite() {
+		stats.numSwapWrites++;
+	}
+
 	private static Interrupt interrupt = null;
 
 	private static Timer timer = null;
@@ -390,6 +425,8 @@ public final class Machine {
 
 	private static FileSystem stubFileSystem = null;
 
+	private static Disk disk = null;
+
 	private static NetworkLink networkLink = null;
 
 	private static AutoGrader autoGrader = null;
@@ -319,10 +319,11 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through all TLB entries for one covering vpn
 		else {
 			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+				if (translations[i].valid && vpn >= translations[i].vpn
+						&& vpn - translations[i].vpn < translations[i].pages) {
 					entry = translations[i];
 					break;
 				}
@@ -341,7 +342,10 @@ public final class Processor {
 		}
 
 		// check if physical page number is out of range
+		// a superpage maps vpn to the matching page of its physical run
 		int ppn = entry.ppn;
+		if (usingTLB)
+			ppn += vpn - entry.vpn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
 			throw new MipsException(exceptionBusError, vaddr);
@@ -8,6 +8,11 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -31,26 +36,52 @@ public class StubFileSystem implements FileSystem {
 
 		delay();
 
-		try {
-			return new StubOpenFile(name, truncate);
+		HostFile host = hostFiles.get(name);
+		if (host == null) {
+			host = new HostFile(new File(directory, name));
+			if (!host.create(truncate))
+				return null;
+			hostFiles.put(name, host);
 		}
-		catch (IOException e) {
+		else if (truncate && !host.truncate()) {
 			return null;
 		}
+
+		return new StubOpenFile(name, host);
 	}
 	
 	public int getOpenCount() {
 		return openCount;
 	}
 
+	/**
+	 * Return the number of host files currently held open.
+	 */
+	public int getHostOpenCount() {
+		return handles.size() + numPinned;
+	}
+
 	public boolean remove(String name) {
 		if (!checkName(name))
 			return false;
 
 		delay();
 
+		// an open file keeps its host handle once it has no name, since it
+		// could not be reopened
+		HostFile host = hostFiles.remove(name);
+		boolean pinned = host != null && host.handle() != null;
+		if (pinned)
+			host.pin();
+
 		FileRemover fr = new FileRemover(new File(directory, name));
 		privilege.doPrivileged(fr);
+
+		if (host != null && !fr.successful) {
+			if (pinned)
+				host.unpin();
+			hostFiles.put(name, host);
+		}
 		return fr.successful;
 	}
 
@@ -75,30 +106,158 @@ public class StubFileSystem implements FileSystem {
 		Lib.assertTrue(Machine.timer().getTime() >= time + amount);
 	}
 
-	private class StubOpenFile extends OpenFileWithPosition {
-		StubOpenFile(final String name, final boolean truncate)
+	/**
+	 * A host file, shared by every open of the same name. Its
+	 * <tt>RandomAccessFile</tt> is closed when the least recently used of the
+	 * held handles has to make room for another, and reopened when next used.
+	 * Transfers name their position, so nothing is lost when that happens.
+	 *
+	 * <p>
+	 * Transfers use positional <tt>FileChannel</tt> calls, one host call each.
+	 * A file no longer than <tt>mapThreshold</tt> is also mapped into memory
+	 * when read, and transfers within the mapping are plain copies. A write
+	 * past the end of the mapping goes through the channel and drops the
+	 * mapping, which is remade at the new length on the next read. The length
+	 * is kept here, since every change to the file is made through it.
+	 */
+	private class HostFile {
+		HostFile(File f) {
+			this.f = f;
+		}
+
+		boolean create(boolean truncate) {
+			if (!reopen(truncate))
+				return false;
+			makeRoom();
+			handles.put(this, this);
+			return true;
+		}
+
+		boolean truncate() {
+			try {
+				if (handle() == null)
+					return false;
+				// a mapping past the end of a file faults when touched
+				map = null;
+				file.setLength(0);
+				size = 0;
+				return true;
+			}
+			catch (IOException e) {
+				return false;
+			}
+		}
+
+		int read(int pos, byte[] buf, int offset, int length)
 				throws IOException {
-			super(StubFileSystem.this, name);
+			if (handle() == null)
+				return -1;
+			if (pos >= size)
+				return 0;
+
+			length = (int) Math.min(length, size - pos);
+			if (map == null && size <= mapThreshold)
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (map != null && pos + length <= map.capacity()) {
+				ByteBuffer window = map.duplicate();
+				window.position(pos);
+				window.get(buf, offset, length);
+				return length;
+			}
 
-			final File f = new File(directory, name);
+			return Math.max(0, channel.read(ByteBuffer.wrap(buf, offset,
+					length), pos));
+		}
+
+		int write(int pos, byte[] buf, int offset, int length)
+				throws IOException {
+			if (handle() == null)
+				return -1;
 
-			if (openCount == maxOpenFiles)
-				throw new IOException();
+			if (map != null && pos + length <= map.capacity()) {
+				ByteBuffer window = map.duplicate();
+				window.position(pos);
+				window.put(buf, offset, length);
+				return length;
+			}
+
+			map = null;
+			ByteBuffer source = ByteBuffer.wrap(buf, offset, length);
+			while (source.hasRemaining())
+				channel.write(source, pos + source.position() - offset);
+			size = Math.max(size, (long) pos + length);
+			return length;
+		}
+
+		int length() {
+			return handle() == null ? -1 : (int) size;
+		}
+
+		/**
+		 * Return the host file, reopening it if needed, or <tt>null</tt> if
+		 * it is gone.
+		 */
+		RandomAccessFile handle() {
+			if (file != null) {
+				if (!pinned)
+					handles.get(this);
+				return file;
+			}
+
+			if (!reopen(false))
+				return null;
+			makeRoom();
+			handles.put(this, this);
+			return file;
+		}
+
+		void pin() {
+			handles.remove(this);
+			pinned = true;
+			numPinned++;
+		}
+
+		void unpin() {
+			pinned = false;
+			numPinned--;
+			makeRoom();
+			handles.put(this, this);
+		}
+
+		/**
+		 * Drop the host handle for good, once the last open is closed.
+		 */
+		void close() {
+			if (pinned)
+				numPinned--;
+			else
+				handles.remove(this);
+			pinned = false;
+			release();
+		}
+
+		void release() {
+			try {
+				if (file != null)
+					file.close();
+			}
+			catch (IOException e) {
+			}
+			file = null;
+			channel = null;
+			map = null;
+		}
 
+		private boolean reopen(final boolean truncate) {
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					getRandomAccessFile(f, truncate);
+					getRandomAccessFile(truncate);
 				}
 			});
-
-			if (file == null)
-				throw new IOException();
-
-			open = true;
-			openCount++;
+			return file != null;
 		}
 
-		private void getRandomAccessFile(File f, boolean truncate) {
+		private void getRandomAccessFile(boolean truncate) {
 			try {
 				if (!truncate && !f.exists())
 					return;
@@ -107,20 +266,63 @@ public class StubFileSystem implements FileSystem {
 
 				if (truncate)
 					file.setLength(0);
+
+				channel = file.getChannel();
+				size = channel.size();
 			}
 			catch (IOException e) {
+				release();
 			}
 		}
 
+		private File f;
+
+		private RandomAccessFile file = null;
+
+		private FileChannel channel = null;
+
+		/** The whole file, if it is small enough and has been read. */
+		private MappedByteBuffer map = null;
+
+		private long size = 0;
+
+		/** The number of opens of this file not yet closed. */
+		private int opens = 0;
+
+		/** Set once the file is removed, so that its handle is kept. */
+		private boolean pinned = false;
+	}
+
+	/**
+	 * Close least recently used host handles until there is room for one
+	 * more.
+	 */
+	private void makeRoom() {
+		while (!handles.isEmpty() && handles.size() >= maxHostFiles) {
+			HostFile victim = handles.keySet().iterator().next();
+			handles.remove(victim);
+			victim.release();
+		}
+	}
+
+	private class StubOpenFile extends OpenFileWithPosition {
+		StubOpenFile(final String name, HostFile host) {
+			super(StubFileSystem.this, name);
+
+			this.host = host;
+			host.opens++;
+			open = true;
+			openCount++;
+		}
+
 		public int read(int pos, byte[] buf, int offset, int length) {
-			if (!open)
+			if (!open || pos < 0)
 				return -1;
 
 			try {
 				delay();
 
-				file.seek(pos);
-				return Math.max(0, file.read(buf, offset, length));
+				return host.read(pos, buf, offset, length);
 			}
 			catch (IOException e) {
 				return -1;
@@ -128,15 +330,13 @@ public class StubFileSystem implements FileSystem {
 		}
 
 		public int write(int pos, byte[] buf, int offset, int length) {
-			if (!open)
+			if (!open || pos < 0)
 				return -1;
 
 			try {
 				delay();
 
-				file.seek(pos);
-				file.write(buf, offset, length);
-				return length;
+				return host.write(pos, buf, offset, length);
 			}
 			catch (IOException e) {
 				return -1;
@@ -144,35 +344,44 @@ public class StubFileSystem implements FileSystem {
 		}
 
 		public int length() {
-			try {
-				return (int) file.length();
-			}
-			catch (IOException e) {
-				return -1;
-			}
+			return host.length();
 		}
 
 		public void close() {
-			if (open) {
-				open = false;
-				openCount--;
-			}
-
-			try {
-				file.close();
-			}
-			catch (IOException e) {
+			if (!open)
+				return;
+
+			open = false;
+			openCount--;
+			if (--host.opens == 0) {
+				host.close();
+				if (hostFiles.get(getName()) == host)
+					hostFiles.remove(getName());
 			}
 		}
 
-		private RandomAccessFile file = null;
+		private HostFile host;
 
 		private boolean open = false;
 	}
 
 	public int openCount = 0;
 
-	private static final int maxOpenFiles = 32;
+	/** Host files with an open, by name. */
+	private HashMap<String, HostFile> hostFiles = new HashMap<String, HostFile>();
+
+	/** Host files holding a handle that may be closed, least recently used first. */
+	private LinkedHashMap<HostFile, HostFile> handles = new LinkedHashMap<HostFile, HostFile>(
+			16, 0.75f, true);
+
+	/** The number of removed files still open, whose handles are kept. */
+	private int numPinned = 0;
+
+	/** The most host handles held at once, not counting removed files. */
+	private static final int maxHostFiles = 32;
+
+	/** The largest file that is mapped into memory. */
+	private static final int mapThreshold = 1 << 20;
 
 	private Privilege privilege;
 
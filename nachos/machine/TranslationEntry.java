@@ -48,6 +48,7 @@ public final class TranslationEntry {
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		pages = entry.pages;
 	}
 
 	/** The virtual page number. */
@@ -78,4 +79,12 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The number of consecutive pages this entry maps, starting at
+	 * <tt>vpn</tt> and <tt>ppn</tt>. Only the TLB looks at this; an entry with
+	 * more than one page is a superpage, and its <tt>used</tt> and
+	 * <tt>dirty</tt> bits cover all of its pages.
+	 */
+	public int pages = 1;
 }
@@ -0,0 +1,136 @@
+/* aio1.c
+ *	Test asynchronous file I/O.
+ *
+ *	Writes a file in two halves with aio_write, waits for both completions,
+ *	then reads it back the same way with aio_read and validates it. Also
+ *	checks that a request is refused once every ring entry is taken.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+#define RINGSIZE	4
+
+int bigbuf1[1024];
+int bigbuf2[1024];
+int bigbufnum = 1024;
+
+/* room for the ring header and RINGSIZE events */
+int ringbuf[3 + 2 * RINGSIZE];
+volatile struct aio_ring *ring = (struct aio_ring *) ringbuf;
+
+/* Wait for count completions and check each has one of the given ids and
+ * the given result.
+ */
+void
+do_complete (int count, int id1, int id2, int result)
+{
+    int r, i;
+
+    printf ("waiting for %d completions...\n", count);
+    r = aio_wait (count);
+    if (r != count || ring->tail - ring->head != count) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1001);
+    }
+    for (i = 0; i < count; i++) {
+	volatile struct aio_event *e = &ring->events[ring->head % ring->size];
+	if ((e->id != id1 && e->id != id2) || e->result != result) {
+	    printf ("...failed (id %d, result %d)\n", e->id, e->result);
+	    exit (-1002);
+	}
+	ring->head++;
+    }
+    printf ("...passed\n");
+}
+
+int
+main ()
+{
+    char *file = "aio.out";
+    int fd, r, i, half, id1, id2;
+
+    half = sizeof (bigbuf1) / 2;
+    for (i = 0; i < bigbufnum; i++) {
+	bigbuf1[i] = i;
+    }
+
+    printf ("starting a request with no ring...\n");
+    r = aio_read (0, (char *) bigbuf2, 1, 0);
+    if (r != -1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-2001);
+    }
+    printf ("...passed\n");
+
+    printf ("setting up a ring of %d entries...\n", RINGSIZE);
+    r = aio_setup ((struct aio_ring *) ring, RINGSIZE);
+    if (r != 0 || ring->size != RINGSIZE || ring->head != ring->tail) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-2002);
+    }
+    printf ("...passed\n");
+
+    fd = creat (file);
+    if (fd < 0) {
+	printf ("creating %s...failed (%d)\n", file, fd);
+	exit (-2003);
+    }
+
+    printf ("writing %d bytes in two halves with aio_write...\n", 2 * half);
+    id1 = aio_write (fd, (char *) bigbuf1, half, 0);
+    id2 = aio_write (fd, (char *) bigbuf1 + half, half, half);
+    if (id1 < 0 || id2 < 0 || id1 == id2) {
+	printf ("...failed (ids %d, %d)\n", id1, id2);
+	exit (-2004);
+    }
+    printf ("...passed\n");
+    do_complete (2, id1, id2, half);
+
+    printf ("reading it back in two halves with aio_read...\n");
+    id1 = aio_read (fd, (char *) bigbuf2, half, 0);
+    id2 = aio_read (fd, (char *) bigbuf2 + half, half, half);
+    if (id1 < 0 || id2 < 0) {
+	printf ("...failed (ids %d, %d)\n", id1, id2);
+	exit (-2005);
+    }
+    printf ("...passed\n");
+    do_complete (2, id1, id2, half);
+
+    printf ("validating %s...\n", file);
+    for (i = 0; i < bigbufnum; i++) {
+	if (bigbuf1[i] != bigbuf2[i]) {
+	    printf ("...failed (index %d: expected %d, read %d)\n",
+		    i, bigbuf1[i], bigbuf2[i]);
+	    exit (-2006);
+	}
+    }
+    printf ("...passed\n");
+
+    /* completions are not consumed, so the ring fills up */
+    printf ("starting more requests than the ring holds...\n");
+    for (i = 0; i < RINGSIZE; i++) {
+	r = aio_read (fd, (char *) bigbuf2, 4, 0);
+	if (r < 0) {
+	    printf ("...failed (request %d refused)\n", i);
+	    exit (-2007);
+	}
+    }
+    r = aio_read (fd, (char *) bigbuf2, 4, 0);
+    if (r != -1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-2008);
+    }
+    printf ("...passed\n");
+
+    printf ("waiting for everything in flight...\n");
+    r = aio_wait (RINGSIZE);
+    if (r != RINGSIZE) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-2009);
+    }
+    printf ("...passed\n");
+    close (fd);
+
+    return 0;
+}
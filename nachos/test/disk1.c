@@ -0,0 +1,122 @@
+/* disk1.c
+ *	Test the file system on the simulated disk.
+ *
+ *	Run with Machine.disk = true, so that files are kept on the Nachos
+ *	disk rather than in the host directory. Creates a file large enough
+ *	to need an indirect block, closes it, reopens it and reads it back,
+ *	then overwrites the middle and removes it.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+int bigbuf1[2048];
+int bigbuf2[2048];
+int bigbufnum = 2048;
+
+void
+do_validate (char *fname, int len)
+{
+    int fd, r, i;
+
+    printf ("opening %s...\n", fname);
+    fd = open (fname);
+    if (fd < 0) {
+	printf ("...failed (%d)\n", fd);
+	exit (-1001);
+    }
+    printf ("...passed (fd = %d)\n", fd);
+
+    printf ("reading %d bytes...\n", len);
+    r = read (fd, (char *) bigbuf2, len);
+    if (r != len) {
+	printf ("...failed (expected to read %d bytes, but read %d)\n", len, r);
+	exit (-1002);
+    }
+    printf ("...passed\n");
+
+    printf ("reading at end of file...\n");
+    r = read (fd, (char *) bigbuf2, 1);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1003);
+    }
+    printf ("...passed\n");
+    close (fd);
+
+    printf ("validating %s...\n", fname);
+    for (i = 0; i < len / 4; i++) {
+	if (bigbuf1[i] != bigbuf2[i]) {
+	    printf ("...failed (index %d: expected %d, read %d)\n",
+		    i, bigbuf1[i], bigbuf2[i]);
+	    exit (-1004);
+	}
+    }
+    printf ("...passed\n");
+}
+
+int
+main ()
+{
+    char *file = "disk.out";
+    int fd, r, i, len;
+
+    len = sizeof (bigbuf1);
+    for (i = 0; i < bigbufnum; i++) {
+	bigbuf1[i] = i;
+    }
+
+    printf ("creating %s...\n", file);
+    fd = creat (file);
+    if (fd < 0) {
+	printf ("...failed (%d)\n", fd);
+	exit (-2001);
+    }
+    printf ("...passed (fd = %d)\n", fd);
+
+    /* write in odd-sized pieces, so writes straddle sector boundaries */
+    printf ("writing %d bytes, 300 bytes at a time...\n", len);
+    for (i = 0; i < len; i += 300) {
+	int n = min (300, len - i);
+	r = write (fd, (char *) bigbuf1 + i, n);
+	if (r != n) {
+	    printf ("...failed (expected to write %d bytes, but wrote %d)\n", n, r);
+	    exit (-2002);
+	}
+    }
+    printf ("...passed\n");
+    close (fd);
+
+    do_validate (file, len);
+
+    /* overwrite the middle in place; the length must not change */
+    printf ("overwriting the middle of %s...\n", file);
+    fd = open (file);
+    for (i = 1000; i < 2000; i++) {
+	bigbuf1[i] = -i;
+    }
+    r = pwrite (fd, (char *) (bigbuf1 + 1000), 4000, 4000);
+    if (r != 4000) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-2003);
+    }
+    printf ("...passed\n");
+    close (fd);
+
+    do_validate (file, len);
+
+    printf ("removing %s...\n", file);
+    r = unlink (file);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-2004);
+    }
+    fd = open (file);
+    if (fd >= 0) {
+	printf ("...failed (open after unlink returned %d)\n", fd);
+	exit (-2005);
+    }
+    printf ("...passed\n");
+
+    return 0;
+}
@@ -0,0 +1,99 @@
+/* fork1.c
+ *	Test fork.
+ *
+ *	The child changes a global array and writes to a file opened before
+ *	the fork, then exits with a known status. The parent joins it, checks
+ *	the status, that its own copy of the array is untouched (memory is
+ *	copy-on-write), and that the child's write moved the shared file
+ *	position.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+int bigbuf[1024];
+int bigbufnum = 1024;
+
+int
+main ()
+{
+    char buffer[16];
+    int fd, pid, r, status, i;
+
+    for (i = 0; i < bigbufnum; i++) {
+	bigbuf[i] = i;
+    }
+
+    fd = creat ("fork.out");
+    if (fd < 0) {
+	printf ("creating fork.out...failed (%d)\n", fd);
+	exit (-1001);
+    }
+
+    printf ("forking...\n");
+    pid = fork ();
+    if (pid < 0) {
+	printf ("...failed (%d)\n", pid);
+	exit (-1002);
+    }
+
+    if (pid == 0) {
+	/* child: scribble over its copy of the array and write to the file */
+	for (i = 0; i < bigbufnum; i++) {
+	    bigbuf[i] = -1;
+	}
+	if (write (fd, "child", 5) != 5) {
+	    exit (-1);
+	}
+	exit (123);
+    }
+
+    printf ("...passed (pid = %d)\n", pid);
+
+    printf ("joining %d...\n", pid);
+    r = join (pid, &status);
+    if (r != 1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1003);
+    } else if (status != 123) {
+	printf ("...failed (status from child = %d, should be 123)\n", status);
+	exit (-1004);
+    }
+    printf ("...passed (status from child = %d)\n", status);
+
+    printf ("validating the parent's array...\n");
+    for (i = 0; i < bigbufnum; i++) {
+	if (bigbuf[i] != i) {
+	    printf ("...failed (index %d: expected %d, read %d)\n",
+		    i, i, bigbuf[i]);
+	    exit (-1005);
+	}
+    }
+    printf ("...passed\n");
+
+    printf ("writing after the child...\n");
+    if (write (fd, "parent", 6) != 6) {
+	printf ("...failed\n");
+	exit (-1006);
+    }
+    close (fd);
+
+    fd = open ("fork.out");
+    r = read (fd, buffer, sizeof (buffer));
+    close (fd);
+    if (r != 11 || strncmp (buffer, "childparent", 11) != 0) {
+	printf ("...failed (read %d bytes)\n", r);
+	exit (-1007);
+    }
+    printf ("...passed\n");
+
+    printf ("joining %d again...\n", pid);
+    r = join (pid, &status);
+    if (r != -1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1008);
+    }
+    printf ("...passed\n");
+
+    return 0;
+}
@@ -0,0 +1,144 @@
+/* iovec1.c
+ *	Test readv, writev, pread and pwrite.
+ *
+ *	Writes a file from three buffers with one writev, reads it back into
+ *	buffers of different sizes with one readv, then patches and reads it
+ *	at explicit offsets with pwrite and pread, checking that neither
+ *	moves the file position.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+void
+do_check (char *what, char *buffer, char *truth, int len)
+{
+    int i;
+
+    printf ("validating %s...\n", what);
+    for (i = 0; i < len; i++) {
+	if (buffer[i] != truth[i]) {
+	    printf ("...failed (offset %d: expected %c, read %c)\n",
+		    i, truth[i], buffer[i]);
+	    exit (-1001);
+	}
+    }
+    printf ("...passed\n");
+}
+
+int
+main ()
+{
+    char *file = "iovec.out";
+    char *str = "roses are red\nviolets are blue\nI love Nachos\nand so do you\n";
+    char buffer[128], a[10], b[128];
+    struct iovec iov[3];
+    int fd, r, len;
+
+    len = strlen (str);
+
+    /* gather: one writev from three pieces of str */
+    fd = creat (file);
+    if (fd < 0) {
+	printf ("creating %s...failed (%d)\n", file, fd);
+	exit (-1002);
+    }
+    iov[0].iov_base = str, iov[0].iov_len = 14;
+    iov[1].iov_base = str + 14, iov[1].iov_len = 18;
+    iov[2].iov_base = str + 32, iov[2].iov_len = len - 32;
+    printf ("writing %d bytes with writev from 3 buffers...\n", len);
+    r = writev (fd, iov, 3);
+    if (r != len) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1003);
+    }
+    printf ("...passed\n");
+    close (fd);
+
+    /* scatter: one readv into two buffers of different sizes */
+    fd = open (file);
+    iov[0].iov_base = a, iov[0].iov_len = sizeof (a);
+    iov[1].iov_base = b, iov[1].iov_len = len - sizeof (a);
+    printf ("reading %d bytes with readv into 2 buffers...\n", len);
+    r = readv (fd, iov, 2);
+    if (r != len) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1004);
+    }
+    printf ("...passed\n");
+    do_check ("first buffer", a, str, sizeof (a));
+    do_check ("second buffer", b, str + sizeof (a), len - sizeof (a));
+
+    /* a readv at the end of the file reads nothing */
+    printf ("reading with readv at end of file...\n");
+    r = readv (fd, iov, 2);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1005);
+    }
+    printf ("...passed\n");
+
+    printf ("readv with a negative length...\n");
+    iov[0].iov_len = -1;
+    r = readv (fd, iov, 1);
+    if (r != -1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1006);
+    }
+    printf ("...passed\n");
+    close (fd);
+
+    /* pwrite and pread leave the file position alone */
+    fd = open (file);
+    printf ("patching \"red\" with pwrite...\n");
+    r = pwrite (fd, "RED", 3, 10);
+    if (r != 3) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1007);
+    }
+    printf ("...passed\n");
+
+    printf ("reading it back with pread...\n");
+    r = pread (fd, buffer, 3, 10);
+    if (r != 3) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1008);
+    }
+    do_check ("pread", buffer, "RED", 3);
+
+    printf ("reading from the start with read...\n");
+    r = read (fd, buffer, len);
+    if (r != len) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1009);
+    }
+    do_check ("read", buffer, "roses are RED\n", 14);
+    do_check ("rest of read", buffer + 14, str + 14, len - 14);
+
+    printf ("pread past the end of the file...\n");
+    r = pread (fd, buffer, 10, len);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1010);
+    }
+    printf ("...passed\n");
+
+    printf ("pread at a negative offset...\n");
+    r = pread (fd, buffer, 10, -1);
+    if (r != -1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1011);
+    }
+    printf ("...passed\n");
+    close (fd);
+
+    printf ("pwrite to the console...\n");
+    r = pwrite (1, "x", 1, 0);
+    if (r != -1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1012);
+    }
+    printf ("...passed\n");
+
+    return 0;
+}
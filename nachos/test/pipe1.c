@@ -0,0 +1,108 @@
+/* pipe1.c
+ *	Test pipes between a parent and a forked child.
+ *
+ *	The child writes a few kilobytes into a pipe in small pieces and
+ *	exits; the parent reads until end of file, validates what arrived and
+ *	joins the child. Writing to a pipe with no reader must fail.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+int bigbuf1[1024];
+int bigbuf2[1024];
+int bigbufnum = 1024;
+
+int
+main ()
+{
+    int fds[2];
+    int pid, r, i, len, total, status;
+
+    len = sizeof (bigbuf1);
+    for (i = 0; i < bigbufnum; i++) {
+	bigbuf1[i] = i;
+    }
+
+    printf ("creating a pipe...\n");
+    r = pipe (fds);
+    if (r != 0 || fds[0] < 0 || fds[1] < 0 || fds[0] == fds[1]) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1001);
+    }
+    printf ("...passed (read end %d, write end %d)\n", fds[0], fds[1]);
+
+    pid = fork ();
+    if (pid < 0) {
+	printf ("forking...failed (%d)\n", pid);
+	exit (-1002);
+    }
+
+    if (pid == 0) {
+	/* child: write the array 100 bytes at a time, then hang up */
+	close (fds[0]);
+	for (i = 0; i < len; i += 100) {
+	    int n = min (100, len - i);
+	    if (write (fds[1], (char *) bigbuf1 + i, n) != n) {
+		exit (-1);
+	    }
+	}
+	close (fds[1]);
+	exit (7);
+    }
+
+    /* the parent must drop its write end, or it never sees end of file */
+    close (fds[1]);
+
+    printf ("reading %d bytes from the pipe...\n", len);
+    total = 0;
+    while (total < len) {
+	r = read (fds[0], (char *) bigbuf2 + total, len - total);
+	if (r <= 0) {
+	    printf ("...failed (r = %d after %d bytes)\n", r, total);
+	    exit (-1003);
+	}
+	total += r;
+    }
+    printf ("...passed\n");
+
+    printf ("reading at end of file...\n");
+    r = read (fds[0], (char *) bigbuf2, 1);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1004);
+    }
+    printf ("...passed\n");
+    close (fds[0]);
+
+    printf ("validating...\n");
+    for (i = 0; i < bigbufnum; i++) {
+	if (bigbuf1[i] != bigbuf2[i]) {
+	    printf ("...failed (index %d: expected %d, read %d)\n",
+		    i, bigbuf1[i], bigbuf2[i]);
+	    exit (-1005);
+	}
+    }
+    printf ("...passed\n");
+
+    printf ("joining %d...\n", pid);
+    r = join (pid, &status);
+    if (r != 1 || status != 7) {
+	printf ("...failed (r = %d, status = %d)\n", r, status);
+	exit (-1006);
+    }
+    printf ("...passed (status from child = %d)\n", status);
+
+    printf ("writing to a pipe with no reader...\n");
+    pipe (fds);
+    close (fds[0]);
+    r = write (fds[1], "x", 1);
+    if (r != -1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1007);
+    }
+    printf ("...passed\n");
+    close (fds[1]);
+
+    return 0;
+}
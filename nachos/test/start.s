@@ -67,3 +67,14 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(pread, syscallPread)
+	SYSCALLSTUB(pwrite, syscallPwrite)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(aio_setup, syscallAioSetup)
+	SYSCALLSTUB(aio_read, syscallAioRead)
+	SYSCALLSTUB(aio_write, syscallAioWrite)
+	SYSCALLSTUB(aio_wait, syscallAioWait)
+	SYSCALLSTUB(pipe, syscallPipe)
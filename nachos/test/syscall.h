@@ -25,6 +25,17 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallPread		15
+#define syscallPwrite		16
+#define syscallMunmap		17
+#define syscallFork		18
+#define syscallAioSetup		19
+#define syscallAioRead		20
+#define syscallAioWrite		21
+#define syscallAioWait		22
+#define syscallPipe		23
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -108,7 +119,19 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
-/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
+/**
+ * Create a new child process that is a copy of the current process. The child
+ * has a new unique process ID and starts running by returning from fork()
+ * with the same register state as the parent. Its memory is shared with the
+ * parent copy-on-write, and its file descriptors refer to the same open files
+ * as the parent's, so file positions are shared.
+ *
+ * Returns the child's process ID in the parent (which can be passed to
+ * join()), 0 in the child, or -1 if an error occurred.
+ */
+int fork();
+
+/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink, pipe
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
  * disk or to a stream (such as console input, console output, and network
@@ -204,18 +227,105 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Create a pipe, a one-way channel whose data is buffered in the kernel, and
+ * store a file descriptor for its read end in fds[0] and one for its write
+ * end in fds[1]. Both ends are inherited by fork(), so a parent and child, or
+ * two children, can stream data through it without touching the disk.
+ *
+ * Unlike other streams, read() on a pipe waits until data is available,
+ * returning 0 only once every descriptor for the write end is closed. A
+ * write() waits while the pipe is full, and fails once every descriptor for
+ * the read end is closed. A write of at most a page is never interleaved
+ * with data from another write.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/* BATCHED FILE I/O SYSCALLS: readv, writev, pread, pwrite
+ *
+ * These transfer several buffers, or a buffer at an explicit file offset, in
+ * a single system call, so that record-oriented programs can issue one trap
+ * per batch instead of one per record.
+ */
+
+/**
+ * One buffer of a scatter/gather transfer: iov_len bytes starting at
+ * iov_base.
+ */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Attempt to read into the iovcnt buffers described by iov from the file or
+ * stream referred to by fileDescriptor. Each buffer is filled completely
+ * before the next one is used. At most 64 buffers may be passed at once.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * On success, the total number of bytes read is returned, and the file
+ * position is advanced by this number. As with read(), a total smaller than
+ * the sum of the buffer lengths is not an error.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns -1 if fileDescriptor is invalid, if iov or any of the buffers is
+ * invalid, or if any iov_len is negative.
  */
-int mmap(int fileDescriptor, char *address);
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Attempt to write the iovcnt buffers described by iov, in order, to the file
+ * or stream referred to by fileDescriptor. At most 64 buffers may be passed at
+ * once.
+ *
+ * On success, the total number of bytes written is returned, and the file
+ * position is advanced by this number. As with write(), it IS an error if
+ * this number is smaller than the number of bytes requested.
+ *
+ * Returns -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Attempt to read up to count bytes into buffer from the disk file referred
+ * to by fileDescriptor, starting at the given offset in the file. The file
+ * position is not changed.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred. It is an error
+ * if fileDescriptor refers to a stream or if offset is negative.
+ */
+int pread(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Attempt to write count bytes from buffer to the disk file referred to by
+ * fileDescriptor, starting at the given offset in the file. The file position
+ * is not changed.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred. It is an
+ * error if fileDescriptor refers to a stream or if offset is negative.
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Map the first length bytes of the file referenced by fileDescriptor into
+ * memory, in fresh virtual pages past the end of the stack. The file may be
+ * as large as 0x7FFFFFFF bytes; pages past the end of the file read as zero.
+ *
+ * Pages are loaded from the file when they are first touched, and dirty pages
+ * are written back to the file when they are evicted or unmapped. The mapping
+ * holds its own reference to the file, so fileDescriptor may be closed
+ * without affecting it. Mappings are removed when the process exits.
+ *
+ * Returns the address of the first mapped byte, or -1 if an error occurred.
+ */
+char *mmap(int fileDescriptor, int length);
+
+/**
+ * Remove the mapping that starts at address, flushing all remaining dirty
+ * pages to the file.
+ *
+ * Returns 0 on success, or -1 if address is not the start of a mapping.
+ */
+int munmap(char *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
@@ -246,6 +356,72 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* ASYNCHRONOUS I/O SYSCALLS: aio_setup, aio_read, aio_write, aio_wait.
+ *
+ * These start a transfer on a disk file and return at once, so that the
+ * program can compute while a kernel I/O thread does the transfer. Each
+ * finished transfer is posted to a completion ring in the program's memory,
+ * which the program can poll without a system call.
+ */
+
+/**
+ * One completion: the id returned by aio_read() or aio_write(), and the
+ * result pread() or pwrite() would have returned.
+ */
+struct aio_event {
+    int id;
+    int result;
+};
+
+/**
+ * A completion ring. The kernel posts events at events[tail % size] and
+ * advances tail; the program consumes them at events[head % size] and
+ * advances head. The ring really has size events.
+ */
+struct aio_ring {
+    int head;
+    int tail;
+    int size;
+    struct aio_event events[1];
+};
+
+/**
+ * Register ring, with room for entries events, as this process's completion
+ * ring, and reset it to empty. At most 256 entries are allowed. The ring may
+ * not be replaced while transfers are in flight.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int aio_setup(struct aio_ring *ring, int entries);
+
+/**
+ * Start reading up to count bytes into buffer from the disk file referred to
+ * by fileDescriptor, starting at the given offset in the file. The buffer
+ * must not be used until the completion is posted.
+ *
+ * Returns the id of the request, or -1 if no ring is registered, the ring has
+ * no room for another completion, or the arguments are invalid.
+ */
+int aio_read(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Start writing count bytes from buffer to the disk file referred to by
+ * fileDescriptor, starting at the given offset in the file. The buffer must
+ * not be changed until the completion is posted.
+ *
+ * Returns the id of the request, or -1 if an error occurred.
+ */
+int aio_write(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Wait until at least count completions are waiting in the ring, or no
+ * transfers are in flight.
+ *
+ * Returns the number of completions waiting in the ring, or -1 if no ring is
+ * registered.
+ */
+int aio_wait(int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,73 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * A pool of kernel threads that carry out asynchronous file transfers for
+ * user processes, so that a process can go on computing while its I/O is in
+ * flight.
+ *
+ * <p>
+ * A process submits a transfer as a <tt>Runnable</tt>; the first idle worker
+ * runs it, and the transfer itself posts its completion back to the process.
+ * Transfers are started in the order they are submitted, but with more than
+ * one worker they may complete in any order.
+ */
+public class AsyncIO {
+	/**
+	 * Allocate a new pool and start its workers.
+	 *
+	 * @param numWorkers the number of transfers that may be in progress at
+	 * once.
+	 */
+	public AsyncIO(int numWorkers) {
+		for (int i = 0; i < Math.max(numWorkers, 1); i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).setName("aio worker " + i).fork();
+		}
+	}
+
+	/**
+	 * Queue a transfer to be run by a worker.
+	 */
+	public void submit(Runnable transfer) {
+		lock.acquire();
+		queue.add(transfer);
+		submitted++;
+		work.wake();
+		lock.release();
+	}
+
+	/**
+	 * Return the number of transfers submitted so far.
+	 */
+	public int getSubmitted() {
+		return submitted;
+	}
+
+	private void work() {
+		while (true) {
+			lock.acquire();
+			while (queue.isEmpty())
+				work.sleep();
+			Runnable transfer = queue.removeFirst();
+			lock.release();
+
+			transfer.run();
+		}
+	}
+
+	private LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+	private int submitted = 0;
+
+	private Lock lock = new Lock();
+
+	private Condition work = new Condition(lock);
+}
@@ -0,0 +1,319 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of parsed COFF executables, so that repeatedly
+ * executing the same program does not open and parse it again.
+ *
+ * <p>
+ * Each entry owns the <tt>Coff</tt> that parsed the executable, and so keeps
+ * the executable open. Processes get a <tt>CachedCoff</tt> that shares the
+ * parsed headers. If page images are cached as well, each page is copied out
+ * of memory the first time it is loaded from disk, and later loads of that
+ * page are served from the copy. Entries are evicted least recently used
+ * first once the cache grows past its byte budget.
+ *
+ * <p>
+ * The stub file system does not expose modification times, so an entry is
+ * stamped with a generation number instead and is dropped whenever the kernel
+ * creates, writes or removes a file with the same name.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new COFF cache.
+	 *
+	 * @param budget the maximum number of bytes of headers and page images to
+	 * keep in memory.
+	 * @param cachePages <tt>true</tt> if page images should be cached along
+	 * with the headers.
+	 */
+	public CoffCache(int budget, boolean cachePages) {
+		this.budget = budget;
+		this.cachePages = cachePages;
+	}
+
+	/**
+	 * Return a loader for the named executable, parsing it only if it is not
+	 * already cached. The loader must be closed by the caller.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return a loader for the executable, or <tt>null</tt> if it could not
+	 * be opened or is not a valid executable.
+	 */
+	public CachedCoff open(String name) {
+		lock.acquire();
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			lock.release();
+			entry = load(name);
+			if (entry == null)
+				return null;
+			lock.acquire();
+			// another thread may have loaded it while the file was being parsed
+			Entry other = entries.get(name);
+			if (other != null) {
+				entry.coff.close();
+				entry = other;
+			}
+			else if (budget > 0) {
+				entries.put(name, entry);
+				size += entry.size;
+				evict(entry);
+			}
+			else {
+				entry.stale = true;
+			}
+		}
+		else {
+			hits++;
+		}
+		entry.users++;
+		lock.release();
+		return new CachedCoff(entry);
+	}
+
+	/**
+	 * Drop the named executable from the cache because the file may have
+	 * changed. Processes already running it keep their loader.
+	 *
+	 * @param name the name of the file that changed.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+		Entry entry = entries.remove(name);
+		if (entry != null) {
+			size -= entry.size;
+			retire(entry);
+		}
+		lock.release();
+	}
+
+	/**
+	 * Return the number of <tt>open()</tt> calls served from the cache.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	private Entry load(String name) {
+		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		if (executable == null)
+			return null;
+
+		Coff coff;
+		try {
+			coff = new Coff(executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			return null;
+		}
+
+		Entry entry = new Entry(name, coff, nextGeneration++);
+		entry.size = entryOverhead + coff.getNumSections() * sectionOverhead;
+		return entry;
+	}
+
+	/**
+	 * Evict least recently used entries until the cache fits its budget,
+	 * never evicting keep. The caller must hold the lock.
+	 */
+	private void evict(Entry keep) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (size > budget && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry == keep)
+				continue;
+			it.remove();
+			size -= entry.size;
+			retire(entry);
+		}
+	}
+
+	/**
+	 * Mark an entry as no longer in the cache, closing its executable once no
+	 * process is using it. The caller must hold the lock.
+	 */
+	private void retire(Entry entry) {
+		entry.stale = true;
+		entry.pages = null;
+		if (entry.users == 0)
+			entry.coff.close();
+	}
+
+	/**
+	 * Record a page image that was just loaded from disk into physical page
+	 * ppn, if it fits in the budget.
+	 */
+	private void addPage(Entry entry, int s, int spn, int ppn) {
+		lock.acquire();
+		if (cachePages && !entry.stale && entry.size + pageSize <= budget) {
+			if (entry.pages == null)
+				entry.pages = new byte[entry.coff.getNumSections()][][];
+			if (entry.pages[s] == null)
+				entry.pages[s] = new byte[entry.coff.getSection(s).getLength()][];
+			if (entry.pages[s][spn] == null) {
+				byte[] image = new byte[pageSize];
+				System.arraycopy(Machine.processor().getMemory(), ppn * pageSize,
+						image, 0, pageSize);
+				entry.pages[s][spn] = image;
+				entry.size += pageSize;
+				size += pageSize;
+				evict(entry);
+			}
+		}
+		lock.release();
+	}
+
+	private byte[] getPage(Entry entry, int s, int spn) {
+		byte[][][] pages = entry.pages;
+		if (pages == null || pages[s] == null)
+			return null;
+		return pages[s][spn];
+	}
+
+	private void release(Entry entry) {
+		lock.acquire();
+		entry.users--;
+		if (entry.stale && entry.users == 0)
+			entry.coff.close();
+		lock.release();
+	}
+
+	/**
+	 * A loader handed out by the cache. It shares the parsed headers of the
+	 * cached executable, and closing it only releases the cache entry.
+	 */
+	public class CachedCoff extends Coff {
+		private CachedCoff(Entry entry) {
+			this.entry = entry;
+			entryPoint = entry.coff.getEntryPoint();
+			sections = new CoffSection[entry.coff.getNumSections()];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = new CachedSection(this, s, entry.coff.getSection(s));
+		}
+
+		/**
+		 * Return a string that identifies this version of the executable,
+		 * suitable for sharing its read-only pages between processes.
+		 */
+		public String getIdentity() {
+			return entry.name + "#" + entry.generation;
+		}
+
+		public int getEntryPoint() {
+			return entryPoint;
+		}
+
+		/**
+		 * Return another loader for the same executable, to be closed
+		 * separately, e.g. for a child created by fork() that keeps loading
+		 * pages after its parent exits.
+		 */
+		public CachedCoff duplicate() {
+			lock.acquire();
+			entry.users++;
+			lock.release();
+			return new CachedCoff(entry);
+		}
+
+		public void close() {
+			if (sections != null) {
+				sections = null;
+				release(entry);
+			}
+		}
+
+		private Entry entry;
+	}
+
+	/**
+	 * A section of a cached executable. Pages are copied from the cached
+	 * image when there is one, and read from the executable otherwise.
+	 */
+	private class CachedSection extends CoffSection {
+		CachedSection(CachedCoff coff, int s, CoffSection section) {
+			super(coff, section.getName(), false, section.isReadOnly(),
+					section.getLength(), section.getFirstVPN());
+			this.entry = coff.entry;
+			this.s = s;
+			this.section = section;
+		}
+
+		public boolean isInitialzed() {
+			return section.isInitialzed();
+		}
+
+		public void loadPage(int spn, int ppn) {
+			byte[] image = getPage(entry, s, spn);
+			if (image != null) {
+				System.arraycopy(image, 0, Machine.processor().getMemory(),
+						ppn * pageSize, pageSize);
+				return;
+			}
+
+			section.loadPage(spn, ppn);
+			Machine.countCOFFRead();
+			addPage(entry, s, spn, ppn);
+		}
+
+		private Entry entry;
+
+		private int s;
+
+		private CoffSection section;
+	}
+
+	private static class Entry {
+		Entry(String name, Coff coff, int generation) {
+			this.name = name;
+			this.coff = coff;
+			this.generation = generation;
+		}
+
+		String name;
+
+		Coff coff;
+
+		int generation;
+
+		/** Page images indexed by section and page, filled in lazily. */
+		byte[][][] pages = null;
+
+		/** Bytes charged against the budget for this entry. */
+		int size;
+
+		/** Number of processes currently using this entry. */
+		int users = 0;
+
+		/** <tt>true</tt> once this entry has left the cache. */
+		boolean stale = false;
+	}
+
+	private int budget;
+
+	private boolean cachePages;
+
+	private int size = 0;
+
+	private int hits = 0;
+
+	private int nextGeneration = 0;
+
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private Lock lock = new Lock();
+
+	private static final int pageSize = Processor.pageSize;
+
+	/** Approximate bytes of memory used by an entry's headers. */
+	private static final int entryOverhead = 64, sectionOverhead = 48;
+}
@@ -0,0 +1,133 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A process's file descriptors. The table grows as descriptors are used, up
+ * to a fixed limit, and a new file always gets the lowest free descriptor.
+ *
+ * <p>
+ * Descriptors in use are marked in a bitmap of 64-bit words, and a summary
+ * word has a bit set for each word of the bitmap that is full. Finding the
+ * lowest free descriptor takes two bit scans, however many are in use.
+ */
+public class FileTable {
+	/**
+	 * Allocate a new, empty file table.
+	 *
+	 * @param maxFiles the most descriptors the table may hold, at most
+	 * <tt>maxLimit</tt>.
+	 */
+	public FileTable(int maxFiles) {
+		this.maxFiles = Math.max(Math.min(maxFiles, maxLimit), 2);
+
+		int numWords = (this.maxFiles + 63) / 64;
+		bits = new long[numWords];
+		wordsMask = numWords == 64 ? -1L : (1L << numWords) - 1;
+		files = new OpenFile[Math.min(initialSize, this.maxFiles)];
+	}
+
+	/**
+	 * Return the file a descriptor refers to, or <tt>null</tt> if it is not
+	 * in use.
+	 */
+	public OpenFile get(int fd) {
+		if (fd < 0 || fd >= files.length)
+			return null;
+		return files[fd];
+	}
+
+	/**
+	 * Return the lowest free descriptor, or -1 if every descriptor is in use.
+	 */
+	public int lowestFree() {
+		long notFull = ~summary & wordsMask;
+		if (notFull == 0)
+			return -1;
+
+		int word = Long.numberOfTrailingZeros(notFull);
+		int fd = word * 64 + Long.numberOfTrailingZeros(~bits[word]);
+		return fd < maxFiles ? fd : -1;
+	}
+
+	/**
+	 * Store a file under the lowest free descriptor.
+	 *
+	 * @return the descriptor, or -1 if every descriptor is in use.
+	 */
+	public int add(OpenFile file) {
+		int fd = lowestFree();
+		if (fd != -1)
+			set(fd, file);
+		return fd;
+	}
+
+	/**
+	 * Store a file under a free descriptor.
+	 */
+	public void set(int fd, OpenFile file) {
+		Lib.assertTrue(fd >= 0 && fd < maxFiles && file != null);
+		Lib.assertTrue(get(fd) == null);
+
+		if (fd >= files.length) {
+			OpenFile[] grown = new OpenFile[Math.min(Math.max(files.length * 2,
+					fd + 1), maxFiles)];
+			System.arraycopy(files, 0, grown, 0, files.length);
+			files = grown;
+		}
+		files[fd] = file;
+
+		int word = fd / 64;
+		bits[word] |= 1L << (fd % 64);
+		if (bits[word] == -1L)
+			summary |= 1L << word;
+	}
+
+	/**
+	 * Free a descriptor.
+	 *
+	 * @return the file it referred to, or <tt>null</tt> if it was not in use.
+	 */
+	public OpenFile remove(int fd) {
+		OpenFile file = get(fd);
+		if (file == null)
+			return null;
+
+		files[fd] = null;
+		int word = fd / 64;
+		bits[word] &= ~(1L << (fd % 64));
+		summary &= ~(1L << word);
+		return file;
+	}
+
+	/**
+	 * Return one more than the highest descriptor the table has room for
+	 * without growing.
+	 */
+	public int length() {
+		return files.length;
+	}
+
+	/**
+	 * Return the most descriptors this table may hold.
+	 */
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
+	private OpenFile[] files;
+
+	private long[] bits;
+
+	private long summary = 0;
+
+	/** The bits of <tt>summary</tt> that stand for a word of the bitmap. */
+	private long wordsMask;
+
+	private int maxFiles;
+
+	private static final int initialSize = 16;
+
+	/** The largest table the summary word can cover. */
+	public static final int maxLimit = 64 * 64;
+}
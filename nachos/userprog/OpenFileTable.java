@@ -0,0 +1,64 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel's table of open files. Every file descriptor of every process
+ * refers to an entry here. Descriptors copied by <tt>fork()</tt> share the
+ * entry, and with it the file position. Each entry counts the descriptors
+ * and transfers in flight using it, and the file is closed when the count
+ * drops to zero.
+ */
+public class OpenFileTable {
+	/**
+	 * Enter a newly opened file, with one reference.
+	 */
+	public void add(OpenFile file) {
+		Lib.assertTrue(!refs.containsKey(file));
+		refs.put(file, 1);
+	}
+
+	/**
+	 * Take one more reference on an open file.
+	 */
+	public void reference(OpenFile file) {
+		Integer count = refs.get(file);
+		Lib.assertTrue(count != null);
+		refs.put(file, count + 1);
+	}
+
+	/**
+	 * Drop one reference on an open file, closing it if it was the last.
+	 */
+	public void release(OpenFile file) {
+		Integer count = refs.get(file);
+		Lib.assertTrue(count != null);
+		if (count > 1) {
+			refs.put(file, count - 1);
+		}
+		else {
+			refs.remove(file);
+			file.close();
+		}
+	}
+
+	/**
+	 * Return the number of references on an open file, or 0 if it is not in
+	 * the table.
+	 */
+	public int getReferences(OpenFile file) {
+		Integer count = refs.get(file);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Return the number of open files in the table.
+	 */
+	public int getOpenCount() {
+		return refs.size();
+	}
+
+	private HashMap<OpenFile, Integer> refs = new HashMap<OpenFile, Integer>();
+}
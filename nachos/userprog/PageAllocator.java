@@ -0,0 +1,187 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A physical page allocator backed by a bitmap, one bit per page.
+ *
+ * <p>
+ * Single pages are handed out from a small stack of recently freed pages when
+ * possible, so the common allocate/free churn of process creation and
+ * teardown does not touch the bitmap at all. Otherwise the bitmap is scanned
+ * a word at a time starting from where the last search left off. Runs of
+ * contiguous pages aligned to their size, as superpages need, can also be
+ * allocated; they are freed a page at a time.
+ *
+ * <p>
+ * Every operation is atomic with respect to other kernel threads (it runs
+ * with interrupts disabled), and the free page count can be read at any time
+ * without synchronization.
+ */
+public class PageAllocator {
+	/**
+	 * Allocate a new page allocator with every page free.
+	 *
+	 * @param numPages the number of physical pages to manage.
+	 */
+	public PageAllocator(int numPages) {
+		this.numPages = numPages;
+		bitmap = new long[(numPages + 63) / 64];
+		hot = new int[Math.min(hotSize, numPages)];
+		for (int ppn = 0; ppn < numPages; ppn++)
+			bitmap[ppn / 64] |= 1L << (ppn % 64);
+		freeCount = numPages;
+	}
+
+	/**
+	 * Allocate one physical page.
+	 *
+	 * @return the physical page number, or -1 if no page is free.
+	 */
+	public int allocate() {
+		boolean intStatus = Machine.interrupt().disable();
+		int ppn = -1;
+
+		if (hotCount > 0) {
+			ppn = hot[--hotCount];
+		}
+		else if (freeCount > 0) {
+			for (int i = 0; i < bitmap.length; i++) {
+				int word = (rover + i) % bitmap.length;
+				if (bitmap[word] != 0) {
+					ppn = word * 64 + Long.numberOfTrailingZeros(bitmap[word]);
+					bitmap[word] &= ~(1L << (ppn % 64));
+					rover = word;
+					break;
+				}
+			}
+		}
+
+		if (ppn != -1)
+			freeCount--;
+		Machine.interrupt().restore(intStatus);
+		return ppn;
+	}
+
+	/**
+	 * Allocate <i>count</i> physically contiguous pages whose first page
+	 * number is a multiple of <i>count</i>, as a superpage needs.
+	 *
+	 * @param count the number of pages, a power of two.
+	 * @return the first physical page number of the run, or -1 if no aligned
+	 * run is free.
+	 */
+	public int allocateAligned(int count) {
+		Lib.assertTrue(count > 0 && Integer.bitCount(count) == 1);
+
+		boolean intStatus = Machine.interrupt().disable();
+		flushHot();
+
+		int start = -1;
+		for (int base = 0; base + count <= numPages && start == -1; base += count) {
+			int ppn = base;
+			while (ppn < base + count
+					&& (bitmap[ppn / 64] & (1L << (ppn % 64))) != 0)
+				ppn++;
+			if (ppn == base + count)
+				start = base;
+		}
+
+		if (start != -1) {
+			for (int ppn = start; ppn < start + count; ppn++)
+				bitmap[ppn / 64] &= ~(1L << (ppn % 64));
+			freeCount -= count;
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return start;
+	}
+
+	/**
+	 * Return one physical page to the allocator.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void free(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPages);
+
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(!isFree(ppn), "double free of ppn " + ppn);
+
+		if (hotCount < hot.length)
+			hot[hotCount++] = ppn;
+		else
+			bitmap[ppn / 64] |= 1L << (ppn % 64);
+		freeCount++;
+
+		if (freeHandler != null)
+			freeHandler.run();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Set a handler to be called each time a page is freed, with interrupts
+	 * disabled.
+	 *
+	 * @param handler the handler, or <tt>null</tt> for none.
+	 */
+	public void setFreeHandler(Runnable handler) {
+		freeHandler = handler;
+	}
+
+	/**
+	 * Return the number of free pages. This is a single field read, so it is
+	 * always safe to call without holding any lock.
+	 *
+	 * @return the number of free pages.
+	 */
+	public int freeCount() {
+		return freeCount;
+	}
+
+	/**
+	 * Test whether a physical page is free.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page is free.
+	 */
+	public boolean isFree(int ppn) {
+		if ((bitmap[ppn / 64] & (1L << (ppn % 64))) != 0)
+			return true;
+		for (int i = 0; i < hotCount; i++) {
+			if (hot[i] == ppn)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Move every page in the hot stack back into the bitmap. Interrupts must
+	 * be disabled.
+	 */
+	private void flushHot() {
+		while (hotCount > 0) {
+			int ppn = hot[--hotCount];
+			bitmap[ppn / 64] |= 1L << (ppn % 64);
+		}
+	}
+
+	private int numPages;
+
+	/** Bit <i>ppn</i> is set if page <i>ppn</i> is free. */
+	private long[] bitmap;
+
+	/** Word of the bitmap where the last single-page search succeeded. */
+	private int rover = 0;
+
+	/** Recently freed pages, reused before the bitmap is searched. */
+	private int[] hot;
+
+	private int hotCount = 0;
+
+	private volatile int freeCount;
+
+	private Runnable freeHandler = null;
+
+	private static final int hotSize = 16;
+}
@@ -0,0 +1,175 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A one-way channel between processes: a bounded ring buffer with a read end
+ * and a write end, each an <tt>OpenFile</tt> that can be stored in a file
+ * table.
+ *
+ * <p>
+ * A reader waits while the pipe is empty and a write end is still open, and
+ * then takes whatever is buffered, up to the amount it asked for. A writer
+ * waits while there is not room for its data, or for a page of it if it has
+ * more, so a write of at most a page is never interleaved with another. The
+ * sides wake each other a page at a time: a writer wakes readers after each
+ * page it copies in, and a reader wakes writers only once a page is free.
+ * When every write end is closed readers see end of file, and when every read
+ * end is closed writes fail.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new, empty pipe.
+	 *
+	 * @param capacity the most bytes the pipe buffers, at least a page.
+	 */
+	public Pipe(int capacity) {
+		buffer = new byte[Math.max(capacity, pageSize)];
+	}
+
+	/**
+	 * Return the end of the pipe that is read from.
+	 */
+	public OpenFile getReadEnd() {
+		return readEnd;
+	}
+
+	/**
+	 * Return the end of the pipe that is written to.
+	 */
+	public OpenFile getWriteEnd() {
+		return writeEnd;
+	}
+
+	private int read(byte[] buf, int offset, int length) {
+		if (length < 0 || offset < 0 || length > buf.length - offset)
+			return -1;
+
+		lock.acquire();
+		while (count == 0 && writerOpen && length > 0)
+			readable.sleep();
+
+		int amount = Math.min(length, count);
+		for (int copied = 0; copied < amount;) {
+			int piece = Math.min(amount - copied, buffer.length - head);
+			System.arraycopy(buffer, head, buf, offset + copied, piece);
+			head = (head + piece) % buffer.length;
+			copied += piece;
+		}
+		count -= amount;
+
+		if (amount > 0 && buffer.length - count >= pageSize)
+			writable.wakeAll();
+		lock.release();
+
+		return amount;
+	}
+
+	private int write(byte[] buf, int offset, int length) {
+		if (length < 0 || offset < 0 || length > buf.length - offset)
+			return -1;
+
+		lock.acquire();
+		int written = 0;
+		while (written < length) {
+			int wanted = Math.min(length - written, pageSize);
+			while (readerOpen && buffer.length - count < wanted)
+				writable.sleep();
+			if (!readerOpen)
+				break;
+
+			int amount = Math.min(length - written, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+			for (int copied = 0; copied < amount;) {
+				int piece = Math.min(amount - copied, buffer.length - tail);
+				System.arraycopy(buf, offset + written + copied, buffer, tail,
+						piece);
+				tail = (tail + piece) % buffer.length;
+				copied += piece;
+			}
+			count += amount;
+			written += amount;
+
+			readable.wakeAll();
+		}
+		lock.release();
+
+		return written > 0 || length == 0 ? written : -1;
+	}
+
+	private void closeReadEnd() {
+		lock.acquire();
+		readerOpen = false;
+		writable.wakeAll();
+		lock.release();
+	}
+
+	private void closeWriteEnd() {
+		lock.acquire();
+		writerOpen = false;
+		readable.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * One end of a pipe. A pipe has no file position, so the positional
+	 * transfers fail.
+	 */
+	private class PipeEnd extends OpenFile {
+		PipeEnd(boolean reading) {
+			super(null, reading ? "pipe (read end)" : "pipe (write end)");
+			this.reading = reading;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			return -1;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			return -1;
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			return reading && open ? Pipe.this.read(buf, offset, length) : -1;
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			return !reading && open ? Pipe.this.write(buf, offset, length) : -1;
+		}
+
+		public void close() {
+			if (!open)
+				return;
+
+			open = false;
+			if (reading)
+				closeReadEnd();
+			else
+				closeWriteEnd();
+		}
+
+		private boolean reading;
+
+		private boolean open = true;
+	}
+
+	private OpenFile readEnd = new PipeEnd(true);
+
+	private OpenFile writeEnd = new PipeEnd(false);
+
+	private byte[] buffer;
+
+	/** The index of the first buffered byte, and the number buffered. */
+	private int head = 0, count = 0;
+
+	private boolean readerOpen = true, writerOpen = true;
+
+	private Lock lock = new Lock();
+
+	private Condition readable = new Condition(lock);
+
+	private Condition writable = new Condition(lock);
+
+	private static final int pageSize = Processor.pageSize;
+}
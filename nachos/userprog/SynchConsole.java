@@ -7,15 +7,42 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is queued in a ring buffer, which the console's send interrupt
+ * drains one byte at a time, so a write returns as soon as its bytes are
+ * queued. A writer only waits if the buffer is full, and is then woken once
+ * half of it has drained rather than for every byte. How soon queued bytes
+ * start going out depends on the buffering mode: at once if
+ * <tt>unbuffered</tt>, at each newline if <tt>lineBuffered</tt>, and only
+ * when the buffer fills if <tt>fullyBuffered</tt>. In every mode, reading the
+ * console or calling <tt>flush()</tt> sends whatever is queued.
  */
 public class SynchConsole {
 	/**
-	 * Allocate a new <tt>SynchConsole</tt>.
+	 * Allocate a new, unbuffered <tt>SynchConsole</tt>.
 	 * 
 	 * @param console the underlying serial console to use.
 	 */
 	public SynchConsole(SerialConsole console) {
+		this(console, defaultBufferSize, unbuffered);
+	}
+
+	/**
+	 * Allocate a new <tt>SynchConsole</tt>.
+	 * 
+	 * @param console the underlying serial console to use.
+	 * @param bufferSize the most output bytes queued at once.
+	 * @param mode <tt>unbuffered</tt>, <tt>lineBuffered</tt> or
+	 * <tt>fullyBuffered</tt>.
+	 */
+	public SynchConsole(SerialConsole console, int bufferSize, int mode) {
+		Lib.assertTrue(mode == unbuffered || mode == lineBuffered
+				|| mode == fullyBuffered);
+
 		this.console = console;
+		this.mode = mode;
+		outBuffer = new byte[Math.max(bufferSize, 1)];
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -43,6 +70,8 @@ public class SynchConsole {
 	public int readByte(boolean block) {
 		int value;
 		boolean intStatus = Machine.interrupt().disable();
+		// a prompt should be seen before the program waits for the answer
+		startSending();
 		readLock.acquire();
 
 		if (block || charAvailable) {
@@ -76,17 +105,67 @@ public class SynchConsole {
 	}
 
 	/**
-	 * Send a byte. Blocks until the send is complete.
+	 * Queue a byte to be sent. Blocks only if the output buffer is full.
 	 * 
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
 		writeLock.acquire();
-		console.writeByte(value);
-		writeWait.P();
+		queueByte(value);
 		writeLock.release();
 	}
 
+	/**
+	 * Send every queued byte, and wait until the last has gone out.
+	 */
+	public void flush() {
+		boolean intStatus = Machine.interrupt().disable();
+		startSending();
+		while (count > 0 || sending) {
+			flushWaiters++;
+			flushWait.P();
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private void queueByte(int value) {
+		boolean intStatus = Machine.interrupt().disable();
+		while (count == outBuffer.length) {
+			startSending();
+			spaceWaiting = true;
+			spaceWait.P();
+		}
+
+		outBuffer[(head + count) % outBuffer.length] = (byte) value;
+		count++;
+
+		if (mode == unbuffered || count == outBuffer.length
+				|| (mode == lineBuffered && (byte) value == '\n'))
+			startSending();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Drain the output buffer until it is empty. Interrupts must be disabled.
+	 */
+	private void startSending() {
+		draining = true;
+		if (!sending)
+			sendNext();
+	}
+
+	private void sendNext() {
+		if (count == 0) {
+			draining = false;
+			return;
+		}
+
+		sending = true;
+		console.writeByte(outBuffer[head]);
+		head = (head + 1) % outBuffer.length;
+		count--;
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to write this as a file.
 	 * 
@@ -97,7 +176,18 @@ public class SynchConsole {
 	}
 
 	private void sendInterrupt() {
-		writeWait.V();
+		sending = false;
+		if (draining)
+			sendNext();
+
+		if (spaceWaiting && count <= outBuffer.length / 2) {
+			spaceWaiting = false;
+			spaceWait.V();
+		}
+		if (count == 0 && !sending) {
+			for (; flushWaiters > 0; flushWaiters--)
+				flushWait.V();
+		}
 	}
 
 	private boolean charAvailable = false;
@@ -110,7 +200,37 @@ public class SynchConsole {
 
 	private Semaphore readWait = new Semaphore(0);
 
-	private Semaphore writeWait = new Semaphore(0);
+	/** Queued output bytes: <tt>count</tt> of them from <tt>head</tt> on. */
+	private byte[] outBuffer;
+
+	private int head = 0, count = 0;
+
+	private int mode;
+
+	/** Set while the device is sending a byte. */
+	private boolean sending = false;
+
+	/** Set while queued bytes are being sent, until none are left. */
+	private boolean draining = false;
+
+	private boolean spaceWaiting = false;
+
+	private Semaphore spaceWait = new Semaphore(0);
+
+	private int flushWaiters = 0;
+
+	private Semaphore flushWait = new Semaphore(0);
+
+	/** Queued bytes are sent as soon as they are written. */
+	public static final int unbuffered = 0;
+
+	/** Queued bytes are sent when a newline is written. */
+	public static final int lineBuffered = 1;
+
+	/** Queued bytes are sent when the buffer fills. */
+	public static final int fullyBuffered = 2;
+
+	private static final int defaultBufferSize = 1024;
 
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
@@ -144,8 +264,11 @@ public class SynchConsole {
 			if (!canWrite)
 				return 0;
 
+			// one write is not interleaved with another
+			writeLock.acquire();
 			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
+				queueByte(buf[offset + i]);
+			writeLock.release();
 
 			return length;
 		}
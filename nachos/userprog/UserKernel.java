@@ -1,10 +1,12 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
+import java.util.HashMap;
 
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
+import nachos.filesys.BufferCache;
+import nachos.filesys.DiskFileSystem;
 
 /**
  * A kernel that can support multiple user processes.
@@ -18,28 +20,120 @@ public class UserKernel extends ThreadedKernel {
 	}
 	
 	/**
-	 * Return one free page number.
+	 * Return one free page number, or -1 if there is none.
 	 */
 	public int getFreePage() {
-		page_lock.acquire();
-		if(free_pages.size() == 0) return -1;
-		int page = free_pages.get(0);
-		free_pages.remove(0);
-		page_lock.release();
-		return page;
+		return free_pages.allocate();
 	}
 	
 	/**
 	 * Add one free page.
 	 */
 	public void addFreePage(int ppn) {
-		page_lock.acquire();
-		free_pages.add(ppn);
-		page_lock.release();
+		free_pages.free(ppn);
 	}
 	
+	/**
+	 * Return the number of free pages. Safe to call without holding any lock.
+	 */
 	public int freePagesCount(){
-		return free_pages.size();
+		return free_pages.freeCount();
+	}
+	
+	/**
+	 * Take one more reference on a physical page that is being shared, e.g.
+	 * by a copy-on-write fork. The caller must hold <tt>page_lock</tt>.
+	 */
+	public static void referencePage(int ppn) {
+		Lib.assertTrue(page_lock.isHeldByCurrentThread());
+		// a page nobody has shared yet has exactly one owner
+		page_refs[ppn] = Math.max(page_refs[ppn], 1) + 1;
+	}
+	
+	/**
+	 * Drop one reference on a physical page, returning it to the free list
+	 * when the last reference goes away. The caller must hold
+	 * <tt>page_lock</tt>.
+	 */
+	public static void releasePage(int ppn) {
+		Lib.assertTrue(page_lock.isHeldByCurrentThread());
+		if (page_refs[ppn] > 1)
+			page_refs[ppn] --;
+		else {
+			page_refs[ppn] = 0;
+			// The last user of a shared executable page is gone
+			if (shared_page_keys[ppn] != null) {
+				shared_pages.remove(shared_page_keys[ppn]);
+				shared_page_keys[ppn] = null;
+			}
+			free_pages.free(ppn);
+		}
+	}
+	
+	/**
+	 * Return <tt>true</tt> if the executable page identified by key is
+	 * resident in the shared page cache. The caller must hold
+	 * <tt>page_lock</tt>.
+	 */
+	public static boolean isSharedPage(String key) {
+		return shared_pages.containsKey(key);
+	}
+	
+	/**
+	 * Look up a read-only executable page in the shared page cache, taking a
+	 * reference on it if it is resident. The caller must hold
+	 * <tt>page_lock</tt>.
+	 * 
+	 * @return the physical page number, or -1 if the page is not cached.
+	 */
+	public static int findSharedPage(String key) {
+		Integer ppn = shared_pages.get(key);
+		if (ppn == null)
+			return -1;
+		referencePage(ppn);
+		return ppn;
+	}
+	
+	/**
+	 * Record a freshly loaded read-only executable page in the shared page
+	 * cache, so later processes running the same executable can map it. The
+	 * caller must hold <tt>page_lock</tt>.
+	 */
+	public static void addSharedPage(String key, int ppn) {
+		Lib.assertTrue(page_lock.isHeldByCurrentThread());
+		shared_pages.put(key, ppn);
+		shared_page_keys[ppn] = key;
+	}
+	
+	/**
+	 * Return the number of processes referencing a physical page.
+	 */
+	public static int pageReferences(int ppn) {
+		return Math.max(page_refs[ppn], 1);
+	}
+	
+	/**
+	 * Enter a newly opened file in the kernel's open file table, with one
+	 * reference for the file table entry it is about to be stored in.
+	 */
+	public static void addFile(OpenFile file) {
+		open_files.add(file);
+	}
+	
+	/**
+	 * Take one more reference on an open file that is shared between file
+	 * tables, e.g. after a fork.
+	 */
+	public static void referenceFile(OpenFile file) {
+		open_files.reference(file);
+	}
+	
+	/**
+	 * Drop one reference on an open file, closing it when the last file table
+	 * entry referring to it goes away.
+	 */
+	public static void releaseFile(OpenFile file) {
+		open_files.release(file);
 	}
 	
 	
@@ -51,15 +145,30 @@ public class UserKernel extends ThreadedKernel {
 	public void initialize(String[] args) {
 		super.initialize(args);
 
-		console = new SynchConsole(Machine.console());
+		int cacheBlocks = Config.getInteger("UserKernel.bufferCacheBlocks", 64);
+		if (fileSystem != null && cacheBlocks > 0)
+			fileSystem = new BufferCache(fileSystem, cacheBlocks,
+					Config.getInteger("UserKernel.readAhead", 4),
+					Config.getInteger("UserKernel.syncInterval", 50000));
+
+		String buffering = Config.getString("UserKernel.consoleBuffering", "none");
+		console = new SynchConsole(Machine.console(),
+				Config.getInteger("UserKernel.consoleBufferSize", 1024),
+				buffering.equals("full") ? SynchConsole.fullyBuffered
+						: buffering.equals("line") ? SynchConsole.lineBuffered
+								: SynchConsole.unbuffered);
 		
 		// Part 2 modifications:
-		free_pages = new LinkedList<Integer>();
+		free_pages = new PageAllocator(Machine.processor().getNumPhysPages());
 		process_lock = new Lock();
 		page_lock = new Lock();
-		// Assign physical page number to the free pages
-		for (int i = 0; i < Machine.processor().getNumPhysPages(); i ++)
-			free_pages.add(i);
+		page_refs = new int[Machine.processor().getNumPhysPages()];
+		open_files = new OpenFileTable();
+		shared_pages = new HashMap<String, Integer>();
+		shared_page_keys = new String[Machine.processor().getNumPhysPages()];
+		aio = new AsyncIO(Config.getInteger("UserKernel.aioWorkers", 2));
+		coff_cache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize", 64 * 1024),
+				Config.getBoolean("UserKernel.coffCachePages", true));
 
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -150,10 +259,30 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
+	/**
+	 * Write back everything the kernel still holds before the machine stops:
+	 * queued console output, dirty cached blocks and the file system's
+	 * journal. Called both by
+	 * <tt>terminate()</tt> and by the <tt>halt()</tt> syscall, which halts
+	 * the machine without terminating the kernel.
+	 */
+	public void shutdown() {
+		// nothing is written back after the machine halts
+		console.flush();
+		if (fileSystem instanceof BufferCache) {
+			((BufferCache) fileSystem).sync();
+			((BufferCache) fileSystem).printStats();
+		}
+		// metadata changes are only on disk once the journal commits them
+		if (BufferCache.uncached(fileSystem) instanceof DiskFileSystem)
+			((DiskFileSystem) BufferCache.uncached(fileSystem)).sync();
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		shutdown();
 		super.terminate();
 	}
 
@@ -165,9 +294,22 @@ public class UserKernel extends ThreadedKernel {
 	
 	// Added variables
 	// Data structure that holds the free pages in the kernel
-	public static LinkedList<Integer> free_pages;
+	public static PageAllocator free_pages;
 	public static Lock process_lock;
 	public static Lock page_lock;
+	// Number of processes sharing each physical page, 0 if never shared
+	public static int[] page_refs;
+	// Every file open in some process, with the number of file table
+	// entries and transfers using it
+	public static OpenFileTable open_files;
+	// Read-only executable pages shared between processes, keyed by
+	// executable, section and page, and the reverse mapping for each frame
+	public static HashMap<String, Integer> shared_pages;
+	public static String[] shared_page_keys;
+	// Parsed executables, so that exec does not reopen and reparse them
+	public static CoffCache coff_cache;
+	// Kernel threads doing asynchronous file I/O for processes
+	public static AsyncIO aio;
 	public static int pid = 0;
 	// Number of running processes
 	public static int process_num = 0;
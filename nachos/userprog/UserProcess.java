@@ -47,18 +47,24 @@ public class UserProcess {
 		children_exit_status = new HashMap<Integer, Integer>();
 		// This holds all children of the process
 		all_children = new LinkedList<Integer>();
-		lock = new Lock();
-		cv = new Condition(lock);
-		// Initialize file table
-		file_table = new OpenFile[table_size];
+		// One lock and condition are shared by every process, so that a parent
+		// waiting in join() is woken by its child's exit
+		if (lock == null)
+		{
+			lock = new Lock();
+			cv = new Condition(lock);
+		}
+		// Initialize file table, which grows as files are opened
+		file_table = new FileTable(Config.getInteger("UserProcess.maxFiles", 1024));
 		// File descriptors 0 and 1 must refer to standard input and standard output.
-		file_table[0] = UserKernel.console.openForReading();
-		file_table[1] = UserKernel.console.openForWriting();
-		// May have to modify StubFileSystem openfile count
-		// Ask TA about this.
-		// Initialize the rest of files to null
-		for (int i = 2; i < file_table.length; i ++)
-			file_table[i] = null;
+		OpenFile stdin = UserKernel.console.openForReading();
+		OpenFile stdout = UserKernel.console.openForWriting();
+		UserKernel.addFile(stdin);
+		UserKernel.addFile(stdout);
+		file_table.set(0, stdin);
+		file_table.set(1, stdout);
+		aio_lock = new Lock();
+		aio_done = new Condition(aio_lock);
 	}
 
 	/**
@@ -330,6 +336,9 @@ public class UserProcess {
 		paddr_offset = Processor.offsetFromAddress(vaddr);
 		// Get virtual page number
 		vpn = Processor.pageFromAddress(vaddr);
+		// The kernel writing into a shared page needs its own copy too
+		if (isCopyOnWrite(vpn) && !handleCopyOnWrite(vpn))
+			return 0;
 		// Loop through our pageTable, find next valid page
 		for (int i = 0; i < pageTable.length; i ++)
 		{
@@ -357,6 +366,8 @@ public class UserProcess {
 		// Loop until error or the entire length is read
 		while (bytes_left > 0)
 		{
+			if (isCopyOnWrite(vpn) && !handleCopyOnWrite(vpn))
+				return total_amount;
 			// Loop through our pageTable, find next valid page
 			for (int i = 0; i < pageTable.length; i ++)
 			{
@@ -404,20 +415,16 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		// Parsed executables are cached, so repeated exec skips the disk
+		CoffCache.CachedCoff executable = UserKernel.coff_cache.open(name);
 		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
+			Lib.debug(dbgProcess, "\topen or coff load failed");
 			return false;
 		}
+		coff = executable;
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
-		}
+		// Identifies this executable's read-only pages in the shared page cache
+		executable_id = executable.getIdentity();
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -489,7 +496,19 @@ public class UserProcess {
 		System.out.println("Got in loadSections");
 		// Begin mutex block
 		UserKernel.page_lock.acquire();
-		if (numPages > Machine.processor().getNumPhysPages()) {
+		// Read-only pages already loaded by another copy of this executable
+		// are shared, so only the remaining pages need free frames
+		int shared_count = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly())
+				continue;
+			for (int i = 0; i < section.getLength(); i++) {
+				if (UserKernel.isSharedPage(sharedPageKey(s, i)))
+					shared_count ++;
+			}
+		}
+		if (numPages - shared_count > UserKernel.free_pages.freeCount()) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			UserKernel.page_lock.release();
@@ -511,10 +530,16 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 				temp_vpn = vpn;
-				ppn = UserKernel.free_pages.removeLast();
+				ppn = section.isReadOnly() ? UserKernel.findSharedPage(sharedPageKey(s, i)) : -1;
+				if (ppn == -1)
+				{
+					ppn = UserKernel.free_pages.allocate();
+					// Cannot assume virtual addresses == physical addresses
+					section.loadPage(i, ppn);
+					if (section.isReadOnly())
+						UserKernel.addSharedPage(sharedPageKey(s, i), ppn);
+				}
 				used_free_pages.add(ppn);
-				// Cannot assume virtual addresses == physical addresses
-				section.loadPage(i, ppn);
 				if (!section.isReadOnly())
 					//pageTable[page_count].readOnly = true;
 					pageTable[page_count] = new TranslationEntry(vpn, ppn, true, false, false, false);
@@ -528,7 +553,8 @@ public class UserProcess {
 		temp_vpn ++;
 		for (int i = 0; i < available_pages; i ++)
 		{
-			ppn = UserKernel.free_pages.removeLast();
+			ppn = UserKernel.free_pages.allocate();
+			used_free_pages.add(ppn);
 			pageTable[page_count + i] = new TranslationEntry(temp_vpn + i, ppn, true, false, false, false);
 		}
 		UserKernel.page_lock.release();
@@ -537,6 +563,14 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Return the key of page spn of section s of this executable in the
+	 * kernel's shared page cache.
+	 */
+	protected String sharedPageKey(int s, int spn) {
+		return executable_id + "#" + s + "#" + spn;
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
@@ -547,7 +581,8 @@ public class UserProcess {
 		while (!used_free_pages.isEmpty())
 		{
 			int page = used_free_pages.removeLast();
-			UserKernel.free_pages.add(page);
+			// Pages shared with a forked process are only freed by the last user
+			UserKernel.releasePage(page);
 		}
 		UserKernel.page_lock.release();
 		// End mutex block
@@ -564,6 +599,14 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked child resumes with a copy of its parent's registers
+		if (forked_registers != null) {
+			for (int i = 0; i < processor.numUserRegisters; i++)
+				processor.writeRegister(i, forked_registers[i]);
+			forked_registers = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -588,6 +631,8 @@ public class UserProcess {
 			return -1;
 		}
 		
+		// Output and files the program has already written should not be lost
+		((UserKernel) Kernel.kernel).shutdown();
 		Machine.halt();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -603,16 +648,20 @@ public class UserProcess {
 		// ...and leave it as the top of handleExit so that we
 		// can grade your implementation.
 
+		// Asynchronous transfers still write into our memory
+		aio_lock.acquire();
+		while (aio_in_flight > 0)
+			aio_done.sleep();
+		aio_lock.release();
+
 		unloadSections();
 		coff.close();
 		// Reset file table
-		for (int i = 0; i < table_size; i ++)
+		for (int i = 0; i < file_table.length(); i ++)
 		{
-			if (file_table[i] != null)
-			{
-				file_table[i].close();
-				file_table[i] = null;
-			}
+			OpenFile file = file_table.remove(i);
+			if (file != null)
+				UserKernel.releaseFile(file);
 		}
 		// Now we need to reset this process's children's parent pointer
 		for (UserProcess child : children.values())
@@ -628,7 +677,7 @@ public class UserProcess {
 				parent.children_exit_status.put(pid, status);
 			// Begin mutex block
 			lock.acquire();
-			cv.wake();
+			cv.wakeAll();
 			lock.release();
 		}
 		
@@ -779,34 +828,26 @@ public class UserProcess {
 		 System.out.println("After join on child");
 		*/
 		
-		if (children_exit_status.containsKey(processID))
+		// Wait for the child to exit if it is still running; it may be held
+		// back by the scheduler or by load control for a long time
+		lock.acquire();
+		while (!children_exit_status.containsKey(processID))
+			cv.sleep();
+		lock.release();
+
+		if (children_exit_status.get(processID) != null)
 		{
-			if (children_exit_status.get(processID) != null)
-			{
-				// The child process exit normally
-				// Need to transfer the child's exit status to its parent
-				byte[] buffer = Lib.bytesFromInt(children_exit_status.get(processID));
-				writeVirtualMemory(status, buffer);
-				return 1;
-			}
-			else
-			{
-				// Child did not exit normally, unhandled exception happened
-				return 0;
-			}
+			// The child process exit normally
+			// Need to transfer the child's exit status to its parent
+			byte[] buffer = Lib.bytesFromInt(children_exit_status.get(processID));
+			writeVirtualMemory(status, buffer);
+			return 1;
 		}
 		else
 		{
-			cv.sleep();
+			// Child did not exit normally, unhandled exception happened
+			return 0;
 		}
-		
-		
-//		while (!children_exit_status.containsKey(processID))
-//		{
-//			
-//		}
-		System.out.println("Join should not reach here, returning -1");
-		return -1;
 	}
 	
 	/**
@@ -828,22 +869,15 @@ public class UserProcess {
 			System.out.println("Error: file == null, returning -1");
 			return -1;
 		}
-		int file_descriptor = -1;
-		// Loop through the file table to find a next available open file
-		for (int i = 2; i < file_table.length; i ++)
-		{
-			if (file_table[i] == null)
-			{
-				file_descriptor = i;
-				break;
-			}
-		}
+		// The lowest descriptor not in use
+		int file_descriptor = file_table.lowestFree();
 		if (file_descriptor == -1)
 		{
 			System.out.println("Error: file_descriptor == -1, no avaiable open file, returning -1");
 			return -1;
 		}
 		// Check if it is okay to access the given file
+		UserKernel.coff_cache.invalidate(file);
 		OpenFile temp = ThreadedKernel.fileSystem.open(file, true);
 		if (temp == null)
 		{
@@ -851,7 +885,8 @@ public class UserProcess {
 			return -1;
 		}
 		// Connect the open file with our file table
-		file_table[file_descriptor] = temp;
+		UserKernel.addFile(temp);
+		file_table.set(file_descriptor, temp);
 		return file_descriptor;
 		// Do we need to close the file after it is created?
 		// Ask TA about this
@@ -876,16 +911,8 @@ public class UserProcess {
 			System.out.println("Error: file == null, returning -1");
 			return -1;
 		}
-		int file_descriptor = -1;
-		// Loop through the file table to find a next available open file
-		for (int i = 2; i < file_table.length; i ++)
-		{
-			if (file_table[i] == null)
-			{
-				file_descriptor = i;
-				break;
-			}
-		}
+		// The lowest descriptor not in use
+		int file_descriptor = file_table.lowestFree();
 		if (file_descriptor == -1)
 		{
 			System.out.println("Error: file_descriptor == -1, no avaiable open file, returning -1");
@@ -900,7 +927,8 @@ public class UserProcess {
 			return -1;
 		}
 		// Connect the open file with our file table
-		file_table[file_descriptor] = temp;
+		UserKernel.addFile(temp);
+		file_table.set(file_descriptor, temp);
 		return file_descriptor;
 	}
 	
@@ -927,9 +955,10 @@ public class UserProcess {
 	private int handleRead(int fileDescriptor, int vaddr, int count)
 	{
 		// Check if fileDescriptor and count are valid
-		if (fileDescriptor < 0 || fileDescriptor > table_size - 1 || file_table[fileDescriptor] == null || count < 0)
+		OpenFile file = file_table.get(fileDescriptor);
+		if (file == null || count < 0)
 		{
-			System.out.println("Error: fileDescriptor < 0 || fileDescriptor > table_size - 1 || file_table[fileDescriptor] == null || count < 0, returning -1");
+			System.out.println("Error: file_table.get(fileDescriptor) == null || count < 0, returning -1");
 			return -1;
 		}
 		// Multiple reads in case of larger files
@@ -940,7 +969,7 @@ public class UserProcess {
 			// Page sized read
 			byte[] page_buffer = new byte[pageSize];
 			int bytesToRead = Math.min(pageSize, bytesLeft);
-			int bytesRead = file_table[fileDescriptor].read(page_buffer, 0, bytesToRead);
+			int bytesRead = file.read(page_buffer, 0, bytesToRead);
 			// Check for read failure
 			if (bytesRead == -1)
 			{
@@ -962,6 +991,9 @@ public class UserProcess {
 			totalBytesRead += bytesRead;
 			// Update vaddr
 			vaddr += bytesRead;
+			// A short read means the end of a file, or all a stream has for now
+			if (bytesRead < bytesToRead)
+				break;
 		}
 		return totalBytesRead;
 	}
@@ -986,11 +1018,14 @@ public class UserProcess {
 	private int handleWrite(int fileDescriptor, int vaddr, int count)
 	{
 		// Check if fileDescriptor and count are valid
-		if (fileDescriptor < 0 || fileDescriptor > table_size - 1 || file_table[fileDescriptor] == null || count < 0)
+		OpenFile file = file_table.get(fileDescriptor);
+		if (file == null || count < 0)
 		{
-			System.out.println("Error: fileDescriptor < 0 || fileDescriptor > table_size - 1 || file_table[fileDescriptor] == null || count < 0, returning -1");
+			System.out.println("Error: file_table.get(fileDescriptor) == null || count < 0, returning -1");
 			return -1;
 		}
+		// A cached copy of an executable being overwritten is out of date
+		UserKernel.coff_cache.invalidate(file.getName());
 		// Multiple writes in case of larger files
 		int totalBytesWritten = 0;
 		int bytesLeft = count;
@@ -1000,7 +1035,7 @@ public class UserProcess {
 			byte[] page_buffer = new byte[pageSize];
 			int bytesToWrite = Math.min(pageSize, bytesLeft);
 			int bytesRead = readVirtualMemory(vaddr, page_buffer, 0, bytesToWrite);
-			int bytesWritten = file_table[fileDescriptor].write(page_buffer, 0, bytesRead);
+			int bytesWritten = file.write(page_buffer, 0, bytesRead);
 			if (bytesWritten == -1)
 			{
 				System.out.println("Error: bytesWritten == -1, returning -1");
@@ -1036,13 +1071,13 @@ public class UserProcess {
 	private int handleClose(int fileDescriptor)
 	{
 		// Check if fileDescriptor is valid
-		if (fileDescriptor < 0 || fileDescriptor > table_size - 1 || file_table[fileDescriptor] == null)
+		OpenFile file = file_table.remove(fileDescriptor);
+		if (file == null)
 		{
-			System.out.println("Error: fileDescriptor < 0 || fileDescriptor > table_size - 1 || file_table[fileDescriptor], returning -1");
+			System.out.println("Error: file_table.remove(fileDescriptor) == null, returning -1");
 			return -1;
 		}
-		file_table[fileDescriptor].close();
-		file_table[fileDescriptor] = null;
+		UserKernel.releaseFile(file);
 		return 0;
 	}
 	
@@ -1066,6 +1101,7 @@ public class UserProcess {
 			System.out.println("Error: file == null, returning -1");
 			return -1;
 		}
+		UserKernel.coff_cache.invalidate(file);
 		boolean removed = ThreadedKernel.fileSystem.remove(file);
 		if (!removed)
 		{
@@ -1074,12 +1110,526 @@ public class UserProcess {
 		}
 		return 0;
 	}
-	
+
+	/**
+	 * Create a pipe and store a descriptor for its read end in fds[0] and one
+	 * for its write end in fds[1]. Both are the lowest free descriptors, and
+	 * are shared with children created by fork() like any other.
+	 *
+	 * Returns 0 on success, or -1 if two descriptors are not free or fds is
+	 * invalid.
+	 */
+	private int handlePipe(int vaddr)
+	{
+		Pipe pipe = new Pipe(Config.getInteger("UserProcess.pipeSize", 4 * pageSize));
+		OpenFile readEnd = pipe.getReadEnd();
+		OpenFile writeEnd = pipe.getWriteEnd();
+		int read_fd = file_table.add(readEnd);
+		if (read_fd == -1)
+		{
+			System.out.println("Error: read_fd == -1, no available file descriptor, returning -1");
+			return -1;
+		}
+		int write_fd = file_table.add(writeEnd);
+		if (write_fd == -1)
+		{
+			System.out.println("Error: write_fd == -1, no available file descriptor, returning -1");
+			file_table.remove(read_fd);
+			return -1;
+		}
+		byte[] fds = new byte[8];
+		Lib.bytesFromInt(fds, 0, read_fd);
+		Lib.bytesFromInt(fds, 4, write_fd);
+		if (writeVirtualMemory(vaddr, fds) != fds.length)
+		{
+			System.out.println("Error: cannot write fds, returning -1");
+			file_table.remove(read_fd);
+			file_table.remove(write_fd);
+			return -1;
+		}
+		UserKernel.addFile(readEnd);
+		UserKernel.addFile(writeEnd);
+		return 0;
+	}
+
+	/**
+	 * Create a child process that is a copy of this one. Instead of loading
+	 * the executable again, the child gets a copy of this process's page
+	 * table: every page is shared, and pages that were writable become
+	 * read-only in both processes until one of them writes to it, at which
+	 * point <tt>handleCopyOnWrite()</tt> gives the writer its own copy. The
+	 * child's file table refers to the same open files, so file positions are
+	 * shared.
+	 *
+	 * Returns the child's process ID in the parent and 0 in the child, or -1
+	 * on error.
+	 */
+	protected int handleFork()
+	{
+		UserProcess child = newUserProcess();
+		// the child closes its executable on exit, just like the parent
+		child.coff = ((CoffCache.CachedCoff) coff).duplicate();
+		child.numPages = numPages;
+		child.argc = argc;
+		child.argv = argv;
+		copyAddressSpace(child);
+
+		// The child's descriptors share our open files, and their positions
+		for (int i = 0; i < child.file_table.length(); i ++)
+		{
+			OpenFile file = child.file_table.remove(i);
+			if (file != null)
+				UserKernel.releaseFile(file);
+		}
+		for (int i = 0; i < file_table.length(); i ++)
+		{
+			OpenFile file = file_table.get(i);
+			if (file != null)
+			{
+				UserKernel.referenceFile(file);
+				child.file_table.set(i, file);
+			}
+		}
+
+		// The child returns from the same syscall with 0
+		Processor processor = Machine.processor();
+		child.forked_registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i ++)
+			child.forked_registers[i] = processor.readRegister(i);
+		child.forked_registers[Processor.regV0] = 0;
+		child.forked_registers[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+
+		child.parent = this;
+		children.put(child.pid, child);
+		all_children.add(child.pid);
+		child.thread = new UThread(child);
+		child.thread.setName(thread.getName() + " (fork)").fork();
+		return child.pid;
+	}
+
+	/**
+	 * Give a child created by <tt>handleFork()</tt> a copy-on-write copy of
+	 * this process's page table.
+	 */
+	protected void copyAddressSpace(UserProcess child)
+	{
+		if (copy_on_write == null)
+			copy_on_write = new boolean[pageTable.length];
+		child.copy_on_write = new boolean[pageTable.length];
+		child.pageTable = new TranslationEntry[pageTable.length];
+		// Begin mutex block
+		UserKernel.page_lock.acquire();
+		for (int i = 0; i < pageTable.length; i ++)
+		{
+			TranslationEntry entry = pageTable[i];
+			if (entry.valid)
+			{
+				UserKernel.referencePage(entry.ppn);
+				if (!entry.readOnly || copy_on_write[i])
+				{
+					entry.readOnly = true;
+					copy_on_write[i] = true;
+					child.copy_on_write[i] = true;
+				}
+			}
+			child.pageTable[i] = new TranslationEntry(entry);
+		}
+		child.used_free_pages.addAll(used_free_pages);
+		UserKernel.page_lock.release();
+		// End mutex block
+		// The parent's own entries changed under the processor
+		Machine.processor().setPageTable(pageTable);
+	}
+
+	/**
+	 * Return <tt>true</tt> if vpn is a page shared copy-on-write with another
+	 * process.
+	 */
+	protected boolean isCopyOnWrite(int vpn)
+	{
+		return copy_on_write != null && vpn >= 0 && vpn < copy_on_write.length
+				&& copy_on_write[vpn];
+	}
+
+	/**
+	 * Give this process a private, writable copy of the shared page at vpn.
+	 * If every other sharer has already copied or exited, the page is simply
+	 * made writable again. Returns <tt>false</tt> if no physical page is
+	 * available for the copy.
+	 */
+	protected boolean handleCopyOnWrite(int vpn)
+	{
+		TranslationEntry entry = pageTable[vpn];
+		// Begin mutex block
+		UserKernel.page_lock.acquire();
+		if (UserKernel.pageReferences(entry.ppn) > 1)
+		{
+			if (UserKernel.free_pages.freeCount() == 0)
+			{
+				UserKernel.page_lock.release();
+				System.out.println("Error: no free page for copy-on-write, returning false");
+				return false;
+			}
+			int ppn = UserKernel.free_pages.allocate();
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, entry.ppn * pageSize, memory, ppn * pageSize, pageSize);
+			used_free_pages.remove(Integer.valueOf(entry.ppn));
+			UserKernel.releasePage(entry.ppn);
+			used_free_pages.add(ppn);
+			entry.ppn = ppn;
+		}
+		entry.readOnly = false;
+		copy_on_write[vpn] = false;
+		UserKernel.page_lock.release();
+		// End mutex block
+		return true;
+	}
+
+	/**
+	 * Read from the file or stream referred to by fileDescriptor into the
+	 * iovcnt buffers described by the iovec array at iov, filling each buffer
+	 * completely before moving on to the next. The whole iovec array is copied
+	 * in from user memory with a single transfer, so a batch of records costs
+	 * one trap and one file table lookup instead of one per record.
+	 *
+	 * Returns the total number of bytes read, which is smaller than the sum of
+	 * the buffer lengths only if the end of the file (or the available stream
+	 * data) was reached. On error, returns -1.
+	 */
+	private int handleReadv(int fileDescriptor, int iov, int iovcnt)
+	{
+		OpenFile file = getOpenFile(fileDescriptor);
+		int[] vectors = readIovecs(iov, iovcnt);
+		if (file == null || vectors == null)
+		{
+			System.out.println("Error: invalid file descriptor or iovec array, returning -1");
+			return -1;
+		}
+		byte[] page_buffer = new byte[pageSize];
+		int totalBytesRead = 0;
+		for (int i = 0; i < iovcnt; i ++)
+		{
+			int base = vectors[2 * i], length = vectors[2 * i + 1];
+			int bytesRead = readFileToUser(file, -1, base, length, page_buffer);
+			if (bytesRead == -1)
+				return -1;
+			totalBytesRead += bytesRead;
+			// A short segment means there is nothing more to read right now
+			if (bytesRead < length)
+				break;
+		}
+		return totalBytesRead;
+	}
+
+	/**
+	 * Write the iovcnt buffers described by the iovec array at iov, in order,
+	 * to the file or stream referred to by fileDescriptor.
+	 *
+	 * Returns the total number of bytes written. As with write(), it is an
+	 * error if fewer bytes than requested could be written, in which case -1
+	 * is returned.
+	 */
+	private int handleWritev(int fileDescriptor, int iov, int iovcnt)
+	{
+		OpenFile file = getOpenFile(fileDescriptor);
+		int[] vectors = readIovecs(iov, iovcnt);
+		if (file == null || vectors == null)
+		{
+			System.out.println("Error: invalid file descriptor or iovec array, returning -1");
+			return -1;
+		}
+		byte[] page_buffer = new byte[pageSize];
+		int totalBytesWritten = 0;
+		for (int i = 0; i < iovcnt; i ++)
+		{
+			int base = vectors[2 * i], length = vectors[2 * i + 1];
+			int bytesWritten = writeUserToFile(file, -1, base, length, page_buffer);
+			if (bytesWritten == -1)
+				return -1;
+			totalBytesWritten += bytesWritten;
+		}
+		return totalBytesWritten;
+	}
+
+	/**
+	 * Read up to count bytes into buffer from the disk file referred to by
+	 * fileDescriptor, starting at byte offset in the file. The file position
+	 * is not changed.
+	 *
+	 * Returns the number of bytes read, or -1 if the descriptor is invalid,
+	 * refers to a stream, or offset is negative.
+	 */
+	private int handlePread(int fileDescriptor, int vaddr, int count, int offset)
+	{
+		OpenFile file = getOpenFile(fileDescriptor);
+		if (file == null || count < 0 || offset < 0)
+		{
+			System.out.println("Error: file == null || count < 0 || offset < 0, returning -1");
+			return -1;
+		}
+		return readFileToUser(file, offset, vaddr, count, new byte[pageSize]);
+	}
+
+	/**
+	 * Write count bytes from buffer to the disk file referred to by
+	 * fileDescriptor, starting at byte offset in the file. The file position
+	 * is not changed.
+	 *
+	 * Returns the number of bytes written, or -1 if an error occurred.
+	 */
+	private int handlePwrite(int fileDescriptor, int vaddr, int count, int offset)
+	{
+		OpenFile file = getOpenFile(fileDescriptor);
+		if (file == null || count < 0 || offset < 0)
+		{
+			System.out.println("Error: file == null || count < 0 || offset < 0, returning -1");
+			return -1;
+		}
+		return writeUserToFile(file, offset, vaddr, count, new byte[pageSize]);
+	}
+
+	/**
+	 * Register the completion ring for asynchronous I/O: a header of three
+	 * ints (head, tail and size), followed by entries events of two ints
+	 * (request id and result). The kernel posts a completion at
+	 * tail and advances it; the program consumes completions at head and
+	 * advances that. The ring may only be replaced while no request is in
+	 * flight.
+	 *
+	 * Returns 0, or -1 if the ring is not writable or entries is out of
+	 * range.
+	 */
+	private int handleAioSetup(int ring, int entries)
+	{
+		if (entries <= 0 || entries > maxAioEntries || aio_in_flight > 0)
+		{
+			System.out.println("Error: bad ring size or requests in flight, returning -1");
+			return -1;
+		}
+		byte[] header = new byte[aioHeaderSize + entries * aioEventSize];
+		Lib.bytesFromInt(header, 8, entries);
+		if (writeVirtualMemory(ring, header) != header.length)
+		{
+			System.out.println("Error: invalid ring address, returning -1");
+			return -1;
+		}
+		aio_ring = ring;
+		aio_ring_size = entries;
+		aio_tail = 0;
+		return 0;
+	}
+
+	/**
+	 * Start reading or writing count bytes between buffer and the disk file
+	 * referred to by fileDescriptor, at byte offset in the file, and return
+	 * at once. A kernel I/O worker does the transfer while the program runs,
+	 * and then posts the request id with the result that pread() or pwrite()
+	 * would have returned to the completion ring. The buffer must not be
+	 * touched until then.
+	 *
+	 * Returns the request id, or -1 if no ring is registered, the ring could
+	 * overflow, or the arguments are invalid.
+	 */
+	private int handleAioSubmit(int fileDescriptor, int vaddr, int count, int offset, boolean writing)
+	{
+		OpenFile file = getOpenFile(fileDescriptor);
+		if (file == null || count < 0 || offset < 0 || aio_ring_size == 0)
+		{
+			System.out.println("Error: file == null || count < 0 || offset < 0 || no ring, returning -1");
+			return -1;
+		}
+		aio_lock.acquire();
+		int ready = aioReady();
+		// every request in flight must have a free entry to complete into
+		if (ready < 0 || ready + aio_in_flight >= aio_ring_size)
+		{
+			aio_lock.release();
+			System.out.println("Error: completion ring full, returning -1");
+			return -1;
+		}
+		aio_in_flight ++;
+		final int id = aio_next_id ++;
+		aio_lock.release();
+
+		// The request keeps the file open even if the program closes it
+		UserKernel.referenceFile(file);
+		final OpenFile aio_file = file;
+		final int aio_vaddr = vaddr, aio_count = count, aio_offset = offset;
+		final boolean aio_writing = writing;
+		UserKernel.aio.submit(new Runnable() {
+			public void run() {
+				completeAio(id, aio_file, aio_vaddr, aio_count, aio_offset, aio_writing);
+			}
+		});
+		return id;
+	}
+
+	/**
+	 * Wait until at least count completions are in the ring, or no requests
+	 * are left in flight.
+	 *
+	 * Returns the number of completions in the ring, or -1 if no ring is
+	 * registered.
+	 */
+	private int handleAioWait(int count)
+	{
+		if (aio_ring_size == 0)
+		{
+			System.out.println("Error: no completion ring, returning -1");
+			return -1;
+		}
+		aio_lock.acquire();
+		while (aio_in_flight > 0 && aioReady() >= 0 && aioReady() < count)
+			aio_done.sleep();
+		int ready = aioReady();
+		aio_lock.release();
+		return ready;
+	}
+
+	/**
+	 * Do one asynchronous transfer. Runs in a kernel I/O worker.
+	 */
+	private void completeAio(int id, OpenFile file, int vaddr, int count, int offset, boolean writing)
+	{
+		byte[] page_buffer = new byte[pageSize];
+		int result;
+		if (writing)
+			result = writeUserToFile(file, offset, vaddr, count, page_buffer);
+		else
+			result = readFileToUser(file, offset, vaddr, count, page_buffer);
+		UserKernel.releaseFile(file);
+
+		aio_lock.acquire();
+		byte[] event = new byte[aioEventSize];
+		Lib.bytesFromInt(event, 0, id);
+		Lib.bytesFromInt(event, 4, result);
+		writeVirtualMemory(aio_ring + aioHeaderSize + (aio_tail % aio_ring_size) * aioEventSize, event);
+		aio_tail ++;
+		writeVirtualMemory(aio_ring + 4, Lib.bytesFromInt(aio_tail));
+		aio_in_flight --;
+		aio_done.wakeAll();
+		aio_lock.release();
+	}
+
+	/**
+	 * Return the number of completions the program has not consumed yet, or
+	 * -1 if the ring's head cannot be read.
+	 */
+	private int aioReady()
+	{
+		byte[] head = new byte[4];
+		if (readVirtualMemory(aio_ring, head) != head.length)
+			return -1;
+		int ready = aio_tail - Lib.bytesToInt(head, 0);
+		return ready < 0 || ready > aio_ring_size ? -1 : ready;
+	}
+
+	/**
+	 * Return the open file referred to by fileDescriptor, or <tt>null</tt> if
+	 * the descriptor is out of range or not in use.
+	 */
+	protected OpenFile getOpenFile(int fileDescriptor)
+	{
+		return file_table.get(fileDescriptor);
+	}
+
+	/**
+	 * Return the process ID of this process.
+	 */
+	public int getPid()
+	{
+		return pid;
+	}
+
+	/**
+	 * Copy an array of iovcnt <tt>struct iovec</tt> from user memory. Each
+	 * entry is a buffer address followed by a length, 4 bytes each. Returns
+	 * the entries flattened as base/length pairs, or <tt>null</tt> if the
+	 * array could not be read or contains a negative length.
+	 */
+	private int[] readIovecs(int iov, int iovcnt)
+	{
+		if (iovcnt < 0 || iovcnt > maxIovecs)
+			return null;
+		byte[] raw = new byte[iovcnt * iovecSize];
+		if (readVirtualMemory(iov, raw) != raw.length)
+			return null;
+		int[] vectors = new int[iovcnt * 2];
+		for (int i = 0; i < vectors.length; i ++)
+			vectors[i] = Lib.bytesToInt(raw, i * 4);
+		for (int i = 0; i < iovcnt; i ++)
+		{
+			if (vectors[2 * i + 1] < 0)
+				return null;
+		}
+		return vectors;
+	}
+
+	/**
+	 * Read up to count bytes from file into user memory at vaddr, a page at a
+	 * time through buffer. If pos is -1 the file's own position is used and
+	 * advanced, otherwise the read starts at pos and the position is left
+	 * alone. Returns the number of bytes transferred, or -1 on error.
+	 */
+	private int readFileToUser(OpenFile file, int pos, int vaddr, int count, byte[] buffer)
+	{
+		int totalBytesRead = 0;
+		while (totalBytesRead < count)
+		{
+			int bytesToRead = Math.min(buffer.length, count - totalBytesRead);
+			int bytesRead;
+			if (pos == -1)
+				bytesRead = file.read(buffer, 0, bytesToRead);
+			else
+				bytesRead = file.read(pos + totalBytesRead, buffer, 0, bytesToRead);
+			if (bytesRead == -1)
+				return -1;
+			if (bytesRead == 0)
+				break;
+			if (writeVirtualMemory(vaddr + totalBytesRead, buffer, 0, bytesRead) != bytesRead)
+				return -1;
+			totalBytesRead += bytesRead;
+			if (bytesRead < bytesToRead)
+				break;
+		}
+		return totalBytesRead;
+	}
+
+	/**
+	 * Write count bytes from user memory at vaddr to file, a page at a time
+	 * through buffer. pos has the same meaning as in
+	 * <tt>readFileToUser()</tt>. Returns count, or -1 if any part of the
+	 * buffer was invalid or the file accepted fewer bytes than requested.
+	 */
+	private int writeUserToFile(OpenFile file, int pos, int vaddr, int count, byte[] buffer)
+	{
+		UserKernel.coff_cache.invalidate(file.getName());
+		int totalBytesWritten = 0;
+		while (totalBytesWritten < count)
+		{
+			int bytesToWrite = Math.min(buffer.length, count - totalBytesWritten);
+			if (readVirtualMemory(vaddr + totalBytesWritten, buffer, 0, bytesToWrite) != bytesToWrite)
+				return -1;
+			int bytesWritten;
+			if (pos == -1)
+				bytesWritten = file.write(buffer, 0, bytesToWrite);
+			else
+				bytesWritten = file.write(pos + totalBytesWritten, buffer, 0, bytesToWrite);
+			if (bytesWritten != bytesToWrite)
+				return -1;
+			totalBytesWritten += bytesWritten;
+		}
+		return totalBytesWritten;
+	}
+
 
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14,
+			syscallPread = 15, syscallPwrite = 16, syscallFork = 18,
+			syscallAioSetup = 19, syscallAioRead = 20, syscallAioWrite = 21,
+			syscallAioWait = 22, syscallPipe = 23;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -1133,6 +1683,52 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  pread(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  pwrite(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  aio_setup(struct aio_ring *ring, int entries);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  aio_read(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>int  aio_write(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>22</td>
+	 * <td><tt>int  aio_wait(int count);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>23</td>
+	 * <td><tt>int  pipe(int fds[2]);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -1164,6 +1760,26 @@ public class UserProcess {
 			return handleExec(a0, a1, a2);
 		case syscallJoin:
 			return handleJoin(a0, a1);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
+		case syscallPread:
+			return handlePread(a0, a1, a2, a3);
+		case syscallPwrite:
+			return handlePwrite(a0, a1, a2, a3);
+		case syscallFork:
+			return handleFork();
+		case syscallAioSetup:
+			return handleAioSetup(a0, a1);
+		case syscallAioRead:
+			return handleAioSubmit(a0, a1, a2, a3, false);
+		case syscallAioWrite:
+			return handleAioSubmit(a0, a1, a2, a3, true);
+		case syscallAioWait:
+			return handleAioWait(a0);
+		case syscallPipe:
+			return handlePipe(a0);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -1193,6 +1809,13 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionReadOnly:
+			// A write to a page shared by fork() is not an error
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			if (isCopyOnWrite(vpn) && handleCopyOnWrite(vpn))
+				break;
+			// Otherwise fall through and kill the process
+
 		default:
 			unhandled = true;
 			// Should I handle this here?
@@ -1228,8 +1851,12 @@ public class UserProcess {
 	
 	//Added variables
 	private static final int maxStrLen = 256;
-	private static final int table_size = 16;
-	private OpenFile[] file_table;
+	private static final int iovecSize = 8;
+	private static final int maxIovecs = 64;
+	private static final int maxAioEntries = 256;
+	private static final int aioHeaderSize = 12;
+	private static final int aioEventSize = 8;
+	private FileTable file_table;
 	private int pid;
 	private UserProcess parent = null;
 	private HashMap<Integer, UserProcess> children;
@@ -1239,4 +1866,16 @@ public class UserProcess {
 	public static Lock lock;
 	public static Condition cv;
 	private boolean unhandled;
+	// Name and length of the executable, used to share its read-only pages
+	protected String executable_id;
+	// Pages shared read-only with a forked parent or child, indexed by vpn
+	protected boolean[] copy_on_write;
+	// Registers a forked child starts with instead of the program entry state
+	private int[] forked_registers;
+	// Asynchronous I/O: the completion ring in user memory, the kernel's copy
+	// of its tail, and the requests handed to the I/O workers but not done
+	private int aio_ring, aio_ring_size = 0, aio_tail;
+	private int aio_in_flight = 0, aio_next_id = 0;
+	private Lock aio_lock;
+	private Condition aio_done;
 }
@@ -0,0 +1,136 @@
+package nachos.vm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha), driven by used bits.
+ *
+ * <p>
+ * Resident pages are split between <i>T1</i>, pages referenced once since
+ * they were faulted in, and <i>T2</i>, pages referenced again. Each list has
+ * a ghost list of keys recently evicted from it, <i>B1</i> and <i>B2</i>. A
+ * fault on a page in <i>B1</i> means <i>T1</i> was too small, and a fault on
+ * a page in <i>B2</i> means <i>T2</i> was; either one moves the target size
+ * of <i>T1</i> accordingly, and brings the page back into <i>T2</i>.
+ *
+ * <p>
+ * Since only used bits are available, references are collected when a victim
+ * is needed, in the manner of CAR: a frame in <i>T1</i> found referenced
+ * moves to <i>T2</i>, and one in <i>T2</i> moves to its most recently used
+ * end. The reference that faulted a page in is not counted.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+	public void initialize(int numFrames) {
+		capacity = numFrames;
+		keys = new long[numFrames];
+		fresh = new boolean[numFrames];
+	}
+
+	public void pageIn(int ppn, long key) {
+		keys[ppn] = key;
+		fresh[ppn] = true;
+
+		if (b1.contains(key)) {
+			target = Math.min(capacity, target + Math.max(b2.size() / b1.size(), 1));
+			b1.remove(key);
+			t2.add(ppn);
+		}
+		else if (b2.contains(key)) {
+			target = Math.max(0, target - Math.max(b1.size() / b2.size(), 1));
+			b2.remove(key);
+			t2.add(ppn);
+		}
+		else {
+			t1.add(ppn);
+		}
+
+		// keep the history to at most one directory's worth per list
+		while (t1.size() + b1.size() > capacity && !b1.isEmpty())
+			removeFirst(b1);
+		while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity)
+			removeFirst(b2.isEmpty() ? b1 : b2);
+	}
+
+	public void pageFreed(int ppn) {
+		t1.remove(ppn);
+		t2.remove(ppn);
+	}
+
+	public int selectVictim(Frames frames, long incoming) {
+		for (Integer ppn : new ArrayList<Integer>(t1)) {
+			if (referenced(frames, ppn)) {
+				t1.remove(ppn);
+				t2.add(ppn);
+			}
+		}
+		for (Integer ppn : new ArrayList<Integer>(t2)) {
+			if (referenced(frames, ppn)) {
+				t2.remove(ppn);
+				t2.add(ppn);
+			}
+		}
+
+		boolean fromT1 = !t1.isEmpty()
+				&& (t1.size() > target || (t1.size() == target && b2
+						.contains(incoming)));
+
+		int ppn = removeFirstUnpinned(fromT1 ? t1 : t2, frames);
+		if (ppn == -1) {
+			fromT1 = !fromT1;
+			ppn = removeFirstUnpinned(fromT1 ? t1 : t2, frames);
+		}
+		if (ppn != -1)
+			(fromT1 ? b1 : b2).add(keys[ppn]);
+		return ppn;
+	}
+
+	private boolean referenced(Frames frames, int ppn) {
+		if (frames.isPinned(ppn))
+			return false;
+		boolean used = frames.testAndClearUsed(ppn);
+		if (fresh[ppn]) {
+			fresh[ppn] = false;
+			return false;
+		}
+		return used;
+	}
+
+	private static int removeFirstUnpinned(LinkedHashSet<Integer> list,
+			Frames frames) {
+		for (Iterator<Integer> i = list.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (!frames.isPinned(ppn)) {
+				i.remove();
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	private static void removeFirst(LinkedHashSet<Long> list) {
+		Iterator<Long> i = list.iterator();
+		i.next();
+		i.remove();
+	}
+
+	private int capacity;
+
+	/** The target size of T1. */
+	private int target = 0;
+
+	/** The page held by each frame. */
+	private long[] keys;
+
+	/** Whether each frame has been scanned since it was filled. */
+	private boolean[] fresh;
+
+	private LinkedHashSet<Integer> t1 = new LinkedHashSet<Integer>();
+
+	private LinkedHashSet<Integer> t2 = new LinkedHashSet<Integer>();
+
+	private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+
+	private LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+}
@@ -0,0 +1,41 @@
+package nachos.vm;
+
+/**
+ * The classic single-handed clock. The hand sweeps over the frames in order,
+ * clearing used bits, and evicts the first unpinned frame whose used bit was
+ * already clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	public void initialize(int numFrames) {
+		resident = new boolean[numFrames];
+	}
+
+	public void pageIn(int ppn, long key) {
+		resident[ppn] = true;
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int selectVictim(Frames frames, long incoming) {
+		// the first sweep clears every used bit, so the second one finds a
+		// victim unless every frame is pinned
+		for (int i = 0; i < 2 * resident.length; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+
+			if (!resident[ppn] || frames.isPinned(ppn))
+				continue;
+			if (!frames.testAndClearUsed(ppn)) {
+				resident[ppn] = false;
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	private boolean[] resident;
+
+	private int hand = 0;
+}
@@ -0,0 +1,165 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * CLOCK-Pro (Jiang, Chen and Zhang), which approximates LIRS with clock
+ * hands.
+ *
+ * <p>
+ * Resident pages are <i>hot</i> or <i>cold</i>. A cold page starts a test
+ * period when it is faulted in or referenced; if it is referenced again
+ * during the test period its reuse distance is short, and it becomes hot. The
+ * cold hand evicts unreferenced cold pages, and remembers the keys of those
+ * still in their test period as non-resident cold pages. The hot hand turns
+ * unreferenced hot pages cold whenever there are too many hot pages.
+ *
+ * <p>
+ * The number of cold frames adapts: a fault on a page that is still in its
+ * test period means a larger cold allocation would have kept it, and a test
+ * period that expires without one means a smaller one would have done. The
+ * reference that faulted a page in is not counted.
+ */
+public class ClockProPolicy implements PageReplacementPolicy {
+	public void initialize(int numFrames) {
+		resident = new boolean[numFrames];
+		hot = new boolean[numFrames];
+		test = new boolean[numFrames];
+		fresh = new boolean[numFrames];
+		keys = new long[numFrames];
+		coldTarget = Math.max(numFrames / 10, 1);
+	}
+
+	public void pageIn(int ppn, long key) {
+		resident[ppn] = true;
+		fresh[ppn] = true;
+		keys[ppn] = key;
+
+		if (nonresident.remove(key)) {
+			// reused within its test period: cold pages needed more room
+			coldTarget = Math.min(coldTarget + 1, resident.length - 1);
+			hot[ppn] = true;
+			test[ppn] = false;
+			hotCount++;
+		}
+		else {
+			hot[ppn] = false;
+			test[ppn] = true;
+		}
+	}
+
+	public void pageFreed(int ppn) {
+		if (resident[ppn] && hot[ppn])
+			hotCount--;
+		resident[ppn] = false;
+	}
+
+	public int selectVictim(Frames frames, long incoming) {
+		while (hotCount > resident.length - coldTarget && runHotHand(frames))
+			;
+
+		// each cold page is passed at most twice: once to end its test period
+		// or promote it, once more to evict it
+		for (int i = 0; i < 2 * resident.length; i++) {
+			int ppn = coldHand;
+			coldHand = (coldHand + 1) % resident.length;
+
+			if (!resident[ppn] || hot[ppn] || frames.isPinned(ppn))
+				continue;
+
+			if (referenced(frames, ppn)) {
+				if (test[ppn]) {
+					hot[ppn] = true;
+					test[ppn] = false;
+					hotCount++;
+					while (hotCount > resident.length - coldTarget
+							&& runHotHand(frames))
+						;
+				}
+				else {
+					test[ppn] = true;
+				}
+				continue;
+			}
+
+			if (test[ppn]) {
+				nonresident.add(keys[ppn]);
+				if (nonresident.size() > resident.length)
+					expireTest();
+			}
+			resident[ppn] = false;
+			return ppn;
+		}
+
+		// every cold page is pinned; demote a hot one and take it
+		for (int i = 0; i < resident.length; i++) {
+			int ppn = (coldHand + i) % resident.length;
+			if (resident[ppn] && !frames.isPinned(ppn)) {
+				pageFreed(ppn);
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Advance the hot hand until it turns one unreferenced hot page cold.
+	 *
+	 * @return <tt>true</tt> if a page was turned cold.
+	 */
+	private boolean runHotHand(Frames frames) {
+		for (int i = 0; i < 2 * resident.length; i++) {
+			int ppn = hotHand;
+			hotHand = (hotHand + 1) % resident.length;
+
+			if (!resident[ppn] || !hot[ppn] || frames.isPinned(ppn))
+				continue;
+			if (!referenced(frames, ppn)) {
+				hot[ppn] = false;
+				test[ppn] = false;
+				hotCount--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * End the oldest non-resident test period. It expired without the page
+	 * being reused, so cold pages needed less room.
+	 */
+	private void expireTest() {
+		Iterator<Long> i = nonresident.iterator();
+		i.next();
+		i.remove();
+		coldTarget = Math.max(coldTarget - 1, 1);
+	}
+
+	private boolean referenced(Frames frames, int ppn) {
+		boolean used = frames.testAndClearUsed(ppn);
+		if (fresh[ppn]) {
+			fresh[ppn] = false;
+			return false;
+		}
+		return used;
+	}
+
+	private boolean[] resident, hot, test;
+
+	/** Whether each frame has been scanned since it was filled. */
+	private boolean[] fresh;
+
+	/** The page held by each frame. */
+	private long[] keys;
+
+	private int hotCount = 0;
+
+	/** The target number of cold frames. */
+	private int coldTarget;
+
+	private int coldHand = 0, hotHand = 0;
+
+	/** Keys of evicted cold pages whose test period has not ended. */
+	private LinkedHashSet<Long> nonresident = new LinkedHashSet<Long>();
+}
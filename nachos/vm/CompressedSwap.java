@@ -0,0 +1,246 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed in-memory tier in front of the swap file.
+ *
+ * <p>
+ * Evicted pages are deflated into a pool of kernel memory with a fixed byte
+ * budget, and inflated again when they are faulted back in, which is far
+ * cheaper than a trip through the file system. Pages that are entirely zero
+ * take no space at all, and pages that do not compress to at most three
+ * quarters of their size go straight to the swap file. When the pool is over
+ * budget its least recently stored pages are spilled to the swap file.
+ *
+ * <p>
+ * Callers see a single namespace of slots, the same as with
+ * <tt>SwapFile</tt>; each slot refers to either a compressed copy or a slot
+ * of the swap file.
+ */
+public class CompressedSwap {
+	/**
+	 * Allocate a new compressed tier.
+	 *
+	 * @param file the swap file to spill to.
+	 * @param budget the most bytes of compressed pages to keep in memory, or
+	 * 0 to send every page except zero pages to the swap file.
+	 */
+	public CompressedSwap(SwapFile file, int budget) {
+		this.file = file;
+		this.budget = budget;
+	}
+
+	/**
+	 * Copy a physical page out to swap.
+	 *
+	 * @param ppn the physical page to save. The caller may reuse it as soon
+	 * as this returns.
+	 * @return the slot the page was saved in.
+	 */
+	public int write(int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+		int offset = ppn * pageSize;
+
+		lock.acquire();
+		int slot = slots.nextClearBit(0);
+		slots.set(slot);
+
+		Entry entry = new Entry();
+		if (isZero(memory, offset)) {
+			entry.data = zeroPage;
+		}
+		else if (budget > 0) {
+			deflater.reset();
+			deflater.setInput(memory, offset, pageSize);
+			deflater.finish();
+			int length = deflater.deflate(buffer);
+			if (deflater.finished() && length <= maxCompressed) {
+				entry.data = new byte[length];
+				System.arraycopy(buffer, 0, entry.data, 0, length);
+			}
+		}
+
+		if (entry.data == null) {
+			entry.fileSlot = file.write(ppn);
+		}
+		else {
+			size += entry.data.length;
+			resident.put(slot, entry);
+		}
+		entries.put(slot, entry);
+		spill();
+		lock.release();
+		return slot;
+	}
+
+	/**
+	 * Copy a page from swap into a physical page. The slot stays allocated.
+	 *
+	 * @param slot the slot returned by <tt>write()</tt>.
+	 * @param ppn the physical page to fill.
+	 */
+	public void read(int slot, int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+		int offset = ppn * pageSize;
+
+		lock.acquire();
+		Entry entry = entries.get(slot);
+		Lib.assertTrue(entry != null, "read of free swap slot " + slot);
+
+		if (entry.data == null) {
+			file.read(entry.fileSlot, ppn);
+		}
+		else if (entry.data == zeroPage) {
+			Arrays.fill(memory, offset, offset + pageSize, (byte) 0);
+			hits++;
+		}
+		else {
+			inflater.reset();
+			inflater.setInput(entry.data);
+			try {
+				Lib.assertTrue(inflater.inflate(memory, offset, pageSize) == pageSize);
+			}
+			catch (DataFormatException e) {
+				Lib.assertNotReached("corrupt compressed page in slot " + slot);
+			}
+			// keep the pages that are faulted back in the longest
+			resident.get(slot);
+			hits++;
+		}
+		lock.release();
+	}
+
+	/**
+	 * Release a slot whose contents are no longer needed.
+	 *
+	 * @param slot the slot to release.
+	 */
+	public void free(int slot) {
+		lock.acquire();
+		Entry entry = entries.remove(slot);
+		if (entry != null) {
+			if (entry.data == null)
+				file.free(entry.fileSlot);
+			else if (resident.remove(slot) != null)
+				size -= entry.data.length;
+		}
+		slots.clear(slot);
+		lock.release();
+	}
+
+	/**
+	 * Write out any pages the swap file is still buffering.
+	 */
+	public void sync() {
+		file.sync();
+	}
+
+	/**
+	 * Close and delete the swap file.
+	 */
+	public void close() {
+		file.close();
+	}
+
+	/**
+	 * Return the number of slots in use, in memory or on disk.
+	 */
+	public int slotsInUse() {
+		return slots.cardinality();
+	}
+
+	/**
+	 * Return the number of reads served without the swap file.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Spill least recently stored pages to the swap file until the pool fits
+	 * its budget. The caller must hold the lock.
+	 */
+	private void spill() {
+		Iterator<Entry> i = resident.values().iterator();
+		while (size > budget && i.hasNext()) {
+			Entry entry = i.next();
+			if (entry.data == zeroPage)
+				continue;
+
+			inflater.reset();
+			inflater.setInput(entry.data);
+			try {
+				inflater.inflate(page, 0, pageSize);
+			}
+			catch (DataFormatException e) {
+				Lib.assertNotReached("corrupt compressed page");
+			}
+			entry.fileSlot = file.write(page, 0);
+			size -= entry.data.length;
+			entry.data = null;
+			i.remove();
+		}
+	}
+
+	private static boolean isZero(byte[] memory, int offset) {
+		for (int i = offset; i < offset + pageSize; i++) {
+			if (memory[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static class Entry {
+		/** The compressed page, <tt>zeroPage</tt>, or <tt>null</tt> if on disk. */
+		byte[] data = null;
+
+		/** The swap file slot holding the page, once it has been spilled. */
+		int fileSlot = -1;
+	}
+
+	private SwapFile file;
+
+	private int budget;
+
+	/** Bytes of compressed pages held in memory. */
+	private int size = 0;
+
+	private int hits = 0;
+
+	private BitSet slots = new BitSet();
+
+	private HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+	/** In-memory entries, least recently stored or read first. */
+	private LinkedHashMap<Integer, Entry> resident = new LinkedHashMap<Integer, Entry>(
+			16, 0.75f, true);
+
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+	private Inflater inflater = new Inflater();
+
+	/** Big enough for the deflated form of any page. */
+	private byte[] buffer = new byte[pageSize * 2];
+
+	private byte[] page = new byte[pageSize];
+
+	private Lock lock = new Lock();
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final int maxCompressed = pageSize * 3 / 4;
+
+	/** Marks an entry whose page is all zeros. */
+	private static final byte[] zeroPage = new byte[0];
+}
@@ -0,0 +1,114 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A hashed inverted page table: one entry per physical page, recording which
+ * process and virtual page it holds, with a hash anchor table so that a
+ * (pid, vpn) pair can be translated without searching every frame.
+ *
+ * <p>
+ * The anchor table has a power-of-two number of buckets, at least as many as
+ * there are frames, and each frame links to the next frame in its bucket.
+ */
+public class InvertedPageTable {
+	/**
+	 * Allocate a new, empty inverted page table.
+	 *
+	 * @param numFrames the number of physical pages.
+	 */
+	public InvertedPageTable(int numFrames) {
+		int buckets = Integer.highestOneBit(Math.max(numFrames, 1) * 2 - 1);
+		anchor = new int[buckets];
+		next = new int[numFrames];
+		keys = new long[numFrames];
+		Arrays.fill(anchor, -1);
+		Arrays.fill(next, -1);
+		Arrays.fill(keys, noKey);
+	}
+
+	/**
+	 * Record that a frame holds a virtual page.
+	 *
+	 * @param ppn the frame, which must not already be in the table.
+	 * @param pid the process that owns the page.
+	 * @param vpn the virtual page number.
+	 */
+	public void insert(int ppn, int pid, int vpn) {
+		Lib.assertTrue(keys[ppn] == noKey);
+		long key = key(pid, vpn);
+		int bucket = hash(key);
+		keys[ppn] = key;
+		next[ppn] = anchor[bucket];
+		anchor[bucket] = ppn;
+	}
+
+	/**
+	 * Remove a frame from the table, if it is there.
+	 *
+	 * @param ppn the frame.
+	 */
+	public void remove(int ppn) {
+		if (keys[ppn] == noKey)
+			return;
+
+		int bucket = hash(keys[ppn]);
+		if (anchor[bucket] == ppn) {
+			anchor[bucket] = next[ppn];
+		}
+		else {
+			int prev = anchor[bucket];
+			while (next[prev] != ppn)
+				prev = next[prev];
+			next[prev] = next[ppn];
+		}
+		keys[ppn] = noKey;
+		next[ppn] = -1;
+	}
+
+	/**
+	 * Find the frame holding a virtual page.
+	 *
+	 * @param pid the process that owns the page.
+	 * @param vpn the virtual page number.
+	 * @return the frame, or -1 if the page is not resident.
+	 */
+	public int lookup(int pid, int vpn) {
+		long key = key(pid, vpn);
+		for (int ppn = anchor[hash(key)]; ppn != -1; ppn = next[ppn]) {
+			if (keys[ppn] == key)
+				return ppn;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the key of a page, which is also the key a replacement policy
+	 * sees for it.
+	 *
+	 * @param pid the process that owns the page.
+	 * @param vpn the virtual page number.
+	 */
+	public static long key(int pid, int vpn) {
+		return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+	}
+
+	private int hash(long key) {
+		// spread consecutive vpns and small pids over the buckets
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & (anchor.length - 1);
+	}
+
+	/** The first frame in each bucket. */
+	private int[] anchor;
+
+	/** The next frame in the same bucket, or -1. */
+	private int[] next;
+
+	/** The (pid, vpn) key of each frame. */
+	private long[] keys;
+
+	private static final long noKey = -1;
+}
@@ -0,0 +1,131 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * A background kernel thread that keeps the system out of thrashing by
+ * controlling how many processes compete for memory at once.
+ *
+ * <p>
+ * Every interval the controller samples the <i>used</i> bits of all resident
+ * pages, which gives each process an estimate of its working set: the pages
+ * it referenced in the last few samples. It also looks at each process's
+ * page fault frequency over the interval. When some process faults more
+ * often than <tt>pffHigh</tt> times per interval and the working sets of the
+ * running processes add up to more than physical memory, the most recently
+ * admitted process is suspended: at its next exception it gives up all of its
+ * frames in one go and sleeps. Suspended processes are resumed, oldest first,
+ * once their working set fits alongside the others again, and reload the
+ * pages of that working set before they run.
+ */
+public class LoadController {
+	/**
+	 * Allocate a new load controller.
+	 *
+	 * @param interval the number of ticks between samples, or 0 to disable
+	 * load control.
+	 * @param window the number of samples a page stays in the working set
+	 * after it was last referenced.
+	 * @param pffHigh the faults per interval above which a process is
+	 * considered to be short of memory.
+	 */
+	public LoadController(int interval, int window, int pffHigh) {
+		this.interval = interval;
+		this.window = Math.max(window, 1);
+		this.pffHigh = pffHigh;
+		capacity = Machine.processor().getNumPhysPages();
+	}
+
+	/**
+	 * Start the controller thread.
+	 */
+	public void start() {
+		if (interval <= 0)
+			return;
+
+		new KThread(new Runnable() {
+			public void run() {
+				control();
+			}
+		}).setName("load controller").fork();
+	}
+
+	/**
+	 * Admit a process whose address space has just been set up.
+	 */
+	public void register(VMProcess process) {
+		boolean intStatus = Machine.interrupt().disable();
+		active.add(process);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Forget a process that is exiting.
+	 */
+	public void unregister(VMProcess process) {
+		boolean intStatus = Machine.interrupt().disable();
+		active.remove(process);
+		suspended.remove(process);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the number of times a process was suspended.
+	 */
+	public int getSuspensions() {
+		return suspensions;
+	}
+
+	private void control() {
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(interval);
+
+			int sample = VMKernel.sampleReferences();
+
+			boolean intStatus = Machine.interrupt().disable();
+			int demand = 0;
+			boolean thrashing = false;
+			for (VMProcess process : active) {
+				demand += process.workingSetSize(sample, window);
+				if (process.takeRecentFaults() > pffHigh)
+					thrashing = true;
+			}
+
+			if (thrashing && demand > capacity && active.size() > 1) {
+				// the newest process has the least work invested in it
+				VMProcess victim = active.removeLast();
+				victim.suspend(sample, window);
+				suspended.add(victim);
+				suspensions++;
+				Lib.debug(dbgVM, "load control: suspended pid " + victim.getPid()
+						+ ", demand " + demand + " of " + capacity + " frames");
+			}
+			else if (!thrashing && !suspended.isEmpty()) {
+				VMProcess next = suspended.getFirst();
+				if (active.isEmpty()
+						|| demand + next.getSuspendedSize() <= capacity) {
+					suspended.removeFirst();
+					active.add(next);
+					next.resume();
+					Lib.debug(dbgVM, "load control: resumed pid " + next.getPid());
+				}
+			}
+			Machine.interrupt().restore(intStatus);
+		}
+	}
+
+	private int interval, window, pffHigh, capacity;
+
+	private int suspensions = 0;
+
+	/** Running processes, in the order they were admitted. */
+	private LinkedList<VMProcess> active = new LinkedList<VMProcess>();
+
+	/** Suspended processes, longest suspended first. */
+	private LinkedList<VMProcess> suspended = new LinkedList<VMProcess>();
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,132 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A background kernel thread that writes dirty pages to swap before they are
+ * chosen for eviction, so that a page fault under memory pressure usually
+ * finds a clean victim and does not have to wait for a write.
+ *
+ * <p>
+ * The cleaner sleeps until the number of free frames drops below the low
+ * watermark. It then sweeps physical memory with its own
+ * hand, writing out dirty pages that have not been referenced since the last
+ * sweep, a batch at a time, until the reserve of clean resident frames is
+ * restored. A page that is written again after it was cleaned is simply
+ * dirty again, and will be written at eviction time like any other.
+ */
+public class PageCleaner {
+	/**
+	 * Allocate a new page cleaner.
+	 *
+	 * @param lowWater start cleaning when fewer frames than this are free.
+	 * @param reserve stop cleaning once this many resident frames are clean.
+	 * @param batch the most pages written before yielding.
+	 */
+	public PageCleaner(int lowWater, int reserve, int batch) {
+		this.lowWater = lowWater;
+		this.reserve = reserve;
+		this.batch = Math.max(batch, 1);
+	}
+
+	/**
+	 * Start the cleaner thread.
+	 */
+	public void start() {
+		if (lowWater <= 0 || reserve <= 0)
+			return;
+
+		new KThread(new Runnable() {
+			public void run() {
+				clean();
+			}
+		}).setName("page cleaner").fork();
+	}
+
+	/**
+	 * Wake the cleaner if free memory is below the low watermark. Called
+	 * whenever a frame is allocated.
+	 */
+	public void poke() {
+		boolean intStatus = Machine.interrupt().disable();
+		if (sleeping && belowLowWater()) {
+			sleeping = false;
+			wakeup.V();
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the number of pages written by the cleaner.
+	 */
+	public int getPagesCleaned() {
+		return cleaned;
+	}
+
+	private boolean belowLowWater() {
+		// zeroed frames are kept for demand-zero faults, so they do not count
+		return UserKernel.free_pages.freeCount() < lowWater;
+	}
+
+	private void clean() {
+		int numFrames = Machine.processor().getNumPhysPages();
+		while (true) {
+			boolean intStatus = Machine.interrupt().disable();
+			if (!belowLowWater() || countClean() >= reserve) {
+				sleeping = true;
+				Machine.interrupt().restore(intStatus);
+				wakeup.P();
+				continue;
+			}
+			Machine.interrupt().restore(intStatus);
+
+			// pages referenced since the last sweep are likely to be written
+			// again soon, so leave them for a second sweep
+			int written = 0;
+			for (int pass = 0; pass < 2 && written == 0; pass++) {
+				for (int i = 0; i < numFrames && written < batch; i++) {
+					int ppn = hand;
+					hand = (hand + 1) % numFrames;
+					if (VMKernel.cleanPage(ppn, pass == 0))
+						written++;
+				}
+			}
+			cleaned += written;
+			Lib.debug(dbgVM, "page cleaner wrote " + written + " pages");
+
+			if (written == 0) {
+				// nothing left to clean; wait for the next allocation
+				intStatus = Machine.interrupt().disable();
+				sleeping = true;
+				Machine.interrupt().restore(intStatus);
+				wakeup.P();
+			}
+			else {
+				KThread.yield();
+			}
+		}
+	}
+
+	private int countClean() {
+		int count = 0;
+		for (int ppn = 0; ppn < Machine.processor().getNumPhysPages(); ppn++) {
+			if (VMKernel.isCleanFrame(ppn))
+				count++;
+		}
+		return count;
+	}
+
+	private int lowWater, reserve, batch;
+
+	private int hand = 0;
+
+	private int cleaned = 0;
+
+	private boolean sleeping = false;
+
+	private Semaphore wakeup = new Semaphore(0);
+
+	private static final char dbgVM = 'v';
+}
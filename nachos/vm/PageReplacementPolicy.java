@@ -0,0 +1,74 @@
+package nachos.vm;
+
+/**
+ * A policy that decides which physical page to evict when memory is full.
+ *
+ * <p>
+ * The kernel tells the policy which page each frame holds as frames are
+ * filled and released, and asks it for a victim when a free frame is needed.
+ * Policies learn about references only through the hardware <i>used</i> and
+ * <i>dirty</i> bits, which they read and clear through a <tt>Frames</tt>
+ * view, so the same policy can run against the real machine or a recorded
+ * trace (see <tt>PolicyReplay</tt>).
+ *
+ * <p>
+ * The policy is selected with the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Prepare to manage the specified number of frames. Called once, before
+	 * any other method.
+	 *
+	 * @param numFrames the number of physical pages.
+	 */
+	public void initialize(int numFrames);
+
+	/**
+	 * Note that a frame was just filled with a page.
+	 *
+	 * @param ppn the frame.
+	 * @param key identifies the page (process and virtual page number), so
+	 * that policies can remember pages after they are evicted.
+	 */
+	public void pageIn(int ppn, long key);
+
+	/**
+	 * Note that a frame was released without being chosen as a victim, for
+	 * example because its process exited.
+	 *
+	 * @param ppn the frame.
+	 */
+	public void pageFreed(int ppn);
+
+	/**
+	 * Choose a resident, unpinned frame to evict, and forget it. The caller
+	 * evicts the frame and will later call <tt>pageIn()</tt> when the frame
+	 * is refilled.
+	 *
+	 * @param frames the state of physical memory.
+	 * @param incoming the key of the page that needs a frame.
+	 * @return the frame to evict, or -1 if every resident frame is pinned.
+	 */
+	public int selectVictim(Frames frames, long incoming);
+
+	/**
+	 * The hardware state of physical memory, as seen by a policy.
+	 */
+	public interface Frames {
+		/** Return <tt>true</tt> if the frame must not be evicted right now. */
+		public boolean isPinned(int ppn);
+
+		/**
+		 * Return whether the frame's page was referenced since the last call,
+		 * and clear the used bit.
+		 */
+		public boolean testAndClearUsed(int ppn);
+
+		/** Return <tt>true</tt> if evicting the frame requires a write. */
+		public boolean isDirty(int ppn);
+
+		/** Return the current virtual time, which only increases. */
+		public long now();
+	}
+}
@@ -0,0 +1,164 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+/**
+ * Replays a page reference trace against each page replacement policy and
+ * reports how many faults each one takes, so a policy can be chosen for a
+ * workload without running it once per policy.
+ *
+ * <p>
+ * A trace is a text file with one reference per line: a process ID and a
+ * virtual page number, optionally followed by <tt>w</tt> for a write.
+ * <tt>VMKernel</tt> records one, without write flags, when
+ * <tt>VMKernel.traceFile</tt> is set.
+ *
+ * <p>
+ * This runs outside of Nachos:
+ *
+ * <pre>
+ * java nachos.vm.PolicyReplay <i>trace</i> <i>frames</i> [<i>policy</i> ...]
+ * </pre>
+ */
+public class PolicyReplay implements PageReplacementPolicy.Frames {
+	/**
+	 * Allocate a new simulated physical memory.
+	 *
+	 * @param numFrames the number of physical pages.
+	 */
+	public PolicyReplay(int numFrames) {
+		keys = new long[numFrames];
+		used = new boolean[numFrames];
+		dirty = new boolean[numFrames];
+	}
+
+	/**
+	 * Run a trace through a policy, starting with every frame free.
+	 *
+	 * @param policy the policy to test. It must not have been used before.
+	 * @param trace the keys referenced, in order.
+	 * @param writes whether each reference was a write.
+	 */
+	public void replay(PageReplacementPolicy policy, long[] trace,
+			boolean[] writes) {
+		policy.initialize(keys.length);
+		HashMap<Long, Integer> frames = new HashMap<Long, Integer>();
+		int free = 0;
+
+		for (int i = 0; i < trace.length; i++) {
+			Integer ppn = frames.get(trace[i]);
+			if (ppn == null) {
+				faults++;
+				if (free < keys.length) {
+					ppn = free++;
+				}
+				else {
+					ppn = policy.selectVictim(this, trace[i]);
+					Lib.assertTrue(ppn >= 0 && ppn < keys.length,
+							"policy returned no victim");
+					Lib.assertTrue(frames.remove(keys[ppn]) != null);
+					if (dirty[ppn])
+						writebacks++;
+				}
+				keys[ppn] = trace[i];
+				dirty[ppn] = false;
+				frames.put(trace[i], ppn);
+				policy.pageIn(ppn, trace[i]);
+			}
+			used[ppn] = true;
+			if (writes[i])
+				dirty[ppn] = true;
+		}
+	}
+
+	/**
+	 * Return the number of faults taken by the last replay.
+	 */
+	public long getFaults() {
+		return faults;
+	}
+
+	/**
+	 * Return the number of dirty pages evicted by the last replay.
+	 */
+	public long getWritebacks() {
+		return writebacks;
+	}
+
+	public boolean isPinned(int ppn) {
+		return false;
+	}
+
+	public boolean testAndClearUsed(int ppn) {
+		boolean wasUsed = used[ppn];
+		used[ppn] = false;
+		return wasUsed;
+	}
+
+	public boolean isDirty(int ppn) {
+		return dirty[ppn];
+	}
+
+	public long now() {
+		return faults;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: java nachos.vm.PolicyReplay trace frames [policy ...]");
+			System.exit(1);
+		}
+
+		ArrayList<Long> keys = new ArrayList<Long>();
+		ArrayList<Boolean> writes = new ArrayList<Boolean>();
+		BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+		for (String line; (line = reader.readLine()) != null;) {
+			StringTokenizer tokens = new StringTokenizer(line);
+			if (tokens.countTokens() < 2)
+				continue;
+			int pid = Integer.parseInt(tokens.nextToken());
+			int vpn = Integer.parseInt(tokens.nextToken());
+			keys.add(InvertedPageTable.key(pid, vpn));
+			writes.add(tokens.hasMoreTokens() && tokens.nextToken().equals("w"));
+		}
+		reader.close();
+
+		long[] trace = new long[keys.size()];
+		boolean[] isWrite = new boolean[keys.size()];
+		for (int i = 0; i < trace.length; i++) {
+			trace[i] = keys.get(i);
+			isWrite[i] = writes.get(i);
+		}
+
+		int numFrames = Integer.parseInt(args[1]);
+		String[] policies = args.length > 2 ? new String[args.length - 2]
+				: defaultPolicies;
+		if (args.length > 2)
+			System.arraycopy(args, 2, policies, 0, policies.length);
+
+		System.out.println(trace.length + " references, " + numFrames
+				+ " frames");
+		for (String name : policies) {
+			PolicyReplay memory = new PolicyReplay(numFrames);
+			memory.replay(VMKernel.newPolicy(name), trace, isWrite);
+			System.out.println(name + ": " + memory.getFaults() + " faults, "
+					+ memory.getWritebacks() + " writebacks");
+		}
+	}
+
+	private long[] keys;
+
+	private boolean[] used, dirty;
+
+	private long faults = 0, writebacks = 0;
+
+	private static final String[] defaultPolicies = { "clock", "wsclock",
+			"2q", "arc", "clockpro" };
+}
@@ -0,0 +1,138 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A background kernel thread that finds physical frames holding identical
+ * pages and merges them into one shared, read-only frame, in the manner of
+ * Linux KSM. Zero-filled stack pages and the data sections of several copies
+ * of the same program are typical candidates.
+ *
+ * <p>
+ * Every so often the merger wakes up and scans a batch of frames. Each frame
+ * it looks at is checksummed. It is merged into an already shared frame with
+ * the same contents if there is one (the <i>stable</i> table), or else into
+ * another frame seen earlier in this pass with the same checksum (the
+ * <i>unstable</i> table), which then becomes shared. Checksums only pick
+ * candidates: frames are write-protected only once their checksums match,
+ * and then compared byte for byte before they are merged, so pages with no
+ * duplicate never take a fault. A write to a merged page takes a read-only
+ * fault and gets a private copy, and a write to a page that was protected
+ * but not merged simply makes it writable again.
+ */
+public class SamePageMerger {
+	/**
+	 * Allocate a new page merger.
+	 *
+	 * @param interval the number of ticks to sleep between batches.
+	 * @param batch the number of frames to scan per batch, or 0 to disable
+	 * merging.
+	 */
+	public SamePageMerger(int interval, int batch) {
+		this.interval = Math.max(interval, 1);
+		this.batch = batch;
+	}
+
+	/**
+	 * Start the merger thread.
+	 */
+	public void start() {
+		if (batch <= 0)
+			return;
+
+		KThread merger = new KThread(new Runnable() {
+			public void run() {
+				scan();
+			}
+		}).setName("page merger");
+
+		boolean intStatus = Machine.interrupt().disable();
+		if (ThreadedKernel.scheduler.getClass() == PriorityScheduler.class)
+			ThreadedKernel.scheduler.setPriority(merger,
+					PriorityScheduler.priorityMinimum);
+		Machine.interrupt().restore(intStatus);
+
+		merger.fork();
+	}
+
+	/**
+	 * Return the number of frames freed by merging.
+	 */
+	public int getMerged() {
+		return merged;
+	}
+
+	private void scan() {
+		int numFrames = Machine.processor().getNumPhysPages();
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(interval);
+
+			for (int i = 0; i < batch; i++) {
+				scanFrame(hand);
+				hand = (hand + 1) % numFrames;
+				// candidates from the last pass may have been written since
+				if (hand == 0)
+					unstable.clear();
+			}
+		}
+	}
+
+	private void scanFrame(int ppn) {
+		if (!VMKernel.canMerge(ppn))
+			return;
+
+		long sum = checksum(ppn);
+		if (VMKernel.isMerged(ppn)) {
+			stable.put(sum, ppn);
+			return;
+		}
+
+		// protect only once a duplicate is likely; merge() compares the bytes
+		Integer shared = stable.get(sum);
+		if (shared != null && VMKernel.isMerged(shared)
+				&& VMKernel.writeProtect(ppn) && VMKernel.merge(ppn, shared)) {
+			merged++;
+			Lib.debug(dbgVM, "merged ppn " + ppn + " into shared ppn " + shared);
+			return;
+		}
+
+		Integer other = unstable.remove(sum);
+		if (other != null && VMKernel.writeProtect(other)
+				&& VMKernel.writeProtect(ppn) && VMKernel.merge(ppn, other)) {
+			stable.put(sum, other);
+			merged++;
+			Lib.debug(dbgVM, "merged ppn " + ppn + " with ppn " + other);
+			return;
+		}
+
+		unstable.put(sum, ppn);
+	}
+
+	private long checksum(int ppn) {
+		crc.reset();
+		crc.update(Machine.processor().getMemory(), ppn * pageSize, pageSize);
+		return crc.getValue();
+	}
+
+	private int interval, batch;
+
+	private int hand = 0;
+
+	private int merged = 0;
+
+	/** Shared frames by checksum. Entries may be stale, and are checked. */
+	private HashMap<Long, Integer> stable = new HashMap<Long, Integer>();
+
+	/** Unshared frames seen in this pass, by checksum. */
+	private HashMap<Long, Integer> unstable = new HashMap<Long, Integer>();
+
+	private CRC32 crc = new CRC32();
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,202 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.BufferCache;
+
+import java.util.BitSet;
+
+/**
+ * Backing store for evicted dirty pages, kept in a single file on the kernel
+ * file system and divided into page-sized slots.
+ *
+ * <p>
+ * Slots are tracked with a bitmap, and the file grows as more slots are
+ * needed. Writes are clustered: each evicted page is copied into a write-behind
+ * buffer whose slots are reserved contiguously, and the whole buffer is written
+ * with a single file operation once it is full. A page that is faulted back in
+ * while it is still in the buffer is copied from there without any I/O.
+ */
+public class SwapFile {
+	/**
+	 * Open a new, empty swap file.
+	 *
+	 * @param name the name of the swap file.
+	 * @param clusterSize the number of pages written per file operation.
+	 */
+	public SwapFile(String name, int clusterSize) {
+		this.name = name;
+		this.clusterSize = Math.max(clusterSize, 1);
+		cluster = new byte[this.clusterSize * pageSize];
+		clusterSlots = new boolean[this.clusterSize];
+
+		file = BufferCache.uncached(ThreadedKernel.fileSystem).open(name,
+				true);
+		Lib.assertTrue(file != null, "could not create swap file " + name);
+	}
+
+	/**
+	 * Copy a physical page out to swap.
+	 *
+	 * @param ppn the physical page to save. The caller may reuse it as soon
+	 * as this returns.
+	 * @return the slot the page was saved in.
+	 */
+	public int write(int ppn) {
+		return write(Machine.processor().getMemory(), ppn * pageSize);
+	}
+
+	/**
+	 * Copy a page out to swap from a buffer.
+	 *
+	 * @param data the buffer holding the page.
+	 * @param offset the offset of the page in the buffer.
+	 * @return the slot the page was saved in.
+	 */
+	public int write(byte[] data, int offset) {
+		lock.acquire();
+		if (clusterCount == clusterSize)
+			flush();
+		if (clusterCount == 0)
+			clusterBase = reserve(clusterSize);
+
+		int slot = clusterBase + clusterCount;
+		System.arraycopy(data, offset, cluster, clusterCount * pageSize,
+				pageSize);
+		clusterSlots[clusterCount] = true;
+		clusterCount++;
+		lock.release();
+		return slot;
+	}
+
+	/**
+	 * Copy a page from swap into a physical page. The slot stays allocated,
+	 * so the page can be evicted again without another write as long as it is
+	 * not modified.
+	 *
+	 * @param slot the slot returned by <tt>write()</tt>.
+	 * @param ppn the physical page to fill.
+	 */
+	public void read(int slot, int ppn) {
+		read(slot, Machine.processor().getMemory(), ppn * pageSize);
+	}
+
+	/**
+	 * Copy a page from swap into a buffer.
+	 *
+	 * @param slot the slot returned by <tt>write()</tt>.
+	 * @param data the buffer to fill.
+	 * @param offset the offset in the buffer to copy the page to.
+	 */
+	public void read(int slot, byte[] data, int offset) {
+		lock.acquire();
+		if (inCluster(slot)) {
+			System.arraycopy(cluster, (slot - clusterBase) * pageSize, data,
+					offset, pageSize);
+		}
+		else {
+			Lib.assertTrue(file.read(slot * pageSize, data, offset, pageSize) == pageSize);
+			Machine.countSwapRead();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Release a slot whose contents are no longer needed.
+	 *
+	 * @param slot the slot to release.
+	 */
+	public void free(int slot) {
+		lock.acquire();
+		if (inCluster(slot))
+			clusterSlots[slot - clusterBase] = false;
+		used.clear(slot);
+		lock.release();
+	}
+
+	/**
+	 * Write out any pages still waiting in the write-behind buffer.
+	 */
+	public void sync() {
+		lock.acquire();
+		if (clusterCount > 0)
+			flush();
+		lock.release();
+	}
+
+	/**
+	 * Close and delete the swap file.
+	 */
+	public void close() {
+		file.close();
+		BufferCache.uncached(ThreadedKernel.fileSystem).remove(name);
+	}
+
+	/**
+	 * Return the number of slots in use.
+	 */
+	public int slotsInUse() {
+		return used.cardinality();
+	}
+
+	private boolean inCluster(int slot) {
+		return clusterCount > 0 && slot >= clusterBase
+				&& slot < clusterBase + clusterCount;
+	}
+
+	/**
+	 * Write the buffered cluster with one file operation, and release the
+	 * reserved slots it did not use. The caller must hold the lock.
+	 */
+	private void flush() {
+		int pages = 0;
+		for (int i = 0; i < clusterCount; i++) {
+			if (clusterSlots[i])
+				pages = i + 1;
+		}
+		if (pages > 0) {
+			Lib.assertTrue(file.write(clusterBase * pageSize, cluster, 0,
+					pages * pageSize) == pages * pageSize);
+			for (int i = 0; i < pages; i++) {
+				if (clusterSlots[i])
+					Machine.countSwapWrite();
+			}
+		}
+		for (int i = clusterCount; i < clusterSize; i++)
+			used.clear(clusterBase + i);
+		clusterCount = 0;
+	}
+
+	/**
+	 * Reserve count contiguous free slots. The caller must hold the lock.
+	 */
+	private int reserve(int count) {
+		int start = used.nextClearBit(0);
+		while (used.nextSetBit(start) != -1
+				&& used.nextSetBit(start) < start + count)
+			start = used.nextClearBit(used.nextSetBit(start));
+		used.set(start, start + count);
+		return start;
+	}
+
+	private String name;
+
+	private OpenFile file;
+
+	/** Bit <i>slot</i> is set if the slot holds a page or is reserved. */
+	private BitSet used = new BitSet();
+
+	private int clusterSize;
+
+	/** Pages waiting to be written, occupying slots from clusterBase. */
+	private byte[] cluster;
+
+	/** Whether each buffered page is still wanted. */
+	private boolean[] clusterSlots;
+
+	private int clusterBase = 0, clusterCount = 0;
+
+	private Lock lock = new Lock();
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,240 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Manages the processor's software-loaded TLB on behalf of VM processes.
+ *
+ * <p>
+ * TLB misses are refilled from the kernel's inverted page table, faulting the
+ * page in first if it is not resident. The TLB holds copies of page table
+ * entries, so whenever an entry leaves the TLB (or the kernel needs a page's
+ * bits) the <i>used</i> and <i>dirty</i> bits the processor set in the copy
+ * are merged back into the process's page table.
+ *
+ * <p>
+ * The simulated TLB has no address-space tags, so it can only ever hold the
+ * translations of one process. Switching to a different process flushes it,
+ * but remembers which pages were loaded; when the process runs again those
+ * translations that are still valid are loaded straight back instead of
+ * being missed one at a time. Switching back to the process that already
+ * owns the TLB (for example after a kernel thread ran) leaves it untouched.
+ *
+ * <p>
+ * A page in a region the process has promoted to a superpage is loaded as
+ * one entry covering the whole region, and that entry's bits are merged back
+ * into every page of the region.
+ */
+public class TLBManager {
+	/**
+	 * Allocate a new TLB manager.
+	 *
+	 * @param ipt the inverted page table used to refill the TLB.
+	 */
+	public TLBManager(InvertedPageTable ipt) {
+		this.ipt = ipt;
+		size = Machine.processor().getTLBSize();
+	}
+
+	/**
+	 * Make the TLB hold the translations of the specified process. Called
+	 * when a process's thread is switched in.
+	 *
+	 * @param process the process about to run.
+	 */
+	public void switchTo(VMProcess process) {
+		if (process == owner)
+			return;
+
+		if (owner != null)
+			owner.setSavedTLB(flush());
+		owner = process;
+
+		int[] saved = process.setSavedTLB(null);
+		if (saved == null)
+			return;
+
+		Processor processor = Machine.processor();
+		int slot = 0;
+		for (int i = 0; i < saved.length && slot < size; i++) {
+			int vpn = saved[i];
+			TranslationEntry entry = process.getEntry(vpn);
+			// pages of a superpage come back as one entry
+			if (entry.valid && ipt.lookup(process.getPid(), vpn) == entry.ppn
+					&& find(process, vpn) == -1)
+				processor.writeTLBEntry(slot++, entryFor(process, vpn));
+		}
+	}
+
+	/**
+	 * Forget a process whose address space is being torn down.
+	 *
+	 * @param process the exiting process.
+	 */
+	public void release(VMProcess process) {
+		if (process == owner) {
+			flush();
+			owner = null;
+		}
+	}
+
+	/**
+	 * Load the translation for a virtual page that missed in the TLB.
+	 *
+	 * @param process the process that missed, which must own the TLB.
+	 * @param vpn the virtual page that missed.
+	 * @return <tt>false</tt> if the page does not exist in the address space.
+	 */
+	public boolean refill(VMProcess process, int vpn) {
+		Lib.assertTrue(process == owner);
+
+		if (vpn < 0 || vpn >= process.getNumTranslations())
+			return false;
+		TranslationEntry entry = process.getEntry(vpn);
+		int ppn = ipt.lookup(process.getPid(), vpn);
+		// a merged frame is filed under only one of the pages mapping it
+		if (ppn == -1 && entry.valid && VMKernel.isMerged(entry.ppn))
+			ppn = entry.ppn;
+		if (ppn == -1 || !entry.valid) {
+			if (!process.handlePageFault(vpn))
+				return false;
+		}
+
+		Processor processor = Machine.processor();
+		int slot = -1;
+		for (int i = 0; i < size && slot == -1; i++) {
+			if (!processor.readTLBEntry(i).valid)
+				slot = i;
+		}
+		if (slot == -1) {
+			slot = hand;
+			hand = (hand + 1) % size;
+			writeBack(slot, true);
+		}
+
+		processor.writeTLBEntry(slot, entryFor(process, vpn));
+		return true;
+	}
+
+	/**
+	 * Drop the TLB entry for a page, if there is one, merging its bits into
+	 * the page table first. Called before a page is evicted or unmapped.
+	 *
+	 * @param process the process owning the page.
+	 * @param vpn the virtual page.
+	 */
+	public void invalidate(VMProcess process, int vpn) {
+		int slot = find(process, vpn);
+		if (slot != -1)
+			writeBack(slot, true);
+	}
+
+	/**
+	 * Merge the bits of the TLB entry for a page, if there is one, into the
+	 * page table, and clear them in the TLB so that new references and writes
+	 * will show up again.
+	 *
+	 * @param process the process owning the page.
+	 * @param vpn the virtual page.
+	 */
+	public void sync(VMProcess process, int vpn) {
+		int slot = find(process, vpn);
+		if (slot != -1)
+			writeBack(slot, false);
+	}
+
+	/**
+	 * Return a copy of a page table entry with its bits clear, so that only
+	 * references made through the TLB are merged back.
+	 */
+	private static TranslationEntry cleanCopy(TranslationEntry pte) {
+		TranslationEntry entry = new TranslationEntry(pte);
+		entry.used = false;
+		entry.dirty = false;
+		return entry;
+	}
+
+	/**
+	 * Return the TLB entry to load for a page: a superpage entry if the page
+	 * is in a promoted region, or else a clean copy of its page table entry.
+	 */
+	private static TranslationEntry entryFor(VMProcess process, int vpn) {
+		int first = process.superpageOf(vpn);
+		if (first == -1)
+			return cleanCopy(process.getEntry(vpn));
+
+		TranslationEntry entry = cleanCopy(process.getEntry(first));
+		entry.pages = VMKernel.superpagePages;
+		return entry;
+	}
+
+	private int find(VMProcess process, int vpn) {
+		if (process != owner)
+			return -1;
+
+		Processor processor = Machine.processor();
+		for (int i = 0; i < size; i++) {
+			TranslationEntry entry = processor.readTLBEntry(i);
+			if (entry.valid && vpn >= entry.vpn && vpn - entry.vpn < entry.pages)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Merge the bits of a TLB entry into the owner's page table, then either
+	 * invalidate the entry or just clear its bits.
+	 */
+	private void writeBack(int slot, boolean invalidate) {
+		Processor processor = Machine.processor();
+		TranslationEntry entry = processor.readTLBEntry(slot);
+		if (!entry.valid)
+			return;
+
+		for (int i = 0; i < entry.pages; i++) {
+			TranslationEntry pte = owner.getEntry(entry.vpn + i);
+			if (pte.ppn == entry.ppn + i) {
+				pte.used |= entry.used;
+				pte.dirty |= entry.dirty;
+			}
+		}
+
+		entry.used = false;
+		entry.dirty = false;
+		if (invalidate)
+			entry.valid = false;
+		processor.writeTLBEntry(slot, entry);
+	}
+
+	/**
+	 * Write back and invalidate every entry.
+	 *
+	 * @return the virtual pages that were loaded.
+	 */
+	private int[] flush() {
+		Processor processor = Machine.processor();
+		int[] loaded = new int[size];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			TranslationEntry entry = processor.readTLBEntry(i);
+			if (entry.valid) {
+				loaded[count++] = entry.vpn;
+				writeBack(i, true);
+			}
+		}
+
+		int[] vpns = new int[count];
+		System.arraycopy(loaded, 0, vpns, 0, count);
+		return vpns;
+	}
+
+	private InvertedPageTable ipt;
+
+	private int size;
+
+	/** The process whose translations are in the TLB, or <tt>null</tt>. */
+	private VMProcess owner = null;
+
+	/** The next entry to replace once the TLB is full. */
+	private int hand = 0;
+}
@@ -0,0 +1,88 @@
+package nachos.vm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The full 2Q algorithm of Johnson and Shasha.
+ *
+ * <p>
+ * A page faulted in for the first time goes on a FIFO, <i>A1in</i>, and its
+ * references there are ignored, so a burst of references to a page used only
+ * once cannot keep it in memory. When it leaves <i>A1in</i> its key is kept
+ * on a ghost FIFO, <i>A1out</i>. A page faulted in again while its key is
+ * still on <i>A1out</i> has been reused over a long interval, and goes on the
+ * main queue <i>Am</i>, which is kept in approximate LRU order by moving every
+ * frame found with its used bit set to the back.
+ */
+public class TwoQueuePolicy implements PageReplacementPolicy {
+	public void initialize(int numFrames) {
+		keys = new long[numFrames];
+		maxIn = Math.max(numFrames / 4, 1);
+		maxOut = Math.max(numFrames / 2, 1);
+	}
+
+	public void pageIn(int ppn, long key) {
+		keys[ppn] = key;
+		if (a1out.remove(key))
+			am.add(ppn);
+		else
+			a1in.add(ppn);
+	}
+
+	public void pageFreed(int ppn) {
+		a1in.remove(ppn);
+		am.remove(ppn);
+	}
+
+	public int selectVictim(Frames frames, long incoming) {
+		// bring Am up to date with the references since the last eviction
+		for (Integer ppn : new ArrayList<Integer>(am)) {
+			if (!frames.isPinned(ppn) && frames.testAndClearUsed(ppn)) {
+				am.remove(ppn);
+				am.add(ppn);
+			}
+		}
+
+		int ppn;
+		if (a1in.size() > maxIn || am.isEmpty()) {
+			ppn = removeFirstUnpinned(a1in, frames);
+			if (ppn == -1)
+				return removeFirstUnpinned(am, frames);
+
+			a1out.add(keys[ppn]);
+			if (a1out.size() > maxOut)
+				a1out.remove(a1out.iterator().next());
+			return ppn;
+		}
+
+		ppn = removeFirstUnpinned(am, frames);
+		if (ppn == -1)
+			ppn = removeFirstUnpinned(a1in, frames);
+		return ppn;
+	}
+
+	private static int removeFirstUnpinned(LinkedHashSet<Integer> queue,
+			Frames frames) {
+		for (Iterator<Integer> i = queue.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (!frames.isPinned(ppn)) {
+				i.remove();
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	/** The page held by each frame. */
+	private long[] keys;
+
+	private int maxIn, maxOut;
+
+	private LinkedHashSet<Integer> a1in = new LinkedHashSet<Integer>();
+
+	private LinkedHashSet<Integer> am = new LinkedHashSet<Integer>();
+
+	private LinkedHashSet<Long> a1out = new LinkedHashSet<Long>();
+}
@@ -7,7 +7,11 @@ import nachos.userprog.UThread;
 import nachos.userprog.UserKernel;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -27,9 +31,67 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		ppnToProcess = new Meta[numPhysPages];
+		ppnLocks = new Lock[numPhysPages];
 		for(int ppn = 0; ppn < ppnLocks.length; ppn++){
 			ppnLocks[ppn] = new Lock();
 		}
+		// locks need the scheduler, so they cannot be built in a static initializer
+		phyMemoLock = new Lock();
+		zeroPool = new ZeroPagePool(Config.getInteger("VMKernel.zeroPoolSize",
+				Machine.processor().getNumPhysPages() / 8));
+		zeroPool.start();
+		swap = new CompressedSwap(new SwapFile(Config.getString("VMKernel.swapFile", "swapfile"),
+				Config.getInteger("VMKernel.swapCluster", 4)),
+				Config.getInteger("VMKernel.compressedSwapSize", numPhysPages * pageSize / 4));
+		policy = newPolicy(Config.getString("VMKernel.replacementPolicy", "clock"));
+		policy.initialize(numPhysPages);
+		ipt = new InvertedPageTable(numPhysPages);
+		if(Machine.processor().hasTLB()) tlb = new TLBManager(ipt);
+		int lowWater = Config.getInteger("VMKernel.cleanerLowWater", Math.max(numPhysPages / 8, 1));
+		cleaner = new PageCleaner(lowWater,
+				Config.getInteger("VMKernel.cleanerReserve", Math.max(numPhysPages / 4, 1)),
+				Config.getInteger("VMKernel.cleanerBatch", Config.getInteger("VMKernel.swapCluster", 4)));
+		cleaner.start();
+		// merging rescans memory in the background, so it is off unless
+		// VMKernel.mergeBatch gives it frames to scan
+		merger = new SamePageMerger(Config.getInteger("VMKernel.mergeInterval", 10000),
+				Config.getInteger("VMKernel.mergeBatch", 0));
+		merger.start();
+		// likewise load control, unless VMKernel.loadInterval says how often
+		// to sample
+		loadControl = new LoadController(Config.getInteger("VMKernel.loadInterval", 0),
+				Config.getInteger("VMKernel.workingSetWindow", 4),
+				Config.getInteger("VMKernel.pffHigh", Math.max(numPhysPages / 2, 2)));
+		loadControl.start();
+		traceFile = Config.getString("VMKernel.traceFile", null);
+		traceWindow = Config.getInteger("VMKernel.traceWindow", 2);
+		faultAroundMax = Config.getInteger("VMKernel.faultAroundMax", 8);
+		superpagePages = Config.getInteger("VMKernel.superpageSize", 0);
+		Lib.assertTrue(superpagePages == 0 || (superpagePages > 1
+				&& Integer.bitCount(superpagePages) == 1 && superpagePages <= numPhysPages),
+				"VMKernel.superpageSize must be 0 or a power of two no larger than memory");
+		// without a TLB there is nothing to promote, so loading whole
+		// regions would only cost I/O and frames
+		if(!Machine.processor().hasTLB()) superpagePages = 0;
+	}
+
+	/**
+	 * Create a page replacement policy.
+	 *
+	 * @param name one of <tt>clock</tt>, <tt>wsclock</tt>, <tt>2q</tt>,
+	 * <tt>arc</tt> or <tt>clockpro</tt>, or the name of a class implementing
+	 * <tt>PageReplacementPolicy</tt>.
+	 */
+	public static PageReplacementPolicy newPolicy(String name){
+		String className = name;
+		if(name.equalsIgnoreCase("clock")) className = "nachos.vm.ClockPolicy";
+		else if(name.equalsIgnoreCase("wsclock")) className = "nachos.vm.WSClockPolicy";
+		else if(name.equalsIgnoreCase("2q")) className = "nachos.vm.TwoQueuePolicy";
+		else if(name.equalsIgnoreCase("arc")) className = "nachos.vm.ARCPolicy";
+		else if(name.equalsIgnoreCase("clockpro")) className = "nachos.vm.ClockProPolicy";
+		return (PageReplacementPolicy) Lib.constructObject(className);
 	}
 
 	/**
@@ -47,72 +109,596 @@ public class VMKernel extends UserKernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Write back the trace and close the swap file, along with everything
+	 * <tt>UserKernel.shutdown()</tt> writes back.
 	 */
-	public void terminate() {
-		super.terminate();
+	public void shutdown() {
+		if(trace != null) writeTrace();
+		// let queued console output go out before the statistics
+		console.flush();
+		if(swap != null){
+			System.out.println("Compressed swap: hits " + swap.getHits());
+			swap.close();
+		}
+		super.shutdown();
 	}
 
 	public static void swapOut(int ppn){
-		free_pages.add(clockHandle);
-		// invalid the entry in the process which owns the ppn now
-		boolean isDirty = ppnToProcess[clockHandle].process.invalidVPN(ppnToProcess[clockHandle].vpn);
-		if(isDirty){
-			//write to swap file
+		Meta meta = ppnToProcess[ppn];
+		List<Meta> owners = new ArrayList<>(ownersOf(meta));
+		boolean[] isDirty = new boolean[owners.size()];
+		// unmap every owner before the first write can block
+		for(int i = 0; i < owners.size(); i++){
+			Meta owner = owners.get(i);
+			swappingOut.add(pageKey(owner.process, owner.vpn));
+			// the frame no longer belongs to its owner, so it must not be freed again when the owner exits
+			owner.process.used_free_pages.remove(Integer.valueOf(ppn));
+			// pick up the bits of any TLB copy before the entry goes away
+			tlbInvalidate(owner.process, owner.vpn);
+			// invalid the entry in the process which owns the ppn now
+			isDirty[i] = owner.process.invalidVPN(owner.vpn);
+		}
+		for(int i = 0; i < owners.size(); i++){
+			// a merged page may not match what any owner has in swap
+			if(isDirty[i] || owners.size() > 1){
+				// the copy is taken before returning, so the frame can be reused right away
+				owners.get(i).process.setSwapSlot(owners.get(i).vpn, swap.write(ppn));
+			}
+		}
+		boolean intStatus = Machine.interrupt().disable();
+		for(Meta owner : owners)
+			swappingOut.remove(pageKey(owner.process, owner.vpn));
+		while(!swapOutWaiters.isEmpty())
+			swapOutWaiters.remove(0).ready();
+		Machine.interrupt().restore(intStatus);
+		ppnToProcess[ppn] = null;
+		ipt.remove(ppn);
+		page_refs[ppn] = 0;
+		free_pages.free(ppn);
+	}
+
+	/**
+	 * Return <tt>true</tt> if a page has been unmapped by an eviction that is
+	 * still writing it to swap, so its swap slot is not up to date yet.
+	 */
+	public static boolean isSwappingOut(VMProcess process, int vpn){
+		return swappingOut.contains(pageKey(process, vpn));
+	}
+
+	/**
+	 * Wait until a page is no longer being written to swap by an eviction,
+	 * so that it can be read back from the right slot.
+	 */
+	public static void waitForSwapOut(VMProcess process, int vpn){
+		boolean intStatus = Machine.interrupt().disable();
+		while(isSwappingOut(process, vpn)){
+			swapOutWaiters.add(KThread.currentThread());
+			KThread.sleep();
 		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	public static void swapIn(int slot, int ppn){
+		swap.read(slot, ppn);
 	}
 
-	public static void swapIn(int ppn){
+	/**
+	 * Let one more page use a swap slot, as a child created by fork() does
+	 * with its parent's evicted pages. A slot is never written again once
+	 * filled, so sharing it is safe; it is freed when its last user lets go.
+	 */
+	public static void shareSwapSlot(int slot){
+		boolean intStatus = Machine.interrupt().disable();
+		Integer shares = swapShares.get(slot);
+		swapShares.put(slot, shares == null ? 1 : shares + 1);
+		Machine.interrupt().restore(intStatus);
+	}
 
+	public static void freeSwapSlot(int slot){
+		boolean intStatus = Machine.interrupt().disable();
+		Integer shares = swapShares.remove(slot);
+		if(shares != null && shares > 1) swapShares.put(slot, shares - 1);
+		Machine.interrupt().restore(intStatus);
+		if(shares == null) swap.free(slot);
 	}
 
-	public static boolean evictPage(){
-	    int prePos = clockHandle, notPinned = -1;
-		clockHandle += 1;
-	    do{
-	        if (clockHandle >= ppnToProcess.length) clockHandle = 0;
-			if(ppnToProcess[clockHandle].pinned == false){
-				// if all pages are referenced but not all pinned, then evict a referenced page? 
-				notPinned = clockHandle;
-				if(ppnToProcess[clockHandle].ref == false){
-					swapOut(clockHandle);
-					return true;
+	/**
+	 * Give a frame back to the free list without evicting anything, e.g. when
+	 * a mapping is torn down.
+	 */
+	public static void freePPN(int ppn){
+		forgetPPN(ppn);
+		free_pages.free(ppn);
+	}
+
+	/**
+	 * Drop one process's mapping of a frame as the process exits. A merged
+	 * frame stays with its other owners; otherwise the frame is forgotten and
+	 * the caller frees it.
+	 */
+	public static void releaseFrame(VMProcess process, int ppn){
+		Meta meta = ppnToProcess[ppn];
+		if(meta != null && meta.owners != null){
+			for(Meta owner : meta.owners){
+				if(owner.process == process){
+					detach(ppn, owner.process, owner.vpn);
+					return;
 				}
 			}
-			ppnToProcess[clockHandle].ref = false;
-        }while(clockHandle++ != prePos);
-	    if(notPinned != -1) {
-	    	swapOut(notPinned);
-	    	return true;
-		}
-	    //all pages are pinned;
-	    return false;
-    }
+		}
+		forgetPPN(ppn);
+	}
+
+	/**
+	 * Forget the owner of a frame that the caller is about to free itself,
+	 * e.g. when its process exits.
+	 */
+	public static void forgetPPN(int ppn){
+		if(ppnToProcess[ppn] == null) return;
+		ppnToProcess[ppn] = null;
+		ipt.remove(ppn);
+		policy.pageFreed(ppn);
+	}
+
+	/**
+	 * Return the TLB manager, or <tt>null</tt> if the processor has no TLB.
+	 */
+	public static TLBManager getTLB(){
+		return tlb;
+	}
+
+	/**
+	 * Drop any TLB entry for a page, merging its used and dirty bits into the
+	 * page table. Does nothing when the processor has no TLB.
+	 */
+	public static void tlbInvalidate(VMProcess process, int vpn){
+		if(tlb != null){
+			tlb.invalidate(process, vpn);
+			// the page is about to change, so it can no longer be part of a
+			// superpage
+			process.demote(vpn);
+		}
+	}
+
+	/**
+	 * Ask the replacement policy for a victim and evict it to make room for
+	 * the given page. Returns <tt>false</tt> if every frame is pinned.
+	 */
+	public static boolean evictPage(VMProcess process, int vpn){
+		int ppn = policy.selectVictim(frames, pageKey(process, vpn));
+		if(ppn == -1) return false;
+		swapOut(ppn);
+		return true;
+	}
 
 	public static int getFreePPN(VMProcess process, int vpn){
-		if(free_pages.size() == 0){
-		    while(!evictPage()){
-				System.out.println("all pages are pinned, block current thread");
-				waitlist.add(process.getThread());
-				process.getThread().sleep();
-            }
-		}
-		int ppn = free_pages.removeLast();
-		ppnToProcess[ppn] = new Meta(process, vpn, true, false);
+		int ppn = -1;
+		while(ppn == -1){
+			if(free_pages.freeCount() == 0 && zeroPool.size() == 0){
+				// the check and the sleep are atomic, so unpin() cannot be missed
+				boolean intStatus = Machine.interrupt().disable();
+				while(!evictPage(process, vpn)){
+					Lib.debug(dbgVM, "all pages are pinned, block current thread");
+					waitlist.add(KThread.currentThread());
+					KThread.sleep();
+				}
+				Machine.interrupt().restore(intStatus);
+			}
+			ppn = free_pages.allocate();
+			// once the free list is empty a zeroed page is as good as any other;
+			// if the zeroer took the page we just evicted, go around again
+			if(ppn == -1) ppn = zeroPool.take();
+		}
+		setOwner(ppn, process, vpn);
+		return ppn;
+	}
+
+	/**
+	 * Return a frame filled with zeros for a demand-zero fault, preferably one
+	 * the background zeroer has already cleared.
+	 */
+	public static int getZeroedPPN(VMProcess process, int vpn){
+		int ppn = zeroPool.take();
+		if(ppn == -1){
+			ppn = getFreePPN(process, vpn);
+			byte[] mem = Machine.processor().getMemory();
+			Arrays.fill(mem, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+			return ppn;
+		}
+		setOwner(ppn, process, vpn);
 		return ppn;
 	}
 
+	/**
+	 * Return a free frame for a page that is being read ahead, or -1 if
+	 * getting one would mean evicting a page or draining the zero-page pool.
+	 */
+	public static int getFreePPNNoEvict(VMProcess process, int vpn){
+		int ppn = free_pages.allocate();
+		if(ppn == -1) return -1;
+		setOwner(ppn, process, vpn);
+		// not referenced yet: the policy should see it as cold
+		ppnToProcess[ppn].ref = false;
+		return ppn;
+	}
+
+	// the frame stays pinned until the caller has filled and mapped it, since
+	// filling it may block and the page is not valid yet
+	/**
+	 * Return an aligned run of free frames for a superpage, without evicting
+	 * anything, or -1 if there is none. Each frame is owned by the matching
+	 * page of the run and pinned, as with <tt>getFreePPN()</tt>.
+	 *
+	 * @param firstVPN the first virtual page of the superpage.
+	 * @param count the number of pages, <tt>superpagePages</tt>.
+	 */
+	public static int getFreeBlock(VMProcess process, int firstVPN, int count){
+		if(free_pages.freeCount() < count) return -1;
+		int base = free_pages.allocateAligned(count);
+		if(base == -1) return -1;
+		for(int i = 0; i < count; i++){
+			setOwner(base + i, process, firstVPN + i);
+			// like read-ahead, only the faulting page counts as referenced
+			ppnToProcess[base + i].ref = false;
+		}
+		return base;
+	}
+
+	private static void setOwner(int ppn, VMProcess process, int vpn){
+		ppnToProcess[ppn] = new Meta(process, vpn, true, true);
+		ipt.insert(ppn, process.getPid(), vpn);
+		faults++;
+		policy.pageIn(ppn, pageKey(process, vpn));
+		cleaner.poke();
+	}
+
+	private static long pageKey(VMProcess process, int vpn){
+		return InvertedPageTable.key(process.getPid(), vpn);
+	}
+
+	/**
+	 * Return <tt>true</tt> if page references are being recorded for
+	 * <tt>PolicyReplay</tt>.
+	 */
+	public static boolean tracing(){
+		return traceFile != null;
+	}
+
+	/**
+	 * Record a reference to a page in the trace.
+	 */
+	public static void recordReference(VMProcess process, int vpn){
+		if(trace == null) trace = new StringBuilder();
+		trace.append(process.getPid()).append(' ').append(vpn).append('\n');
+	}
+
+	private static void writeTrace(){
+		byte[] bytes = trace.toString().getBytes();
+		OpenFile file = ThreadedKernel.fileSystem.open(traceFile, true);
+		if(file == null){
+			System.out.println("Error: cannot create trace file " + traceFile);
+			return;
+		}
+		file.write(bytes, 0, bytes.length);
+		file.close();
+		trace = null;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a frame is shared by more than one mapping
+	 * because its page was merged with identical ones.
+	 */
+	public static boolean isMerged(int ppn){
+		return ppnToProcess[ppn] != null && ppnToProcess[ppn].owners != null;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a frame holds a page that may be merged: an
+	 * anonymous page that is resident, not pinned and not part of a
+	 * superpage, or a frame that is already shared.
+	 */
+	public static boolean canMerge(int ppn){
+		Meta meta = ppnToProcess[ppn];
+		if(meta == null || meta.pinCount > 0) return false;
+		if(meta.owners != null) return true;
+		TranslationEntry entry = meta.process.getEntry(meta.vpn);
+		if(!entry.valid || entry.ppn != ppn || meta.process.isFileBacked(meta.vpn)) return false;
+		// a superpage saves more TLB misses than merging one of its pages saves memory
+		return meta.process.superpageOf(meta.vpn) == -1;
+	}
+
+	/**
+	 * Make a frame's page read-only in every mapping so that its contents can
+	 * be compared and merged; the first write afterwards takes a read-only
+	 * fault and makes it writable again.
+	 *
+	 * @return <tt>false</tt> if the frame is not a candidate for merging.
+	 */
+	public static boolean writeProtect(int ppn){
+		if(!canMerge(ppn)) return false;
+		Meta meta = ppnToProcess[ppn];
+		if(meta.owners != null) return true;
+		tlbInvalidate(meta.process, meta.vpn);
+		meta.process.getEntry(meta.vpn).readOnly = true;
+		return true;
+	}
+
+	/**
+	 * Merge frame from into frame into, which must hold the same bytes: the
+	 * mapping of from is pointed at into and from is freed. Both frames are
+	 * checked again here, since a write or an eviction may have happened
+	 * since the scanner compared them.
+	 *
+	 * @return <tt>true</tt> if the frames were merged.
+	 */
+	public static boolean merge(int from, int into){
+		if(from == into) return false;
+		page_lock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+		boolean merged = false;
+
+		Meta src = ppnToProcess[from], dst = ppnToProcess[into];
+		if(src != null && dst != null && src.owners == null
+				&& src.pinCount == 0 && dst.pinCount == 0
+				&& isProtected(from) && isProtected(into)
+				&& samePage(from, into)){
+			if(dst.owners == null){
+				dst.owners = new LinkedList<>();
+				dst.owners.add(dst);
+			}
+			tlbInvalidate(src.process, src.vpn);
+			TranslationEntry entry = src.process.getEntry(src.vpn);
+			entry.ppn = into;
+			src.process.used_free_pages.remove(Integer.valueOf(from));
+			src.process.used_free_pages.add(into);
+			dst.owners.add(new Meta(src.process, src.vpn, false, false));
+			referencePage(into);
+
+			ppnToProcess[from] = null;
+			ipt.remove(from);
+			policy.pageFreed(from);
+			page_refs[from] = 0;
+			free_pages.free(from);
+			merged = true;
+		}
+
+		Machine.interrupt().restore(intStatus);
+		page_lock.release();
+		return merged;
+	}
+
+	/**
+	 * Add a mapping to a resident frame, as fork() does for every page a
+	 * child starts out sharing with its parent. The frame becomes a merged
+	 * one, so it is evicted and unmerged like any other. The caller must hold
+	 * <tt>page_lock</tt>, have interrupts disabled and have made the page
+	 * read-only in every mapping.
+	 */
+	public static void share(int ppn, VMProcess process, int vpn){
+		Meta meta = ppnToProcess[ppn];
+		if(meta.owners == null){
+			meta.owners = new LinkedList<>();
+			meta.owners.add(meta);
+		}
+		meta.owners.add(new Meta(process, vpn, false, false));
+		referencePage(ppn);
+	}
+
+	/**
+	 * Give a process a private, writable copy of a merged page it tried to
+	 * write. If no other mapping shares the frame any more, the page is just
+	 * made writable.
+	 */
+	public static void unmerge(VMProcess process, int vpn){
+		TranslationEntry entry = process.getEntry(vpn);
+		int shared = entry.ppn;
+		if(!isMerged(shared)){
+			tlbInvalidate(process, vpn);
+			entry.readOnly = false;
+			return;
+		}
+
+		// allocating may evict, but never the frame being copied
+		pin(shared);
+		int ppn = getFreePPN(process, vpn);
+		unpin(shared);
+		page_lock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+		if(entry.valid && entry.ppn == shared && isMerged(shared)){
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, shared*pageSize, memory, ppn*pageSize, pageSize);
+			detach(shared, process, vpn);
+			releasePage(shared);
+			process.used_free_pages.remove(Integer.valueOf(shared));
+			process.used_free_pages.add(ppn);
+			entry.ppn = ppn;
+			entry.dirty = true;
+			unpin(ppn);
+		}else{
+			// the sharing ended while the frame was being allocated
+			forgetPPN(ppn);
+			free_pages.free(ppn);
+		}
+		tlbInvalidate(process, vpn);
+		entry.readOnly = false;
+		Machine.interrupt().restore(intStatus);
+		page_lock.release();
+	}
+
+	/**
+	 * Remove one mapping from a merged frame. When a single mapping is left
+	 * the frame becomes an ordinary one again. The caller must have
+	 * interrupts disabled, and drops the mapping's page reference itself.
+	 */
+	private static void detach(int ppn, VMProcess process, int vpn){
+		Meta meta = ppnToProcess[ppn];
+		Meta leaving = null;
+		for(Meta owner : meta.owners){
+			if(owner.process == process && owner.vpn == vpn) leaving = owner;
+		}
+		Lib.assertTrue(leaving != null);
+		if(leaving == meta){
+			// the first owner names the frame: hand that role to the next one
+			Meta next = meta.owners.get(1);
+			meta.owners.remove(next);
+			meta.process = next.process;
+			meta.vpn = next.vpn;
+			ipt.remove(ppn);
+			ipt.insert(ppn, meta.process.getPid(), meta.vpn);
+		}else{
+			meta.owners.remove(leaving);
+		}
+		if(meta.owners.size() == 1){
+			meta.owners = null;
+			// the merged contents may not be what this owner has in swap
+			meta.process.getEntry(meta.vpn).dirty = true;
+		}
+	}
+
+	private static boolean isProtected(int ppn){
+		for(Meta owner : ownersOf(ppnToProcess[ppn])){
+			TranslationEntry entry = owner.process.getEntry(owner.vpn);
+			if(!entry.valid || !entry.readOnly || entry.ppn != ppn) return false;
+		}
+		return true;
+	}
+
+	private static boolean samePage(int a, int b){
+		byte[] memory = Machine.processor().getMemory();
+		for(int i = 0; i < pageSize; i++){
+			if(memory[a*pageSize + i] != memory[b*pageSize + i]) return false;
+		}
+		return true;
+	}
+
+	// every mapping of the frame: more than one once its page has been merged
+	private static List<Meta> ownersOf(Meta meta){
+		return meta.owners != null ? meta.owners : Collections.singletonList(meta);
+	}
+
+	/**
+	 * Write a dirty page to swap ahead of its eviction, so that evicting it
+	 * later costs nothing. The dirty bit is cleared before the copy is taken,
+	 * so a write that races with the copy just leaves the page dirty again.
+	 *
+	 * @param ppn the frame to clean.
+	 * @param skipReferenced <tt>true</tt> to leave pages that were referenced
+	 * since the replacement policy last looked.
+	 * @return <tt>true</tt> if the page was written.
+	 */
+	public static boolean cleanPage(int ppn, boolean skipReferenced){
+		Meta meta = ppnToProcess[ppn];
+		if(meta == null || meta.pinCount > 0 || meta.owners != null
+				|| meta.process.isFileBacked(meta.vpn)) return false;
+		if(tlb != null) tlb.sync(meta.process, meta.vpn);
+		TranslationEntry entry = meta.process.getEntry(meta.vpn);
+		if(!entry.valid || !entry.dirty) return false;
+		if(skipReferenced && (entry.used || meta.ref)) return false;
+
+		// keep the frame from being evicted while the copy is in flight
+		meta.pinCount++;
+		entry.dirty = false;
+		int slot = swap.write(ppn);
+		if(ppnToProcess[ppn] == meta){
+			meta.process.setSwapSlot(meta.vpn, slot);
+			unpin(ppn);
+		}else{
+			// the owner exited while the page was being written
+			swap.free(slot);
+		}
+		return true;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a frame holds a page that can be evicted
+	 * without writing it.
+	 */
+	public static boolean isCleanFrame(int ppn){
+		Meta meta = ppnToProcess[ppn];
+		if(meta == null || meta.pinCount > 0 || meta.owners != null) return false;
+		if(tlb != null) tlb.sync(meta.process, meta.vpn);
+		return !meta.process.getEntry(meta.vpn).dirty;
+	}
+
+	/**
+	 * Start a new working-set sampling period. Every resident page whose used
+	 * bit is set counts as referenced in the period that is ending; the bit is
+	 * passed on to the replacement policy through <tt>ref</tt>, so clearing it
+	 * here does not make the page look cold.
+	 *
+	 * @return the number of the new period.
+	 */
+	public static int sampleReferences(){
+		boolean intStatus = Machine.interrupt().disable();
+		for(int ppn = 0; ppn < ppnToProcess.length; ppn++){
+			Meta meta = ppnToProcess[ppn];
+			if(meta == null) continue;
+			for(Meta owner : ownersOf(meta)){
+				if(tlb != null) tlb.sync(owner.process, owner.vpn);
+				TranslationEntry entry = owner.process.getEntry(owner.vpn);
+				if(entry.valid && entry.used){
+					owner.process.noteReference(owner.vpn, sample);
+					entry.used = false;
+					meta.ref = true;
+				}
+			}
+		}
+		sample++;
+		Machine.interrupt().restore(intStatus);
+		return sample;
+	}
+
+	/**
+	 * Return the current working-set sampling period.
+	 */
+	public static int currentSample(){
+		return sample;
+	}
+
+	/**
+	 * Return the load controller.
+	 */
+	public static LoadController getLoadControl(){
+		return loadControl;
+	}
+
+	/**
+	 * Evict the pages of a process that is being suspended, so that its
+	 * frames go to the processes that keep running. Pinned and merged frames
+	 * are left alone.
+	 *
+	 * @return the number of frames given up.
+	 */
+	public static int swapOutProcess(VMProcess process){
+		int count = 0;
+		boolean intStatus = Machine.interrupt().disable();
+		for(int ppn : new ArrayList<>(process.used_free_pages)){
+			Meta meta = ppnToProcess[ppn];
+			if(meta == null || meta.process != process || meta.pinCount > 0
+					|| meta.owners != null) continue;
+			policy.pageFreed(ppn);
+			swapOut(ppn);
+			count++;
+		}
+		Machine.interrupt().restore(intStatus);
+		return count;
+	}
+
 	public static void pin(int ppn){
-		ppnToProcess[ppn].pinned = true;
+		ppnToProcess[ppn].pinCount++;
 	}
 
 	public static void unpin(int ppn){
-		ppnToProcess[ppn].pinned = false;
-		//if there is a process blocked because all pages are pined, wake it
-		if(waitlist.size() != 0){
-			UThread thread = waitlist.remove(0);
-			thread.ready();
+		boolean intStatus = Machine.interrupt().disable();
+		// pins nest: the page cleaner may hold one while a syscall holds another
+		ppnToProcess[ppn].pinCount--;
+		// a frame can be evicted again: wake every thread blocked because all
+		// pages were pinned, and let them race for it
+		if(ppnToProcess[ppn].pinCount == 0){
+			while(!waitlist.isEmpty())
+				waitlist.remove(0).ready();
 		}
+		Machine.interrupt().restore(intStatus);
 	}
 
 	public static void ref(int ppn){
@@ -127,23 +713,107 @@ public class VMKernel extends UserKernel {
 	// Meta info for inverted pageTable ppnToProcess
     public static class Meta{
         VMProcess process;
-        boolean ref, pinned;
-        int vpn;
+        boolean ref;
+        int vpn, pinCount;
+        // all mappings of a merged frame, this one first; null if not merged
+        List<Meta> owners;
         public Meta(VMProcess process, int vpn, boolean ref, boolean pinned){
             this.process = process;
             this.vpn = vpn;
             this.ref = ref;
-            this.pinned = pinned;
+            this.pinCount = pinned ? 1 : 0;
         }
     }
 
-    private static Meta[] ppnToProcess = new Meta[Machine.processor().getNumPhysPages()];
+    private static Meta[] ppnToProcess;
+
+    private static List<KThread> waitlist = new LinkedList<>();
 
-    private static int clockHandle = 0;
+    // pages whose eviction is still writing them to swap, by page key, and
+    // the threads waiting to fault one of them back in
+    private static HashSet<Long> swappingOut = new HashSet<>();
 
-    private static List<UThread> waitlist = new LinkedList<>();
+    private static List<KThread> swapOutWaiters = new LinkedList<>();
 
-    private static Lock[] ppnLocks = new Lock[Machine.processor().getNumPhysPages()];
+    private static Lock[] ppnLocks;
 	
-    private static Lock phyMemoLock = new Lock();
+    private static Lock phyMemoLock;
+
+    private static ZeroPagePool zeroPool;
+
+    private static CompressedSwap swap;
+
+    // swap slots used by more than one page, with the number of extra users
+    private static HashMap<Integer, Integer> swapShares = new HashMap<>();
+
+    private static PageReplacementPolicy policy;
+
+    // which frame holds each (pid, vpn), for refilling the TLB
+    private static InvertedPageTable ipt;
+
+    private static TLBManager tlb;
+
+    private static PageCleaner cleaner;
+
+    private static SamePageMerger merger;
+
+    private static LoadController loadControl;
+
+    // the working-set sampling period, advanced by the load controller
+    private static int sample = 0;
+
+    // what the policy sees of physical memory: the hardware bits of each owner's page table
+    private static PageReplacementPolicy.Frames frames = new PageReplacementPolicy.Frames(){
+		public boolean isPinned(int ppn){
+			return ppnToProcess[ppn] != null && ppnToProcess[ppn].pinCount > 0;
+		}
+
+		public boolean testAndClearUsed(int ppn){
+			Meta meta = ppnToProcess[ppn];
+			if(meta == null) return false;
+			// ref covers accesses the kernel makes on the process's behalf
+			boolean used = meta.ref;
+			meta.ref = false;
+			for(Meta owner : ownersOf(meta)){
+				if(tlb != null) tlb.sync(owner.process, owner.vpn);
+				TranslationEntry entry = owner.process.getEntry(owner.vpn);
+				// the bit is about to be lost, so count it towards the working set
+				if(entry.used) owner.process.noteReference(owner.vpn, sample);
+				used |= entry.used;
+				entry.used = false;
+			}
+			return used;
+		}
+
+		public boolean isDirty(int ppn){
+			Meta meta = ppnToProcess[ppn];
+			if(meta == null) return false;
+			// evicting a merged frame writes a copy for every owner
+			if(meta.owners != null) return true;
+			if(tlb != null) tlb.sync(meta.process, meta.vpn);
+			return meta.process.getEntry(meta.vpn).dirty;
+		}
+
+		public long now(){
+			return faults;
+		}
+	};
+
+    // frames handed out so far, the virtual time for the policy
+    private static long faults = 0;
+
+    // page references recorded for PolicyReplay, see VMProcess.handlePageFault
+    private static String traceFile;
+
+    private static StringBuilder trace;
+
+    public static int traceWindow;
+
+    // the most pages read ahead of a COFF page fault, 0 to disable
+    public static int faultAroundMax;
+
+    // pages per superpage, 0 to disable superpages (always 0 without a TLB)
+    public static int superpagePages;
+
+    private static final int pageSize = Processor.pageSize;
 }
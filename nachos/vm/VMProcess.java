@@ -6,7 +6,11 @@ import nachos.userprog.*;
 import nachos.userprog.UserProcess;
 import nachos.vm.*;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
@@ -33,7 +37,10 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		if(Machine.processor().hasTLB())
+			VMKernel.getTLB().switchTo(this);
+		else
+			super.restoreState();
 	}
 
 	/**
@@ -45,14 +52,13 @@ public class VMProcess extends UserProcess {
 	protected boolean loadSections() {
 		System.out.println("Got in loadSections");
 		vpnToSection = new int[numPages][2];
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+		lastReference = new int[numPages];
+		Arrays.fill(lastReference, neverReferenced);
 		// Begin mutex block
+		// No check against physical memory: pages that do not fit are swapped
 		UserKernel.page_lock.acquire();
-		if (numPages > Machine.processor().getNumPhysPages()) {
-			coff.close();
-			Lib.debug(dbgProcess, "\tinsufficient physical memory");
-			UserKernel.page_lock.release();
-			return false;
-		}
 		pageTable = new TranslationEntry[numPages];
 		for (int i = 0; i < numPages; i++)
 			pageTable[i] = new TranslationEntry(i, i, false, false, false, false);
@@ -92,6 +98,7 @@ public class VMProcess extends UserProcess {
 		}
 		UserKernel.page_lock.release();
 		// End mutex block
+		VMKernel.getLoadControl().register(this);
 		System.out.println("Exiting in loadSections");
 		return true;
 	}
@@ -100,6 +107,18 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		VMKernel.getLoadControl().unregister(this);
+		while(!mappings.isEmpty())
+			unmap(mappings.get(0));
+		for(int vpn = 0; vpn < swapSlots.length; vpn++){
+			if(swapSlots[vpn] != -1) VMKernel.freeSwapSlot(swapSlots[vpn]);
+			swapSlots[vpn] = -1;
+		}
+		if(VMKernel.getTLB() != null) VMKernel.getTLB().release(this);
+		boolean intStatus = Machine.interrupt().disable();
+		for(int ppn : used_free_pages)
+			VMKernel.releaseFrame(this, ppn);
+		Machine.interrupt().restore(intStatus);
 		super.unloadSections();
 	}
 
@@ -131,8 +150,7 @@ public class VMProcess extends UserProcess {
 		}
 
 		// the key of pageTable is vpn, so no need to loop the pageTable.
-		if(!pageTable[vpn].valid) handlePageFault(vpn);
-		VMKernel.pin(pageTable[vpn].ppn);
+		if(!pinPage(vpn, false)) return 0;
 		VMKernel.ref(pageTable[vpn].ppn);
 		paddr = pageTable[vpn].ppn * pageSize + paddr_offset;
 
@@ -168,8 +186,7 @@ public class VMProcess extends UserProcess {
 				System.out.println("vpn exceed numPages");
 				return 0;
 			}
-			if(!pageTable[vpn].valid) handlePageFault(vpn);
-			VMKernel.pin(pageTable[vpn].ppn);
+			if(!pinPage(vpn, false)) return total_amount;
 			VMKernel.ref(pageTable[vpn].ppn);
 			paddr = pageTable[vpn].ppn * pageSize;
 			found = true;
@@ -234,8 +251,7 @@ public class VMProcess extends UserProcess {
 			return 0;
 		}
 		// the key of pageTable is vpn, so no need to loop the pageTable.
-		if(!pageTable[vpn].valid) handlePageFault(vpn);
-		VMKernel.pin(pageTable[vpn].ppn);
+		if(!pinPage(vpn, true)) return 0;
 		VMKernel.ref(pageTable[vpn].ppn);
 		paddr = pageTable[vpn].ppn * pageSize + paddr_offset;
 
@@ -259,6 +275,8 @@ public class VMProcess extends UserProcess {
 		total_amount = 0;
 		amount = Math.min(bytes_left, pageSize - paddr_offset);
 		System.arraycopy(data, offset, memory, paddr, amount);
+		// the processor only sets dirty for user stores; kernel copies count too
+		pageTable[vpn].dirty = true;
 		bytes_left -= amount;
 		offset += amount;
 		total_amount += amount;
@@ -273,8 +291,7 @@ public class VMProcess extends UserProcess {
 				System.out.println("vpn exceed numPages");
 				return 0;
 			}
-			if(!pageTable[vpn].valid) handlePageFault(vpn);
-			VMKernel.pin(pageTable[vpn].ppn);
+			if(!pinPage(vpn, true)) return total_amount;
 			VMKernel.ref(pageTable[vpn].ppn);
 			paddr = pageTable[vpn].ppn * pageSize;
 			found = true;
@@ -301,10 +318,11 @@ public class VMProcess extends UserProcess {
 			found = false;
 			amount = Math.min(bytes_left, pageSize);
 			System.arraycopy(data, offset, memory, paddr, amount);
+			pageTable[vpn].dirty = true;
 			bytes_left -= amount;
 			offset += amount;
 			total_amount += amount;
-			VMKernel.pin(pageTable[vpn].ppn);
+			VMKernel.unpin(pageTable[vpn].ppn);
 			vpn++;
 		}
 //		System.out.println("Exiting VM writeVirtualMemory");
@@ -312,28 +330,290 @@ public class VMProcess extends UserProcess {
 	}
 
 	/**
-	 * Handle page fault
+	 * Make a page resident and pin its frame before the kernel copies to or
+	 * from it. A page about to be written is made private as well, so that
+	 * the write cannot reach other processes through a merged frame. The
+	 * thread can be preempted once a fault is handled, and the page evicted
+	 * again by another process, so the page is checked and pinned with
+	 * interrupts disabled, and faulted in again if it went away.
+	 *
+	 * @return <tt>false</tt> if the page is not backed by anything.
+	 */
+	private boolean pinPage(int vpn, boolean writing){
+		while(true){
+			if(!pageTable[vpn].valid && !handlePageFault(vpn)) return false;
+			boolean intStatus = Machine.interrupt().disable();
+			TranslationEntry entry = pageTable[vpn];
+			boolean writable = !entry.readOnly || isReadOnlySection(vpn);
+			if(entry.valid && (writable || !writing)){
+				VMKernel.pin(entry.ppn);
+				Machine.interrupt().restore(intStatus);
+				return true;
+			}
+			Machine.interrupt().restore(intStatus);
+			if(entry.valid) VMKernel.unmerge(this, vpn);
+		}
+	}
+
+	/**
+	 * Handle page fault. Returns <tt>false</tt> if the vpn is not backed by
+	 * anything (outside the address space, or an unmapped mmap page).
 	 */
-	protected void handlePageFault(int vpn){
+	protected boolean handlePageFault(int vpn){
+		if(vpn < 0 || vpn >= pageTable.length || vpnToSection[vpn][0] == unmappedPage)
+			return false;
+		VMKernel.waitForSwapOut(this, vpn);
 		TranslationEntry entry = pageTable[vpn];
-		int sectionNum = vpnToSection[vpn][0], i = vpnToSection[vpn][1];
-		int ppn = VMKernel.getFreePPN(this, vpn);
+		noteReference(vpn, VMKernel.currentSample());
+		recentFaults++;
+		if(VMKernel.tracing()){
+			VMKernel.recordReference(this, vpn);
+			// a page hidden only to catch its next reference is still resident
+			if(traceHidden.remove(vpn)){
+				entry.valid = true;
+				traceMapped(vpn);
+				return true;
+			}
+		}
+		if(VMKernel.superpagePages > 0 && !VMKernel.tracing() && faultSuperpage(vpn))
+			return true;
+		int sectionNum = vpnToSection[vpn][0];
+		boolean swapped = swapSlots[vpn] != -1;
+		boolean demandZero = isDemandZero(vpn);
+		int ppn = demandZero ? VMKernel.getZeroedPPN(this, vpn) : VMKernel.getFreePPN(this, vpn);
 //		System.out.println("handle page fault: " + vpn);
 //		System.out.println(sectionNum + " " + i + " " + ppn);
-		if(sectionNum == -1){
-			// load a stack or args page
-			byte[] mem = Machine.processor().getMemory();
-			byte[] buf = new byte[pageSize];
-			System.arraycopy(buf, 0, mem, ppn*pageSize, pageSize);
+		loadPage(vpn, ppn, demandZero);
+		// why used_free_page not in kernel but in process?
+		used_free_pages.add(ppn);
+		entry.ppn = ppn;
+		entry.dirty = false;
+		entry.valid = true;
+		VMKernel.unpin(ppn);
+		if(VMKernel.tracing()){
+			traceMapped(vpn);
+		}else{
+			if(!swapped && !demandZero && sectionNum >= 0) faultAround(vpn);
+			promote(vpn);
+		}
+		return true;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a page starts out as zeros: stack, args and
+	 * uninitialized coff pages that have not been evicted dirty to swap.
+	 */
+	private boolean isDemandZero(int vpn){
+		int sectionNum = vpnToSection[vpn][0];
+		return swapSlots[vpn] == -1 && (sectionNum == -1
+				|| (sectionNum >= 0 && !coff.getSection(sectionNum).isInitialzed()));
+	}
+
+	/**
+	 * Fill a frame with the contents of a virtual page.
+	 *
+	 * @param zeroed <tt>true</tt> if the frame is known to be zero-filled.
+	 */
+	private void loadPage(int vpn, int ppn, boolean zeroed){
+		int sectionNum = vpnToSection[vpn][0], i = vpnToSection[vpn][1];
+		byte[] mem = Machine.processor().getMemory();
+		if(swapSlots[vpn] != -1){
+			// a page that was evicted dirty lives in swap, whatever it started as
+			VMKernel.swapIn(swapSlots[vpn], ppn);
+		}else if(isDemandZero(vpn)){
+			if(!zeroed) Arrays.fill(mem, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+		}else if(sectionNum == mappedPage){
+			// load a page of a memory mapped file
+			Mapping mapping = findMapping(vpn);
+			int length = Math.min(pageSize, mapping.length - i*pageSize);
+			int read = Math.max(0, mapping.file.read(i*pageSize, mem, ppn*pageSize, length));
+			Arrays.fill(mem, ppn*pageSize + read, (ppn+1)*pageSize, (byte) 0);
 		}else{
 			// load a page from coff
 			CoffSection section = coff.getSection(sectionNum);
 			section.loadPage(i, ppn);
 		}
-		// why used_free_page not in kernel but in process?
-		used_free_pages.add(ppn);
-		entry.ppn = ppn;
-		entry.valid = true;
+	}
+
+	/**
+	 * Fault in the whole aligned region around a page at once, into an
+	 * aligned run of free frames, and promote it to a superpage. This is only
+	 * done when none of the region is resident and the frames are already
+	 * free, so it never evicts anything; the other pages come in cold, like
+	 * fault-around pages.
+	 *
+	 * @return <tt>false</tt> if the page should be faulted in on its own.
+	 */
+	private boolean faultSuperpage(int vpn){
+		int size = VMKernel.superpagePages, first = vpn - vpn % size;
+		if(first + size > pageTable.length) return false;
+		for(int next = first; next < first + size; next++){
+			if(pageTable[next].valid || vpnToSection[next][0] == unmappedPage
+					|| traceHidden.contains(next) || VMKernel.isSwappingOut(this, next))
+				return false;
+		}
+		int base = VMKernel.getFreeBlock(this, first, size);
+		if(base == -1) return false;
+		for(int next = first; next < first + size; next++){
+			int ppn = base + (next - first);
+			loadPage(next, ppn, false);
+			used_free_pages.add(ppn);
+			pageTable[next].ppn = ppn;
+			pageTable[next].used = false;
+			pageTable[next].dirty = false;
+			pageTable[next].valid = true;
+			VMKernel.unpin(ppn);
+		}
+		VMKernel.ref(base + (vpn - first));
+		Lib.debug(dbgVM, "superpage: vpn " + first + " loaded " + size + " pages");
+		promote(vpn);
+		return true;
+	}
+
+	/**
+	 * Promote the aligned region holding a page to a superpage, if every page
+	 * of it is resident, in order, in an aligned run of frames, with the same
+	 * protection. Superpages only matter to the TLB, so without one this does
+	 * nothing.
+	 */
+	private void promote(int vpn){
+		int size = VMKernel.superpagePages;
+		if(size == 0 || VMKernel.getTLB() == null) return;
+		int first = vpn - vpn % size;
+		if(first + size > pageTable.length || promoted.contains(first / size)) return;
+		int base = pageTable[first].ppn;
+		if(base % size != 0) return;
+		for(int next = first; next < first + size; next++){
+			TranslationEntry entry = pageTable[next];
+			if(!entry.valid || entry.ppn != base + (next - first)
+					|| entry.readOnly != pageTable[first].readOnly
+					|| VMKernel.isMerged(entry.ppn))
+				return;
+		}
+		// drop the pages' own TLB entries so they do not shadow the superpage
+		for(int next = first; next < first + size; next++)
+			VMKernel.tlbInvalidate(this, next);
+		promoted.add(first / size);
+		Lib.debug(dbgVM, "superpage: promoted vpn " + first);
+	}
+
+	/**
+	 * Return the first page of the superpage holding a page, or -1 if the
+	 * page is not part of one.
+	 */
+	int superpageOf(int vpn){
+		int size = VMKernel.superpagePages;
+		if(size == 0 || !promoted.contains(vpn / size)) return -1;
+		return vpn - vpn % size;
+	}
+
+	/**
+	 * Break up the superpage holding a page, if there is one, because the page
+	 * is about to be evicted, unmapped or otherwise changed. Its other pages
+	 * stay resident and go back to being mapped one at a time.
+	 */
+	void demote(int vpn){
+		int size = VMKernel.superpagePages;
+		if(size > 0 && promoted.remove(vpn / size))
+			Lib.debug(dbgVM, "superpage: demoted vpn " + (vpn - vpn % size));
+	}
+
+	/**
+	 * Load the pages following a COFF page that just faulted in, while free
+	 * frames last. The window doubles each time a fault lands where the last
+	 * one left off, up to VMKernel.faultAroundMax pages, and falls back to
+	 * one page when faults stop being sequential. Only frames that are
+	 * already free are used, so reading ahead never evicts anything, and the
+	 * pages come in with their used bits clear so the replacement policy
+	 * treats them as cold until they are touched.
+	 */
+	private void faultAround(int vpn){
+		if(vpn == nextSequentialVPN)
+			faultAroundPages = Math.min(Math.max(faultAroundPages*2, 1), VMKernel.faultAroundMax);
+		else
+			faultAroundPages = Math.min(1, VMKernel.faultAroundMax);
+
+		int sectionNum = vpnToSection[vpn][0];
+		CoffSection section = coff.getSection(sectionNum);
+		int last = vpn;
+		for(int next = vpn + 1; next <= vpn + faultAroundPages && next < pageTable.length; next++){
+			// stay inside the section, and skip pages that are resident or in swap
+			if(vpnToSection[next][0] != sectionNum || pageTable[next].valid
+					|| swapSlots[next] != -1 || traceHidden.contains(next)
+					|| VMKernel.isSwappingOut(this, next))
+				break;
+			int ppn = VMKernel.getFreePPNNoEvict(this, next);
+			if(ppn == -1) break;
+			section.loadPage(vpnToSection[next][1], ppn);
+			used_free_pages.add(ppn);
+			pageTable[next].ppn = ppn;
+			pageTable[next].used = false;
+			pageTable[next].dirty = false;
+			pageTable[next].valid = true;
+			VMKernel.unpin(ppn);
+			last = next;
+		}
+		Lib.debug(dbgVM, "fault-around: vpn " + vpn + " loaded " + (last - vpn) + " more");
+		nextSequentialVPN = last + 1;
+	}
+
+	/**
+	 * While tracing, only the most recently referenced pages stay valid, so
+	 * that every reference to any other page faults and can be recorded. This
+	 * loses only references to pages that are still in the window, which
+	 * does not change the number of LRU faults for any memory at least as
+	 * large as the window.
+	 */
+	private void traceMapped(int vpn){
+		traceWindow.remove(Integer.valueOf(vpn));
+		traceWindow.add(vpn);
+		while(traceWindow.size() > VMKernel.traceWindow){
+			int oldest = traceWindow.removeFirst();
+			if(pageTable[oldest].valid){
+				VMKernel.tlbInvalidate(this, oldest);
+				pageTable[oldest].valid = false;
+				traceHidden.add(oldest);
+			}
+		}
+	}
+
+	/**
+	 * Return the page table entry of a virtual page, whether or not it is
+	 * valid.
+	 */
+	public TranslationEntry getEntry(int vpn){
+		return pageTable[vpn];
+	}
+
+	private boolean isReadOnlySection(int vpn){
+		int sectionNum = vpnToSection[vpn][0];
+		return sectionNum >= 0 && coff.getSection(sectionNum).isReadOnly();
+	}
+
+	/**
+	 * Return <tt>true</tt> if a page is written back to a file rather than to
+	 * swap.
+	 */
+	public boolean isFileBacked(int vpn){
+		return vpnToSection[vpn][0] == mappedPage;
+	}
+
+	/**
+	 * Return the number of virtual pages in the address space, including
+	 * mapped files.
+	 */
+	public int getNumTranslations(){
+		return pageTable.length;
+	}
+
+	/**
+	 * Remember the pages this process had in the TLB when it was switched
+	 * out, returning the previous list.
+	 */
+	int[] setSavedTLB(int[] vpns){
+		int[] old = savedTLB;
+		savedTLB = vpns;
+		return old;
 	}
 
 	/**
@@ -345,25 +625,391 @@ public class VMProcess extends UserProcess {
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
+		if(suspendRequested) waitWhileSuspended();
 
 		switch (cause) {
 			case Processor.exceptionPageFault:
 				Lib.debug(dbgProcess, "Pagefault in handleException!");
 				int addr = processor.readRegister(processor.regBadVAddr);
-            	handlePageFault(processor.pageFromAddress(addr));
+				if(!handlePageFault(processor.pageFromAddress(addr)))
+					super.handleException(cause);
             	break;
+			case Processor.exceptionReadOnly:
+				int roVPN = processor.pageFromAddress(processor.readRegister(processor.regBadVAddr));
+				// pages of read-only sections really are read-only; any other
+				// page was only write-protected so that it could be merged
+				if(roVPN < 0 || roVPN >= pageTable.length || isReadOnlySection(roVPN)){
+					super.handleException(cause);
+					break;
+				}
+				VMKernel.unmerge(this, roVPN);
+				break;
+			case Processor.exceptionTLBMiss:
+				int missAddr = processor.readRegister(processor.regBadVAddr);
+				if(!VMKernel.getTLB().refill(this, processor.pageFromAddress(missAddr)))
+					super.handleException(cause);
+				break;
 			default:
 				super.handleException(cause);
 				break;
 		}
 	}
 
+	/**
+	 * Handle a syscall exception. Adds <tt>mmap()</tt> and <tt>munmap()</tt>
+	 * to the syscalls handled by <tt>UserProcess</tt>.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+			case syscallMmap:
+				return handleMmap(a0, a1);
+			case syscallMunmap:
+				return handleMunmap(a0);
+			default:
+				return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * Give a child created by fork() this process's address space. Resident
+	 * pages are shared the way merged pages are: the child becomes another
+	 * owner of each frame, writable pages are made read-only in both, and the
+	 * first write to one takes a read-only fault that unmerges a private
+	 * copy. Evicted pages share their swap slots. Mapped files are mapped
+	 * again at the same addresses through handles of the child's own, once
+	 * their dirty pages are written back, so the child faults in what this
+	 * process wrote.
+	 */
+	protected void copyAddressSpace(UserProcess process){
+		VMProcess child = (VMProcess) process;
+		OpenFile[] handles = new OpenFile[mappings.size()];
+		for(int i = 0; i < handles.length; i++)
+			handles[i] = ThreadedKernel.fileSystem.open(mappings.get(i).file.getName(), false);
+
+		UserKernel.page_lock.acquire();
+		for(Mapping mapping : mappings){
+			for(int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn++){
+				VMKernel.tlbInvalidate(this, vpn);
+				if(pageTable[vpn].valid && pageTable[vpn].dirty){
+					writeBackMappedPage(mapping, vpn);
+					pageTable[vpn].dirty = false;
+				}
+			}
+		}
+		// pages hidden to trace their next reference are resident all the same
+		for(int vpn : traceHidden)
+			pageTable[vpn].valid = true;
+		traceHidden.clear();
+		traceWindow.clear();
+
+		boolean intStatus = Machine.interrupt().disable();
+		child.pageTable = new TranslationEntry[pageTable.length];
+		child.vpnToSection = new int[pageTable.length][];
+		child.swapSlots = Arrays.copyOf(swapSlots, swapSlots.length);
+		child.lastReference = Arrays.copyOf(lastReference, lastReference.length);
+		for(int vpn = 0; vpn < pageTable.length; vpn++){
+			// a page on its way to swap has no up to date slot to share yet
+			VMKernel.waitForSwapOut(this, vpn);
+			TranslationEntry entry = pageTable[vpn];
+			child.vpnToSection[vpn] = vpnToSection[vpn].clone();
+			if(swapSlots[vpn] != -1) VMKernel.shareSwapSlot(swapSlots[vpn]);
+			if(entry.valid && !isFileBacked(vpn)){
+				// picks up the TLB's dirty bit and drops its write permission
+				VMKernel.tlbInvalidate(this, vpn);
+				if(!isReadOnlySection(vpn)) entry.readOnly = true;
+				VMKernel.share(entry.ppn, child, vpn);
+				child.used_free_pages.add(entry.ppn);
+				child.pageTable[vpn] = new TranslationEntry(entry);
+			}else{
+				child.pageTable[vpn] = new TranslationEntry(vpn, 0, false, entry.readOnly, false, false);
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+		UserKernel.page_lock.release();
+		if(!Machine.processor().hasTLB())
+			Machine.processor().setPageTable(pageTable);
+
+		for(int i = 0; i < handles.length; i++){
+			Mapping mapping = mappings.get(i);
+			if(handles[i] != null){
+				child.mappings.add(new Mapping(handles[i], mapping.firstVPN, mapping.numPages, mapping.length,
+						mapping.fileLength));
+				continue;
+			}
+			System.out.println("Error: cannot reopen " + mapping.file.getName() + " for fork, leaving it unmapped in the child");
+			for(int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn++)
+				child.vpnToSection[vpn] = new int[]{unmappedPage, 0};
+		}
+		VMKernel.getLoadControl().register(child);
+	}
+
+	/**
+	 * Map the first length bytes of the file referred to by fileDescriptor
+	 * into the first range of unmapped pages big enough to hold them, or into
+	 * fresh virtual pages past the end of the address space. Nothing is
+	 * read here: pages are demand-faulted from the file the same way COFF
+	 * sections are, and dirty pages are written back when they are evicted or
+	 * unmapped. Write-back stops at the length the file had when it was
+	 * mapped, so a mapping longer than the file does not grow it. The mapping
+	 * keeps its own handle on the file, so closing the descriptor does not
+	 * affect it.
+	 *
+	 * Returns the virtual address of the mapping, or -1 on error.
+	 */
+	private int handleMmap(int fileDescriptor, int length){
+		OpenFile file = getOpenFile(fileDescriptor);
+		if(file == null || length <= 0 || file.length() < 0){
+			System.out.println("Error: cannot mmap fd " + fileDescriptor + ", returning -1");
+			return -1;
+		}
+		OpenFile handle = ThreadedKernel.fileSystem.open(file.getName(), false);
+		if(handle == null){
+			System.out.println("Error: cannot reopen " + file.getName() + " for mmap, returning -1");
+			return -1;
+		}
+		int pages = Lib.divRoundUp(length, pageSize);
+		int firstVPN = findUnmappedRange(pages);
+		if(firstVPN != -1){
+			for(int i = 0; i < pages; i++){
+				pageTable[firstVPN + i] = new TranslationEntry(firstVPN + i, 0, false, false, false, false);
+				vpnToSection[firstVPN + i] = new int[]{mappedPage, i};
+				swapSlots[firstVPN + i] = -1;
+				lastReference[firstVPN + i] = neverReferenced;
+			}
+			mappings.add(new Mapping(handle, firstVPN, pages, length, file.length()));
+			return firstVPN * pageSize;
+		}
+
+		firstVPN = pageTable.length;
+		if((long) (firstVPN + pages) * pageSize > Integer.MAX_VALUE){
+			handle.close();
+			return -1;
+		}
+
+		// grow the page table; the new entries are invalid until faulted in
+		TranslationEntry[] newTable = new TranslationEntry[firstVPN + pages];
+		int[][] newSections = new int[firstVPN + pages][];
+		System.arraycopy(pageTable, 0, newTable, 0, firstVPN);
+		System.arraycopy(vpnToSection, 0, newSections, 0, firstVPN);
+		for(int i = 0; i < pages; i++){
+			newTable[firstVPN + i] = new TranslationEntry(firstVPN + i, 0, false, false, false, false);
+			newSections[firstVPN + i] = new int[]{mappedPage, i};
+		}
+		int[] newSlots = new int[firstVPN + pages];
+		System.arraycopy(swapSlots, 0, newSlots, 0, firstVPN);
+		Arrays.fill(newSlots, firstVPN, firstVPN + pages, -1);
+		pageTable = newTable;
+		vpnToSection = newSections;
+		swapSlots = newSlots;
+		lastReference = Arrays.copyOf(lastReference, firstVPN + pages);
+		Arrays.fill(lastReference, firstVPN, firstVPN + pages, neverReferenced);
+		if(!Machine.processor().hasTLB())
+			Machine.processor().setPageTable(pageTable);
+
+		mappings.add(new Mapping(handle, firstVPN, pages, length, file.length()));
+		return firstVPN * pageSize;
+	}
+
+	/**
+	 * Remove the mapping starting at addr, writing its dirty pages back to the
+	 * file and releasing its frames. Returns 0 on success, or -1 if addr is
+	 * not the start of a mapping.
+	 */
+	private int handleMunmap(int addr){
+		Mapping mapping = null;
+		for(Mapping m : mappings){
+			if(m.firstVPN * pageSize == addr){
+				mapping = m;
+				break;
+			}
+		}
+		if(mapping == null){
+			System.out.println("Error: no mapping at " + addr + ", returning -1");
+			return -1;
+		}
+		unmap(mapping);
+		return 0;
+	}
+
+	/**
+	 * Return the first page of the lowest run of at least pages unmapped
+	 * pages, or -1 if there is none.
+	 */
+	private int findUnmappedRange(int pages){
+		int run = 0;
+		for(int vpn = 0; vpn < vpnToSection.length; vpn++){
+			run = vpnToSection[vpn][0] == unmappedPage ? run + 1 : 0;
+			if(run == pages) return vpn - pages + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Release a mapping's pages. Its range can then be reused by a later
+	 * mmap, and if it was at the end of the address space, the page table
+	 * shrinks back to the last page still in use.
+	 */
+	private void unmap(Mapping mapping){
+		UserKernel.page_lock.acquire();
+		for(int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn++){
+			TranslationEntry entry = pageTable[vpn];
+			demote(vpn);
+			if(entry.valid || traceHidden.remove(vpn)){
+				VMKernel.tlbInvalidate(this, vpn);
+				if(entry.dirty) writeBackMappedPage(mapping, vpn);
+				entry.valid = false;
+				used_free_pages.remove(Integer.valueOf(entry.ppn));
+				VMKernel.freePPN(entry.ppn);
+			}
+			traceWindow.remove(Integer.valueOf(vpn));
+			vpnToSection[vpn] = new int[]{unmappedPage, 0};
+		}
+
+		int length = pageTable.length;
+		while(length > 0 && vpnToSection[length - 1][0] == unmappedPage)
+			length--;
+		if(length < pageTable.length){
+			pageTable = Arrays.copyOf(pageTable, length);
+			vpnToSection = Arrays.copyOf(vpnToSection, length);
+			swapSlots = Arrays.copyOf(swapSlots, length);
+			lastReference = Arrays.copyOf(lastReference, length);
+			if(!Machine.processor().hasTLB())
+				Machine.processor().setPageTable(pageTable);
+		}
+		UserKernel.page_lock.release();
+		mapping.file.close();
+		mappings.remove(mapping);
+	}
+
+	private void writeBackMappedPage(Mapping mapping, int vpn){
+		int i = vpn - mapping.firstVPN;
+		int end = Math.min(mapping.length, mapping.fileLength);
+		int length = Math.min(pageSize, end - i*pageSize);
+		if(length <= 0) return;
+		UserKernel.coff_cache.invalidate(mapping.file.getName());
+		mapping.file.write(i*pageSize, Machine.processor().getMemory(), pageTable[vpn].ppn*pageSize, length);
+	}
+
+	private Mapping findMapping(int vpn){
+		for(Mapping m : mappings){
+			if(vpn >= m.firstVPN && vpn < m.firstVPN + m.numPages)
+				return m;
+		}
+		return null;
+	}
+
 	// invalid the vpn in pageTable, return isDirty
 	public boolean invalidVPN(int vpn){
 		pageTable[vpn].valid = false;
+		traceHidden.remove(vpn);
+		traceWindow.remove(Integer.valueOf(vpn));
+		if(vpnToSection[vpn][0] == mappedPage){
+			// a mapped page goes back to its file, never to swap
+			if(pageTable[vpn].dirty) writeBackMappedPage(findMapping(vpn), vpn);
+			return false;
+		}
 		return pageTable[vpn].dirty;
     }
 
+	/**
+	 * Record where a dirty page was saved when it was evicted, releasing the
+	 * slot holding any older copy.
+	 */
+	public void setSwapSlot(int vpn, int slot){
+		// freeing can block, so the new slot goes in first
+		int old = swapSlots[vpn];
+		swapSlots[vpn] = slot;
+		if(old != -1) VMKernel.freeSwapSlot(old);
+	}
+
+	/**
+	 * Record that a page was referenced during a working-set sampling period.
+	 */
+	void noteReference(int vpn, int sample){
+		lastReference[vpn] = sample;
+	}
+
+	/**
+	 * Return the number of pages referenced in the last <i>window</i>
+	 * sampling periods before <i>sample</i>.
+	 */
+	int workingSetSize(int sample, int window){
+		int size = 0;
+		for(int vpn = 0; vpn < lastReference.length; vpn++){
+			if(lastReference[vpn] >= sample - window) size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Return the number of page faults since the last call.
+	 */
+	int takeRecentFaults(){
+		int faults = recentFaults;
+		recentFaults = 0;
+		return faults;
+	}
+
+	/**
+	 * Ask this process to give up its memory and stop at its next exception,
+	 * until <tt>resume()</tt> is called. The working set is remembered so that
+	 * it can be brought back in on resumption. Called by the load controller
+	 * with interrupts disabled.
+	 */
+	void suspend(int sample, int window){
+		suspendedSet = new LinkedList<>();
+		for(int vpn = 0; vpn < lastReference.length; vpn++){
+			if(lastReference[vpn] >= sample - window) suspendedSet.add(vpn);
+		}
+		suspendRequested = true;
+	}
+
+	/**
+	 * Let a suspended process run again.
+	 */
+	void resume(){
+		boolean intStatus = Machine.interrupt().disable();
+		suspendRequested = false;
+		if(parked){
+			parked = false;
+			resumed.V();
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the size of the working set this process was suspended with.
+	 */
+	int getSuspendedSize(){
+		return suspendedSet == null ? 0 : suspendedSet.size();
+	}
+
+	/**
+	 * Swap out every page in one go and sleep until the load controller
+	 * resumes this process, then reload the working set while there are
+	 * free frames for it. Called at the start of an exception, when the
+	 * process holds no pins or locks.
+	 */
+	private void waitWhileSuspended(){
+		List<Integer> workingSet = suspendedSet;
+		int freed = VMKernel.swapOutProcess(this);
+		Lib.debug(dbgVM, "pid " + getPid() + " suspended, gave up " + freed + " frames");
+		boolean intStatus = Machine.interrupt().disable();
+		if(suspendRequested){
+			parked = true;
+			resumed.P();
+		}
+		Machine.interrupt().restore(intStatus);
+
+		// reloading is not faulting for lack of memory
+		int faults = recentFaults;
+		for(int vpn : workingSet){
+			if(UserKernel.free_pages.freeCount() == 0) break;
+			if(!pageTable[vpn].valid) handlePageFault(vpn);
+		}
+		recentFaults = faults;
+	}
+
     public UThread getThread(){
 		return this.thread;
 	}
@@ -372,6 +1018,60 @@ public class VMProcess extends UserProcess {
 
 	private int[][] vpnToSection;
 
+	// swap slot holding each evicted dirty page, or -1
+	private int[] swapSlots = new int[0];
+
+	// vpnToSection markers for pages that are not part of the COFF image
+	private static final int mappedPage = -2, unmappedPage = -3;
+
+	private static final int syscallMmap = 10, syscallMunmap = 17;
+
+	// a file mapped by mmap(), covering numPages pages from firstVPN, and
+	// the length the file had then
+	private static class Mapping{
+		OpenFile file;
+		int firstVPN, numPages, length, fileLength;
+		Mapping(OpenFile file, int firstVPN, int numPages, int length, int fileLength){
+			this.file = file;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+			this.length = length;
+			this.fileLength = fileLength;
+		}
+	}
+
+	private List<Mapping> mappings = new LinkedList<>();
+
+	// fault-around window, and the page a sequential fault stream hits next
+	private int faultAroundPages = 0, nextSequentialVPN = -1;
+
+	// while tracing: the pages left valid, oldest first, and resident pages
+	// made invalid so that their next reference faults
+	private LinkedList<Integer> traceWindow = new LinkedList<>();
+
+	private HashSet<Integer> traceHidden = new HashSet<>();
+
+	// pages that were in the TLB when this process was last switched out
+	private int[] savedTLB;
+
+	// regions, numbered by vpn / VMKernel.superpagePages, mapped as superpages
+	private HashSet<Integer> promoted = new HashSet<>();
+
+	// for load control: the sampling period each page was last referenced in,
+	// and the page faults since the controller last looked
+	private int[] lastReference = new int[0];
+
+	private int recentFaults = 0;
+
+	private static final int neverReferenced = Integer.MIN_VALUE / 2;
+
+	// set by the load controller; the process parks at its next exception
+	private boolean suspendRequested = false, parked = false;
+
+	private List<Integer> suspendedSet;
+
+	private Semaphore resumed = new Semaphore(0);
+
 	private static final char dbgProcess = 'a';
 
 	private static final char dbgVM = 'v';
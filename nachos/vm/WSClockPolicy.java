@@ -0,0 +1,90 @@
+package nachos.vm;
+
+/**
+ * WSClock: a clock that evicts pages outside the working set, preferring
+ * clean ones.
+ *
+ * <p>
+ * Every frame remembers the virtual time it was last seen referenced. A page
+ * whose last reference is older than the window is outside its working set.
+ * The hand evicts the first such page that is clean; if it comes all the way
+ * around without finding one, it settles for the first old dirty page it
+ * passed, and failing that the least recently referenced page.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy with a window of one page fault per frame.
+	 */
+	public WSClockPolicy() {
+		this(-1);
+	}
+
+	/**
+	 * Allocate a new WSClock policy.
+	 *
+	 * @param window the working set window, in units of <tt>Frames.now()</tt>,
+	 * or -1 to use the number of frames.
+	 */
+	public WSClockPolicy(int window) {
+		this.window = window;
+	}
+
+	public void initialize(int numFrames) {
+		resident = new boolean[numFrames];
+		lastUse = new long[numFrames];
+		if (window < 0)
+			window = numFrames;
+	}
+
+	public void pageIn(int ppn, long key) {
+		resident[ppn] = true;
+		lastUse[ppn] = Long.MIN_VALUE;
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int selectVictim(Frames frames, long incoming) {
+		long now = frames.now();
+		int oldDirty = -1, oldest = -1;
+
+		for (int i = 0; i < resident.length; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+
+			if (!resident[ppn] || frames.isPinned(ppn))
+				continue;
+
+			// a page loaded since the last sweep counts as just referenced
+			if (frames.testAndClearUsed(ppn) || lastUse[ppn] == Long.MIN_VALUE)
+				lastUse[ppn] = now;
+			else if (now - lastUse[ppn] > window) {
+				if (!frames.isDirty(ppn))
+					return evict(ppn);
+				if (oldDirty == -1)
+					oldDirty = ppn;
+			}
+
+			if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+				oldest = ppn;
+		}
+
+		return evict(oldDirty != -1 ? oldDirty : oldest);
+	}
+
+	private int evict(int ppn) {
+		if (ppn != -1)
+			resident[ppn] = false;
+		return ppn;
+	}
+
+	private int window;
+
+	private boolean[] resident;
+
+	/** The virtual time each frame was last seen referenced. */
+	private long[] lastUse;
+
+	private int hand = 0;
+}
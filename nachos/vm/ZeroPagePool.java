@@ -0,0 +1,140 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+
+/**
+ * A pool of free physical pages that have already been filled with zeros.
+ *
+ * <p>
+ * A background kernel thread takes pages off the free list and zeroes them
+ * whenever the pool is below its target size, and otherwise sleeps until a
+ * page is taken, or, if memory ran out, until a page is freed. It yields
+ * after every page and runs at the lowest priority when the scheduler has
+ * priorities, so refilling happens while the system has nothing better to
+ * do. Demand-zero page faults (stack, arguments and uninitialized COFF
+ * sections) take a page from here and skip clearing it.
+ */
+public class ZeroPagePool {
+	/**
+	 * Allocate a new pool.
+	 *
+	 * @param target the number of zeroed pages to keep ready.
+	 */
+	public ZeroPagePool(int target) {
+		this.target = target;
+		pages = new int[Math.max(target, 1)];
+	}
+
+	/**
+	 * Start the thread that keeps the pool filled.
+	 */
+	public void start() {
+		if (target == 0)
+			return;
+
+		KThread zeroer = new KThread(new Runnable() {
+			public void run() {
+				refill();
+			}
+		}).setName("page zeroer");
+
+		boolean intStatus = Machine.interrupt().disable();
+		if (ThreadedKernel.scheduler.getClass() == PriorityScheduler.class)
+			ThreadedKernel.scheduler.setPriority(zeroer,
+					PriorityScheduler.priorityMinimum);
+		Machine.interrupt().restore(intStatus);
+
+		zeroer.fork();
+
+		// a pool that ran dry under memory pressure refills once pages free up
+		UserKernel.free_pages.setFreeHandler(new Runnable() {
+			public void run() {
+				pageFreed();
+			}
+		});
+	}
+
+	/**
+	 * Take a zeroed page from the pool.
+	 *
+	 * @return a physical page filled with zeros, or -1 if the pool is empty.
+	 */
+	public int take() {
+		boolean intStatus = Machine.interrupt().disable();
+		int ppn = -1;
+		if (count > 0) {
+			ppn = pages[--count];
+			hits++;
+			if (sleeping) {
+				sleeping = false;
+				wakeup.V();
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+		return ppn;
+	}
+
+	/**
+	 * Return the number of zeroed pages currently in the pool. These pages are
+	 * not counted as free by the page allocator.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Return the number of page faults served from the pool.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	private void pageFreed() {
+		if (sleeping && count < target) {
+			sleeping = false;
+			wakeup.V();
+		}
+	}
+
+	private void refill() {
+		byte[] memory = Machine.processor().getMemory();
+		while (true) {
+			boolean intStatus = Machine.interrupt().disable();
+			if (count >= target || UserKernel.free_pages.freeCount() == 0) {
+				// sleep until a page is taken or freed, and retry from there
+				sleeping = true;
+				Machine.interrupt().restore(intStatus);
+				wakeup.P();
+				continue;
+			}
+			int ppn = UserKernel.free_pages.allocate();
+			Machine.interrupt().restore(intStatus);
+
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+
+			intStatus = Machine.interrupt().disable();
+			pages[count++] = ppn;
+			Machine.interrupt().restore(intStatus);
+
+			KThread.yield();
+		}
+	}
+
+	private int target;
+
+	private int[] pages;
+
+	private int count = 0;
+
+	private int hits = 0;
+
+	private boolean sleeping = false;
+
+	private Semaphore wakeup = new Semaphore(0);
+
+	private static final int pageSize = Processor.pageSize;
+}